@@ -30,6 +30,7 @@ import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -58,16 +59,51 @@ public class CassandraUtils
 
     public static final Properties       properties;
     public static final String           keySpace;
-    public static int                    retryAttempts;
-    public static int                    retryAttemptSleep;
+    public static RetryPolicy            retryPolicy;
+
+    // node wide retry budget: every request earns retryBudgetRatio of a
+    // retry, up to retryBudgetMax saved retries
+    public static double                 retryBudgetRatio;
+    public static int                    retryBudgetMax;
+    private static final AtomicLong      retryBudget            = new AtomicLong();
+
+    public static final OperationStats   readStats              = new OperationStats();
+    public static final OperationStats   writeStats             = new OperationStats();
 
     // how often to check for cache invalidation
     public static int                    cacheInvalidationInterval;
 
+    // how long, in seconds, the changes behind each invalidation are kept
+    public static int                    cacheChangeLogTTL;
+
     public static final ConsistencyLevel consistency;
     
     public static boolean useCompression;
 
+    // pack postings into fixed size blocks rather than one column per doc
+    public static boolean                useTermBlocks;
+    public static int                    termBlockSize;
+
+    // fields whose postings keep freqs but no positions
+    public static Set<String>            omitPositionFields;
+
+    // update docs in place when their old field hashes are known
+    public static boolean                useDiffUpdates;
+
+    // keep norms in one blocked row per field instead of in every posting
+    public static boolean                useNormRows;
+
+    // mark deleted docs in one row and purge their postings later
+    public static boolean                useDeferredDeletes;
+    public static int                    purgeInterval;
+    public static int                    purgeBatchSize;
+
+    // keep a doc count per term in counter columns
+    public static boolean                useTermStats;
+
+    // heap budget for the cached index readers of this node
+    public static long                   readerCacheMaxBytes;
+
     
     // Initialize logging in such a way that it checks for config changes every
     // 10 seconds.
@@ -101,17 +137,47 @@ public class CassandraUtils
             properties.load(CassandraUtils.class.getClassLoader().getResourceAsStream("solandra.properties"));
 
             keySpace = properties.getProperty("solandra.keyspace", "L");
-            retryAttempts = Integer.valueOf(properties.getProperty("cassandra.retries", "1024"));
-            retryAttemptSleep = Integer.valueOf(properties.getProperty("cassandra.retries.sleep", "100"));
+            retryPolicy = createRetryPolicy(properties.getProperty("cassandra.retries.policy",
+                    ExponentialBackoffRetryPolicy.class.getName()));
+
+            retryBudgetRatio = Double.valueOf(properties.getProperty("cassandra.retries.budget.ratio", "0.1"));
+            retryBudgetMax = Integer.valueOf(properties.getProperty("cassandra.retries.budget.max", "1000"));
+            retryBudget.set(retryBudgetMax * 1000L);
 
             // how often to check for cache invalidation
             cacheInvalidationInterval = Integer.valueOf(properties.getProperty(
                     "solandra.cache.invalidation.check.interval", "1000"));
 
+            cacheChangeLogTTL = Integer.valueOf(properties.getProperty("solandra.cache.changelog.ttl", "600"));
+
             consistency = ConsistencyLevel.valueOf(properties.getProperty("solandra.consistency", ConsistencyLevel.ONE
                     .name()));
             
             useCompression = Boolean.valueOf(properties.getProperty("solandra.compression", "true"));
+
+            useTermBlocks = Boolean.valueOf(properties.getProperty("solandra.index.posting.blocks", "false"));
+            termBlockSize = Integer.valueOf(properties.getProperty("solandra.index.posting.block.size", "128"));
+
+            useNormRows = Boolean.valueOf(properties.getProperty("solandra.index.norms.rows", "false"));
+
+            useDiffUpdates = Boolean.valueOf(properties.getProperty("solandra.index.update.diff", "true"));
+
+            useDeferredDeletes = Boolean.valueOf(properties.getProperty("solandra.index.delete.deferred", "true"));
+            purgeInterval = Integer.valueOf(properties.getProperty("solandra.index.purge.interval", "60"));
+            purgeBatchSize = Integer.valueOf(properties.getProperty("solandra.index.purge.batch.size", "1024"));
+
+            omitPositionFields = new HashSet<String>();
+            for (String field : properties.getProperty("solandra.index.omit.positions", "").split(","))
+            {
+                if (field.trim().length() > 0)
+                    omitPositionFields.add(field.trim());
+            }
+
+            useTermStats = Boolean.valueOf(properties.getProperty("solandra.index.term.stats", "true"));
+
+            // defaults to a quarter of the heap
+            readerCacheMaxBytes = Long.valueOf(properties.getProperty("solandra.cache.max.size.mb", String
+                    .valueOf(Runtime.getRuntime().maxMemory() / (4 * 1024 * 1024)))) * 1024 * 1024;
             
             try
             {
@@ -149,6 +215,9 @@ public class CassandraUtils
     public static final String           docColumnFamily        = "Docs";
     public static final String           metaInfoColumnFamily   = "TL";
     public static final String           fieldCacheColumnFamily = "FC";
+    public static final String           termBlockColumnFamily  = "TB";
+    public static final String           termStatsColumnFamily  = "TS";
+    public static final String           normsColumnFamily      = "NR";
 
     public static final String           schemaInfoColumnFamily = "SI";
 
@@ -159,8 +228,10 @@ public class CassandraUtils
 
     public static final String           schemaKey              = "S";
     public static final String           cachedCol              = "CC";
+    public static final String           cacheChangesCol        = "CL";
 
     public static final ByteBuffer       cachedColBytes         = ByteBufferUtil.bytes(cachedCol);
+    public static final ByteBuffer       cacheChangesColBytes   = ByteBufferUtil.bytes(cacheChangesCol);
     public static final ByteBuffer       positionVectorKeyBytes = ByteBufferUtil.bytes(positionVectorKey);
     public static final ByteBuffer       offsetVectorKeyBytes   = ByteBufferUtil.bytes(offsetVectorKey);
     public static final ByteBuffer       termFrequencyKeyBytes  = ByteBufferUtil.bytes(termFrequencyKey);
@@ -178,6 +249,32 @@ public class CassandraUtils
     public static final String           documentMetaField      = delimeter + "META" + delimeter;
     public static final ByteBuffer       documentMetaFieldBytes = ByteBufferUtil.bytes(documentMetaField);
 
+    // the unique terms of a doc, replaces the term list in META
+    public static final String           documentTermsField      = delimeter + "TERMS" + delimeter;
+    public static final ByteBuffer       documentTermsFieldBytes = ByteBufferUtil.bytes(documentTermsField);
+
+    // per field content hashes of a doc, for updates in place
+    public static final String           documentHashesField      = delimeter + "HASH" + delimeter;
+    public static final ByteBuffer       documentHashesFieldBytes = ByteBufferUtil.bytes(documentHashesField);
+
+    // per index row of deleted docs whose postings aren't purged yet
+    public static final String           deletedDocsField       = delimeter + "DELETED" + delimeter;
+
+    // per index doc stats: the live doc count in TS and the counted flag in
+    // Docs, both under this pseudo field
+    public static final String           docStatsField          = delimeter + "DOCS" + delimeter;
+    public static final String           liveDocsCol            = "live";
+    public static final ByteBuffer       liveDocsColBytes       = ByteBufferUtil.bytes(liveDocsCol);
+
+    // set in the Docs stats row once the counters in TS count every doc,
+    // either from the first doc on or after an optimize recounted them
+    public static final String           countedCol             = "counted";
+    public static final ByteBuffer       countedColBytes        = ByteBufferUtil.bytes(countedCol);
+
+    // per index row in Docs with a column named by each new highest doc id
+    // a writer saw, as a big endian int. The last live column is maxDoc.
+    public static final String           maxDocsField           = delimeter + "MAXDOC" + delimeter;
+
     public static final boolean          indexHashingEnabled    = Boolean.valueOf(System.getProperty("index.hashing",
                                                                         "true"));
 
@@ -295,6 +392,7 @@ public class CassandraUtils
         if (DatabaseDescriptor.getNonSystemTables().contains(keySpace))
         {
             logger.info("Found Solandra specific schema");
+            addMissingColumnFamilies();
             return;
         }
 
@@ -317,9 +415,69 @@ public class CassandraUtils
         if (DatabaseDescriptor.getNonSystemTables().contains(keySpace))
         {
             logger.info("Found Solandra specific schema");
+            addMissingColumnFamilies();
             return;
         }
 
+        List<CfDef> cfs = getColumnFamilyDefinitions();
+
+        KsDef solandraKS = new KsDef().setName(keySpace).setReplication_factor(1).setStrategy_class(
+                "org.apache.cassandra.locator.SimpleStrategy").setCf_defs(cfs);
+
+        CassandraServer cs = new CassandraServer();
+
+        try
+        {
+            cs.system_add_keyspace(solandraKS);
+        }
+        catch (InvalidRequestException e)
+        {
+            throw new IOException(e);
+        }
+        catch (TException e)
+        {
+            throw new IOException(e);
+        }
+        catch (Exception e)
+        {
+             throw new IOException(e);
+        }
+
+        logger.info("Added Solandra specific schema");
+    }
+
+    // Column families added after the keyspace was created need to be added
+    // one at a time
+    private static void addMissingColumnFamilies() throws IOException
+    {
+        CassandraServer cs = null;
+
+        for (CfDef cf : getColumnFamilyDefinitions())
+        {
+            if (DatabaseDescriptor.getCFMetaData(keySpace, cf.getName()) != null)
+                continue;
+
+            try
+            {
+                if (cs == null)
+                {
+                    cs = new CassandraServer();
+                    cs.set_keyspace(keySpace);
+                }
+
+                cs.system_add_column_family(cf);
+            }
+            catch (Exception e)
+            {
+                throw new IOException(e);
+            }
+
+            logger.info("Added Solandra column family " + cf.getName());
+        }
+    }
+
+    private static List<CfDef> getColumnFamilyDefinitions()
+    {
         List<CfDef> cfs = new ArrayList<CfDef>();
 
         CfDef cf = new CfDef();
@@ -340,8 +498,40 @@ public class CassandraUtils
         cf.setComment("Stores term information with indexName/field/term as composite key");
         cf.setKeyspace(keySpace);
 
+        cfs.add(cf);
+
+        cf = new CfDef();
+        cf.setName(termBlockColumnFamily);
+        cf.setComparator_type("BytesType");
+        cf.setKey_cache_size(0);
+        cf.setRow_cache_size(0);
+        cf.setComment("Stores blocks of term information with indexName/field/term as composite key");
+        cf.setKeyspace(keySpace);
+
         cfs.add(cf);
         
+        cf = new CfDef();
+        cf.setName(termStatsColumnFamily);
+        cf.setComparator_type("BytesType");
+        cf.setDefault_validation_class("CounterColumnType");
+        cf.setReplicate_on_write(true);
+        cf.setKey_cache_size(0);
+        cf.setRow_cache_size(0);
+        cf.setComment("Stores the doc count of each term with indexName/field as composite key");
+        cf.setKeyspace(keySpace);
+
+        cfs.add(cf);
+
+        cf = new CfDef();
+        cf.setName(normsColumnFamily);
+        cf.setComparator_type("BytesType");
+        cf.setKey_cache_size(0);
+        cf.setRow_cache_size(0);
+        cf.setComment("Stores blocks of field norms with indexName/field as composite key");
+        cf.setKeyspace(keySpace);
+
+        cfs.add(cf);
+
         cf = new CfDef();
         cf.setName(fieldCacheColumnFamily);
         cf.setComparator_type("lucandra.VIntType");
@@ -373,29 +563,7 @@ public class CassandraUtils
 
         cfs.add(cf);
 
-        KsDef solandraKS = new KsDef().setName(keySpace).setReplication_factor(1).setStrategy_class(
-                "org.apache.cassandra.locator.SimpleStrategy").setCf_defs(cfs);
-
-        CassandraServer cs = new CassandraServer();
-
-        try
-        {
-            cs.system_add_keyspace(solandraKS);
-        }
-        catch (InvalidRequestException e)
-        {
-            throw new IOException(e);
-        }
-        catch (TException e)
-        {
-            throw new IOException(e);
-        }
-        catch (Exception e)
-        {
-             throw new IOException(e);
-        }
-
-        logger.info("Added Solandra specific schema");
+        return cfs;
     }
 
     public static ByteBuffer createColumnName(Fieldable field)
@@ -534,13 +702,125 @@ public class CassandraUtils
         }
     }
 
-    public static void robustInsert(ConsistencyLevel cl, RowMutation... mutations)
+    private static RetryPolicy createRetryPolicy(String className)
+    {
+        try
+        {
+            return (RetryPolicy) Class.forName(className).getConstructor(Properties.class).newInstance(properties);
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Unable to create retry policy " + className, e);
+        }
+    }
+
+    /** Retry counters of one kind of cassandra operation */
+    public static class OperationStats
+    {
+        public final AtomicLong requests     = new AtomicLong(0);
+        public final AtomicLong retries      = new AtomicLong(0);
+        public final AtomicLong timeouts     = new AtomicLong(0);
+        public final AtomicLong unavailables = new AtomicLong(0);
+        public final AtomicLong failures     = new AtomicLong(0);
+    }
+
+    // a request earns part of a retry, kept in thousandths
+    private static void depositRetryBudget()
+    {
+        long earned = (long) (retryBudgetRatio * 1000);
+        long max = retryBudgetMax * 1000L;
+
+        while (true)
+        {
+            long current = retryBudget.get();
+            if (current >= max || retryBudget.compareAndSet(current, Math.min(max, current + earned)))
+                return;
+        }
+    }
+
+    private static boolean withdrawRetryBudget()
+    {
+        while (true)
+        {
+            long current = retryBudget.get();
+            if (current < 1000)
+                return false;
+
+            if (retryBudget.compareAndSet(current, current - 1000))
+                return true;
+        }
+    }
+
+    /**
+     * Counts a failed attempt and waits before the next one, returns false
+     * if the operation should give up instead
+     */
+    private static boolean awaitRetry(OperationStats stats, String op, int attempt, long start, Exception e)
+    {
+        if (e instanceof TimeoutException)
+            stats.timeouts.incrementAndGet();
+        else if (e instanceof UnavailableException)
+            stats.unavailables.incrementAndGet();
+
+        if (!backoff(op, attempt, start, e))
+            return false;
+
+        stats.retries.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Waits before attempt + 1 of an operation that started at start, as
+     * the retry policy and budget allow. Returns false if it should give up
+     * instead. For callers with retry loops of their own, so every retry
+     * follows the same policy.
+     */
+    public static boolean backoff(String op, int attempt, long start, Object cause)
+    {
+        long delay = retryPolicy.retryDelay(attempt + 1, System.currentTimeMillis() - start);
+
+        if (delay < 0)
+        {
+            logger.warn(op + " gave up after " + attempt + " attempts: " + cause);
+            return false;
+        }
+
+        if (!withdrawRetryBudget())
+        {
+            logger.warn(op + " retry budget exhausted, failing after " + attempt + " attempts: " + cause);
+            return false;
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug(op + " attempt " + attempt + " failed, retrying in " + delay + "ms: " + cause);
+
+        try
+        {
+            Thread.sleep(delay);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+    public static void robustInsert(ConsistencyLevel cl, IMutation... mutations)
     {
+        writeStats.requests.incrementAndGet();
+        depositRetryBudget();
 
+        long start = System.currentTimeMillis();
         int attempts = 0;
-        while (attempts++ < retryAttempts)
+
+        while (true)
         {
+            attempts++;
 
+            Exception failure;
             try
             {
                 StorageProxy.mutate(Arrays.asList(mutations), cl);
@@ -548,61 +828,85 @@ public class CassandraUtils
             }
             catch (UnavailableException e)
             {
-
+                failure = e;
             }
             catch (TimeoutException e)
             {
-
+                failure = e;
             }
 
-            try
+            if (!awaitRetry(writeStats, "insert", attempts, start, failure))
             {
-                Thread.sleep(retryAttemptSleep);
-            }
-            catch (InterruptedException e)
-            {
-
+                writeStats.failures.incrementAndGet();
+                throw new RuntimeException("insert failed after " + attempts + " attempts", failure);
             }
         }
+    }
 
-        throw new RuntimeException("insert failed after 10 attempts");
+    /**
+     * Writes the mutations in a single attempt. For writes that aren't
+     * idempotent, like counter increments, since a timed out write may still
+     * have been applied.
+     */
+    public static void insertOnce(ConsistencyLevel cl, IMutation... mutations) throws UnavailableException,
+            TimeoutException
+    {
+        writeStats.requests.incrementAndGet();
+
+        try
+        {
+            StorageProxy.mutate(Arrays.asList(mutations), cl);
+        }
+        catch (UnavailableException e)
+        {
+            writeStats.unavailables.incrementAndGet();
+            writeStats.failures.incrementAndGet();
+            throw e;
+        }
+        catch (TimeoutException e)
+        {
+            writeStats.timeouts.incrementAndGet();
+            writeStats.failures.incrementAndGet();
+            throw e;
+        }
     }
 
     public static List<Row> robustRead(ConsistencyLevel cl, ReadCommand... rc) throws IOException
     {
-        List<Row> rows = null;
+        readStats.requests.incrementAndGet();
+        depositRetryBudget();
+
+        long start = System.currentTimeMillis();
         int attempts = 0;
-        while (attempts++ < retryAttempts)
+
+        while (true)
         {
+            attempts++;
+
+            Exception failure;
             try
             {
-                rows = StorageProxy.read(Arrays.asList(rc), cl);
-                return rows;
+                return StorageProxy.read(Arrays.asList(rc), cl);
             }
-            catch (UnavailableException e1)
+            catch (UnavailableException e)
             {
-
+                failure = e;
             }
-            catch (TimeoutException e1)
+            catch (TimeoutException e)
             {
-
+                failure = e;
             }
             catch (InvalidRequestException e)
             {
                 throw new IOException(e);
             }
 
-            try
+            if (!awaitRetry(readStats, "read", attempts, start, failure))
             {
-                Thread.sleep(retryAttemptSleep);
-            }
-            catch (InterruptedException e)
-            {
-
+                readStats.failures.incrementAndGet();
+                throw new IOException("Read command failed after " + attempts + " attempts", failure);
             }
         }
-
-        throw new IOException("Read command failed after " + retryAttempts + "attempts");
     }
 
     public static List<Row> robustRead(ByteBuffer key, QueryPath qp, List<ByteBuffer> columns, ConsistencyLevel cl)
@@ -643,6 +947,26 @@ public class CassandraUtils
         return hashBuf;
     }
 
+    public static ByteBuffer docStatsKey(String indexName)
+    {
+        return hashKeyBytes(indexName.getBytes(UTF_8), delimeterBytes, docStatsField.getBytes(UTF_8));
+    }
+
+    public static ByteBuffer maxDocsKey(String indexName)
+    {
+        return hashKeyBytes(indexName.getBytes(UTF_8), delimeterBytes, maxDocsField.getBytes(UTF_8));
+    }
+
+    public static ByteBuffer deletedDocsKey(String indexName)
+    {
+        return hashKeyBytes(indexName.getBytes(UTF_8), delimeterBytes, deletedDocsField.getBytes(UTF_8));
+    }
+
+    public static ByteBuffer normsKey(String indexName, String field)
+    {
+        return hashKeyBytes(indexName.getBytes(UTF_8), delimeterBytes, field.getBytes(UTF_8));
+    }
+
     public static ByteBuffer hashKeyBytes(byte[]... keys)
     {
         byte hashedKey[] = null;
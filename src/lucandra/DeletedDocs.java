@@ -0,0 +1,158 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * The docs of an index that are deleted but still have postings.
+ *
+ * Each index keeps one Docs row holding a column per deleted doc, named by
+ * the doc id as a big endian int, so marking a doc is a single column write
+ * with nothing to read first. Marking a doc twice is harmless. Readers load
+ * the row into a bitset and skip these docs. The purge removes the postings
+ * of every doc it read, then deletes just those marks, each at the
+ * timestamp it was read with. Marks are stamped when they are queued, so a
+ * row tombstone could also hide older marks written after the read.
+ */
+public class DeletedDocs
+{
+    private static final int pageSize = 4096;
+
+    public static void mark(Map<ByteBuffer, RowMutation> mutations, String indexName, int docNumber)
+    {
+        CassandraUtils.addMutations(mutations, CassandraUtils.docColumnFamily, ByteBufferUtil.bytes(docNumber),
+                CassandraUtils.deletedDocsKey(indexName), ByteBufferUtil.EMPTY_BYTE_BUFFER);
+    }
+
+    /** Drops the marks as read by readMarks, doc id to mark timestamp */
+    public static void clear(Map<ByteBuffer, RowMutation> mutations, String indexName, Map<Integer, Long> marks)
+    {
+        ByteBuffer key = CassandraUtils.deletedDocsKey(indexName);
+
+        RowMutation rm = mutations.get(key);
+        if (rm == null)
+        {
+            rm = new RowMutation(CassandraUtils.keySpace, key);
+            mutations.put(key, rm);
+        }
+
+        for (Map.Entry<Integer, Long> mark : marks.entrySet())
+            rm.delete(new QueryPath(CassandraUtils.docColumnFamily, null, ByteBufferUtil.bytes(mark.getKey())), mark
+                    .getValue());
+    }
+
+    /** The docs of the list that aren't marked yet */
+    public static List<Integer> unmarked(String indexName, Collection<Integer> docNumbers) throws IOException
+    {
+        List<ByteBuffer> names = new ArrayList<ByteBuffer>(docNumbers.size());
+        for (Integer docNumber : docNumbers)
+            names.add(ByteBufferUtil.bytes(docNumber));
+
+        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.deletedDocsKey(indexName),
+                CassandraUtils.metaColumnPath, names, CassandraUtils.consistency);
+
+        ColumnFamily cf = rows.isEmpty() ? null : rows.get(0).cf;
+
+        List<Integer> unmarked = new ArrayList<Integer>(docNumbers.size());
+        for (Integer docNumber : docNumbers)
+        {
+            IColumn col = cf == null ? null : cf.getColumn(ByteBufferUtil.bytes(docNumber));
+
+            if (col == null || !col.isLive())
+                unmarked.add(docNumber);
+        }
+
+        return unmarked;
+    }
+
+    /**
+     * Reads up to limit deleted docs, in doc id order. Returns null if
+     * there are none.
+     */
+    public static OpenBitSet read(String indexName, int limit) throws IOException
+    {
+        SortedMap<Integer, Long> marks = readMarks(indexName, limit);
+
+        if (marks.isEmpty())
+            return null;
+
+        OpenBitSet deleted = new OpenBitSet();
+        for (Integer docNumber : marks.keySet())
+            deleted.set(docNumber);
+
+        return deleted;
+    }
+
+    /**
+     * Reads up to limit deleted docs, in doc id order, along with the
+     * timestamp of each mark. Only marks read this way may be cleared.
+     */
+    public static SortedMap<Integer, Long> readMarks(String indexName, int limit) throws IOException
+    {
+        ByteBuffer key = CassandraUtils.deletedDocsKey(indexName);
+        ByteBuffer startCol = ByteBufferUtil.EMPTY_BYTE_BUFFER;
+
+        SortedMap<Integer, Long> marks = new TreeMap<Integer, Long>();
+        int count = 0;
+
+        while (count < limit)
+        {
+            ReadCommand cmd = new SliceFromReadCommand(CassandraUtils.keySpace, key, new ColumnParent(
+                    CassandraUtils.docColumnFamily), startCol, ByteBufferUtil.EMPTY_BYTE_BUFFER, false, pageSize);
+
+            List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, cmd);
+
+            if (rows.isEmpty() || rows.get(0).cf == null)
+                break;
+
+            int columns = 0;
+            for (IColumn col : rows.get(0).cf.getSortedColumns())
+            {
+                columns++;
+
+                // the start of the slice was read by the previous page
+                if (col.name().equals(startCol))
+                    continue;
+
+                startCol = col.name();
+
+                if (!col.isLive() || count >= limit)
+                    continue;
+
+                marks.put(ByteBufferUtil.toInt(col.name()), col.timestamp());
+                count++;
+            }
+
+            if (columns < pageSize)
+                break;
+        }
+
+        return marks;
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * The docs a reader cache has read, held as a hash set while few docs are
+ * in it and as a bitset once that's smaller.
+ */
+public class DocHits
+{
+    // sparse costs about 8 bytes a doc, dense one bit for every doc
+    private static final int sparseRatio = 64;
+
+    private static final int empty       = -1;
+    private static final int removed     = -2;
+
+    // open addressing table of doc ids
+    private int[]            docs;
+    private int              size;
+    private int              used;
+
+    private OpenBitSet       dense;
+
+    public DocHits(int maxDoc)
+    {
+        if (maxDoc <= 8192)
+        {
+            dense = new OpenBitSet(maxDoc);
+        }
+        else
+        {
+            docs = new int[16];
+            Arrays.fill(docs, empty);
+        }
+    }
+
+    public synchronized boolean get(int doc)
+    {
+        if (dense != null)
+            return dense.get(doc);
+
+        return docs[DocNorms.find(docs, doc)] == doc;
+    }
+
+    public synchronized void set(int doc, int maxDoc)
+    {
+        if (dense == null && (size + 1) * sparseRatio > maxDoc)
+            toDense(maxDoc);
+
+        if (dense != null)
+        {
+            dense.set(doc);
+            return;
+        }
+
+        int slot = DocNorms.find(docs, doc);
+
+        if (docs[slot] == doc)
+            return;
+
+        docs[slot] = doc;
+        size++;
+        used++;
+
+        // keep the table at most half full
+        if (used * 2 > docs.length)
+            rehash(size * 4);
+    }
+
+    public synchronized void clear(int doc)
+    {
+        if (dense != null)
+        {
+            dense.clear(doc);
+            return;
+        }
+
+        int slot = DocNorms.find(docs, doc);
+
+        if (docs[slot] == doc)
+        {
+            docs[slot] = removed;
+            size--;
+        }
+    }
+
+    /** The docs hit, in order */
+    public synchronized int[] toArray()
+    {
+        if (dense != null)
+        {
+            int[] hits = new int[(int) dense.cardinality()];
+
+            int i = 0;
+            for (int doc = dense.nextSetBit(0); doc >= 0; doc = dense.nextSetBit(doc + 1))
+                hits[i++] = doc;
+
+            return hits;
+        }
+
+        int[] hits = new int[size];
+
+        int i = 0;
+        for (int doc : docs)
+        {
+            if (doc >= 0)
+                hits[i++] = doc;
+        }
+
+        Arrays.sort(hits);
+
+        return hits;
+    }
+
+    public synchronized boolean isDense()
+    {
+        return dense != null;
+    }
+
+    public synchronized long ramBytesUsed()
+    {
+        return dense != null ? dense.getBits().length * 8L : docs.length * 4L;
+    }
+
+    private void toDense(int maxDoc)
+    {
+        dense = new OpenBitSet(maxDoc);
+
+        for (int doc : docs)
+        {
+            if (doc >= 0)
+                dense.set(doc);
+        }
+
+        docs = null;
+        size = 0;
+        used = 0;
+    }
+
+    private void rehash(int capacity)
+    {
+        int[] oldDocs = docs;
+
+        docs = new int[Math.max(16, Integer.highestOneBit(capacity - 1) << 1)];
+        Arrays.fill(docs, empty);
+        used = size;
+
+        for (int doc : oldDocs)
+        {
+            if (doc >= 0)
+                docs[DocNorms.find(docs, doc)] = doc;
+        }
+    }
+}
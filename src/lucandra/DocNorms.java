@@ -0,0 +1,189 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.util.Arrays;
+
+/**
+ * The norms of one field, held sparse while few docs have been read and
+ * switched to a plain array once that's smaller or the array is asked for.
+ *
+ * Docs without a norm read as 0, as in the array.
+ */
+public class DocNorms
+{
+    // sparse costs about 10 bytes a doc, dense one byte for every doc
+    private static final int sparseRatio = 10;
+
+    private static final int empty       = -1;
+
+    // open addressing table of doc ids and their norms
+    private int[]            docs;
+    private byte[]           values;
+    private int              size;
+
+    private byte[]           dense;
+
+    public DocNorms(int maxDoc)
+    {
+        if (maxDoc <= 1024)
+        {
+            dense = new byte[maxDoc];
+        }
+        else
+        {
+            docs = new int[16];
+            values = new byte[16];
+            Arrays.fill(docs, empty);
+        }
+    }
+
+    public synchronized byte get(int doc)
+    {
+        if (dense != null)
+            return doc < dense.length ? dense[doc] : 0;
+
+        int slot = find(docs, doc);
+
+        return docs[slot] == empty ? 0 : values[slot];
+    }
+
+    public synchronized void set(int doc, byte norm, int maxDoc)
+    {
+        if (dense == null && (size + 1) * sparseRatio > maxDoc)
+            toDense(maxDoc);
+
+        if (dense != null)
+        {
+            if (doc >= dense.length)
+                dense = Arrays.copyOf(dense, Math.max(maxDoc, doc + 1));
+
+            dense[doc] = norm;
+            return;
+        }
+
+        int slot = find(docs, doc);
+
+        if (docs[slot] == empty)
+        {
+            docs[slot] = doc;
+            size++;
+        }
+
+        values[slot] = norm;
+
+        // keep the table at most half full
+        if (size * 2 > docs.length)
+            rehash(docs.length * 2);
+    }
+
+    /** Resets the norm of a doc that has one */
+    public synchronized void clear(int doc)
+    {
+        if (dense != null)
+        {
+            if (doc < dense.length)
+                dense[doc] = 0;
+            return;
+        }
+
+        int slot = find(docs, doc);
+
+        if (docs[slot] != empty)
+            values[slot] = 0;
+    }
+
+    /**
+     * The norms as an array indexed by doc, as IndexReader.norms returns
+     * them. Later norms are written to the same array.
+     */
+    public synchronized byte[] toArray(int maxDoc)
+    {
+        if (dense == null)
+            toDense(maxDoc);
+        else if (dense.length < maxDoc)
+            dense = Arrays.copyOf(dense, maxDoc);
+
+        return dense;
+    }
+
+    public synchronized boolean isDense()
+    {
+        return dense != null;
+    }
+
+    public synchronized long ramBytesUsed()
+    {
+        return dense != null ? dense.length : docs.length * 5L;
+    }
+
+    private void toDense(int maxDoc)
+    {
+        int length = maxDoc;
+        for (int i = 0; i < docs.length; i++)
+        {
+            if (docs[i] >= length)
+                length = docs[i] + 1;
+        }
+
+        dense = new byte[length];
+        for (int i = 0; i < docs.length; i++)
+        {
+            if (docs[i] != empty)
+                dense[docs[i]] = values[i];
+        }
+
+        docs = null;
+        values = null;
+        size = 0;
+    }
+
+    private void rehash(int capacity)
+    {
+        int[] oldDocs = docs;
+        byte[] oldValues = values;
+
+        docs = new int[capacity];
+        values = new byte[capacity];
+        Arrays.fill(docs, empty);
+
+        for (int i = 0; i < oldDocs.length; i++)
+        {
+            if (oldDocs[i] == empty)
+                continue;
+
+            int slot = find(docs, oldDocs[i]);
+            docs[slot] = oldDocs[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    // slot holding doc, or the empty slot it would go in
+    static int find(int[] table, int doc)
+    {
+        int mask = table.length - 1;
+        int slot = (doc * 0x9E3779B9) >>> 7 & mask;
+
+        while (table[slot] != empty && table[slot] != doc)
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+}
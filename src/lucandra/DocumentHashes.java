@@ -0,0 +1,266 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.IColumn;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+
+/**
+ * A content hash per field of a document, kept with it so an update can
+ * tell which fields changed.
+ *
+ * Each field also records the positions its tokens started and ended at,
+ * an unchanged field is only reused if it still starts at the same
+ * position. Fields given as token streams or readers, or whose instances
+ * aren't next to each other, can't be hashed and always count as changed.
+ *
+ * Encoded layout: version, complete flag, field count, then per field its
+ * name, a hashed flag, the hash, start and end position.
+ */
+public class DocumentHashes
+{
+    private static final byte         version  = 1;
+
+    private final Map<String, Long>   hashes   = new LinkedHashMap<String, Long>();
+    private final Map<String, int[]>  spans    = new HashMap<String, int[]>();
+    private boolean                   complete = true;
+
+    /** Hashes the fields of a doc, positions are set as it is indexed */
+    public static DocumentHashes compute(Document doc)
+    {
+        DocumentHashes docHashes = new DocumentHashes();
+
+        Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+        Set<String> unhashable = new HashSet<String>();
+        String last = null;
+
+        for (Fieldable field : doc.getFields())
+        {
+            String name = field.name();
+
+            // positions of split up instances depend on what's between them
+            if (digests.containsKey(name) && !name.equals(last))
+                unhashable.add(name);
+
+            last = name;
+
+            MessageDigest digest = digests.get(name);
+            if (digest == null)
+            {
+                digest = newDigest();
+                digests.put(name, digest);
+            }
+
+            if (!update(digest, field, doc.getBoost()))
+                unhashable.add(name);
+        }
+
+        // unhashable fields are kept by name, without a hash
+        for (Map.Entry<String, MessageDigest> e : digests.entrySet())
+        {
+            if (unhashable.contains(e.getKey()))
+            {
+                docHashes.complete = false;
+                docHashes.hashes.put(e.getKey(), null);
+                continue;
+            }
+
+            docHashes.hashes.put(e.getKey(), ByteBuffer.wrap(e.getValue().digest()).getLong());
+        }
+
+        return docHashes;
+    }
+
+    // adds what this field instance indexes and stores
+    private static boolean update(MessageDigest digest, Fieldable field, float docBoost)
+    {
+        int flags = (field.isIndexed() ? 1 : 0) | (field.isTokenized() ? 2 : 0) | (field.isStored() ? 4 : 0)
+                | (field.getOmitNorms() ? 8 : 0) | (field.getOmitTermFreqAndPositions() ? 16 : 0)
+                | (field.isTermVectorStored() ? 32 : 0) | (field.isStorePositionWithTermVector() ? 64 : 0)
+                | (field.isStoreOffsetWithTermVector() ? 128 : 0) | (field.isBinary() ? 256 : 0);
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(flags);
+        header.putInt(Float.floatToIntBits(docBoost * field.getBoost()));
+        digest.update(header.array());
+
+        if (field instanceof NumericField)
+        {
+            NumericField numeric = (NumericField) field;
+
+            if (numeric.getNumericValue() == null)
+                return false;
+
+            digest.update((numeric.getNumericValue().getClass().getName() + ":" + numeric.getNumericValue() + ":" + numeric
+                    .getPrecisionStep()).getBytes(CassandraUtils.UTF_8));
+        }
+        else if (field.isBinary())
+        {
+            digest.update(field.getBinaryValue(), field.getBinaryOffset(), field.getBinaryLength());
+        }
+        else if (field.stringValue() != null)
+        {
+            digest.update(field.stringValue().getBytes(CassandraUtils.UTF_8));
+        }
+        else
+        {
+            // token streams and readers can only be read once
+            return false;
+        }
+
+        // instances of a field are hashed one after another
+        digest.update((byte) 0);
+
+        return true;
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException("This JVM doesn't support MD5", e);
+        }
+    }
+
+    public void setPositions(String field, int start, int end)
+    {
+        spans.put(field, new int[] { start, end });
+    }
+
+    /**
+     * True if the field has the same content as in the old doc and starts
+     * at the same position, so its terms can be kept
+     */
+    public boolean isUnchanged(String field, DocumentHashes old, int start)
+    {
+        Long hash = hashes.get(field);
+        Long oldHash = old.hashes.get(field);
+        int[] oldSpan = old.spans.get(field);
+
+        return hash != null && hash.equals(oldHash) && oldSpan != null && oldSpan[0] == start;
+    }
+
+    /** Where the field of the old doc left the position */
+    public int endPosition(String field)
+    {
+        return spans.get(field)[1];
+    }
+
+    /** True if every field of both docs is hashed and the same, in order */
+    public boolean sameContent(DocumentHashes old)
+    {
+        return complete && old.complete
+                && new ArrayList<String>(hashes.keySet()).equals(new ArrayList<String>(old.hashes.keySet()))
+                && hashes.equals(old.hashes);
+    }
+
+    /** All fields of the doc, hashed or not */
+    public Set<String> getFields()
+    {
+        return hashes.keySet();
+    }
+
+    public ByteBuffer serialize()
+    {
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 + hashes.size() * 24);
+
+            out.write(version);
+            out.write(complete ? 1 : 0);
+            out.write(CassandraUtils.writeVInt(hashes.size()));
+
+            for (Map.Entry<String, Long> e : hashes.entrySet())
+            {
+                byte[] name = e.getKey().getBytes(CassandraUtils.UTF_8);
+                int[] span = spans.get(e.getKey());
+
+                out.write(CassandraUtils.writeVInt(name.length));
+                out.write(name);
+                out.write(e.getValue() == null ? 0 : 1);
+                out.write(ByteBuffer.allocate(8).putLong(e.getValue() == null ? 0 : e.getValue()).array());
+                out.write(CassandraUtils.writeVInt(span == null ? 0 : span[0]));
+                out.write(CassandraUtils.writeVInt(span == null ? 0 : span[1]));
+            }
+
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static DocumentHashes deserialize(ByteBuffer bytes_)
+    {
+        ByteBuffer bytes = bytes_.duplicate(); // don't mutate the original
+
+        byte v = bytes.get();
+        if (v != version)
+            throw new IllegalStateException("Unknown document hashes version: " + v);
+
+        DocumentHashes docHashes = new DocumentHashes();
+        docHashes.complete = bytes.get() == 1;
+
+        int numFields = CassandraUtils.mreadVInt(bytes);
+        for (int i = 0; i < numFields; i++)
+        {
+            byte[] name = new byte[CassandraUtils.mreadVInt(bytes)];
+            bytes.get(name);
+
+            String field = new String(name, CassandraUtils.UTF_8);
+
+            boolean hashed = bytes.get() == 1;
+            long hash = bytes.getLong();
+
+            docHashes.hashes.put(field, hashed ? hash : null);
+            docHashes.spans.put(field, new int[] { CassandraUtils.mreadVInt(bytes), CassandraUtils.mreadVInt(bytes) });
+        }
+
+        return docHashes;
+    }
+
+    /** The hashes kept in a doc row, null for docs written without them */
+    public static DocumentHashes read(ColumnFamily cf)
+    {
+        if (cf == null)
+            return null;
+
+        IColumn col = cf.getColumn(CassandraUtils.documentHashesFieldBytes);
+        if (col == null || !col.isLive())
+            return null;
+
+        return deserialize(col.value());
+    }
+}
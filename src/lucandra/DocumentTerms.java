@@ -0,0 +1,220 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import lucandra.serializers.thrift.DocumentMetadata;
+import lucandra.serializers.thrift.ThriftTerm;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.IColumn;
+import org.apache.lucene.index.Term;
+
+/**
+ * The unique terms of a document, kept with it so they can be deleted.
+ *
+ * Stored sorted in the TERMS column of the doc, each text sharing a prefix
+ * with the previous text of its field. Docs written before this hold their
+ * terms as a thrift list in the META column.
+ *
+ * Encoded layout: version, field count, then per field its name, term count
+ * and for each term the shared prefix length and the remaining bytes.
+ */
+public class DocumentTerms
+{
+    private static final byte     version = 1;
+
+    private final SortedSet<Term> terms   = new TreeSet<Term>();
+
+    public void add(String field, String text)
+    {
+        terms.add(new Term(field, text));
+    }
+
+    public SortedSet<Term> getTerms()
+    {
+        return terms;
+    }
+
+    public List<Term> getTerms(String field)
+    {
+        List<Term> fieldTerms = new ArrayList<Term>();
+        for (Term term : terms)
+        {
+            if (term.field().equals(field))
+                fieldTerms.add(term);
+        }
+
+        return fieldTerms;
+    }
+
+    public Set<String> getFields()
+    {
+        Set<String> fields = new LinkedHashSet<String>();
+        for (Term term : terms)
+            fields.add(term.field());
+
+        return fields;
+    }
+
+    public int size()
+    {
+        return terms.size();
+    }
+
+    public ByteBuffer serialize()
+    {
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 + terms.size() * 8);
+
+            out.write(version);
+            out.write(CassandraUtils.writeVInt(getFields().size()));
+
+            Iterator<Term> it = terms.iterator();
+            Term term = it.hasNext() ? it.next() : null;
+
+            while (term != null)
+            {
+                String field = term.field();
+
+                List<byte[]> texts = new ArrayList<byte[]>();
+                while (term != null && term.field().equals(field))
+                {
+                    texts.add(term.text().getBytes(CassandraUtils.UTF_8));
+                    term = it.hasNext() ? it.next() : null;
+                }
+
+                writeBytes(out, field.getBytes(CassandraUtils.UTF_8));
+                out.write(CassandraUtils.writeVInt(texts.size()));
+
+                byte[] last = new byte[0];
+                for (byte[] text : texts)
+                {
+                    int prefix = 0;
+                    while (prefix < last.length && prefix < text.length && last[prefix] == text[prefix])
+                        prefix++;
+
+                    out.write(CassandraUtils.writeVInt(prefix));
+                    out.write(CassandraUtils.writeVInt(text.length - prefix));
+                    out.write(text, prefix, text.length - prefix);
+
+                    last = text;
+                }
+            }
+
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static DocumentTerms deserialize(ByteBuffer bytes_)
+    {
+        ByteBuffer bytes = bytes_.duplicate(); // don't mutate the original
+
+        byte v = bytes.get();
+        if (v != version)
+            throw new IllegalStateException("Unknown document terms version: " + v);
+
+        DocumentTerms docTerms = new DocumentTerms();
+
+        int numFields = CassandraUtils.mreadVInt(bytes);
+        for (int i = 0; i < numFields; i++)
+        {
+            String field = new String(readBytes(bytes, new byte[0], 0), CassandraUtils.UTF_8);
+
+            int numTerms = CassandraUtils.mreadVInt(bytes);
+
+            byte[] last = new byte[0];
+            for (int j = 0; j < numTerms; j++)
+            {
+                int prefix = CassandraUtils.mreadVInt(bytes);
+                last = readBytes(bytes, last, prefix);
+
+                docTerms.add(field, new String(last, CassandraUtils.UTF_8));
+            }
+        }
+
+        return docTerms;
+    }
+
+    public static DocumentTerms fromMetadata(DocumentMetadata metadata)
+    {
+        DocumentTerms docTerms = new DocumentTerms();
+
+        if (metadata.getTerms() != null)
+        {
+            for (ThriftTerm term : metadata.getTerms())
+                docTerms.add(term.getField(), new String(term.getText(), CassandraUtils.UTF_8));
+        }
+
+        return docTerms;
+    }
+
+    /**
+     * The terms kept in a doc row, from the TERMS column or the META column
+     * of older docs. Returns null if the row has neither.
+     */
+    public static DocumentTerms read(ColumnFamily cf) throws IOException
+    {
+        if (cf == null)
+            return null;
+
+        return read(cf.getColumn(CassandraUtils.documentTermsFieldBytes), cf
+                .getColumn(CassandraUtils.documentMetaFieldBytes));
+    }
+
+    /** As read(cf), from the TERMS and META columns, either may be null */
+    public static DocumentTerms read(IColumn termsCol, IColumn metaCol) throws IOException
+    {
+        if (termsCol != null && termsCol.isLive())
+            return deserialize(termsCol.value());
+
+        if (metaCol != null && metaCol.isLive())
+            return fromMetadata(IndexWriter.fromBytesUsingThrift(metaCol.value()));
+
+        return null;
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] b) throws IOException
+    {
+        out.write(CassandraUtils.writeVInt(b.length));
+        out.write(b);
+    }
+
+    // reads a length prefixed suffix onto the first prefix bytes of last
+    private static byte[] readBytes(ByteBuffer bytes, byte[] last, int prefix)
+    {
+        int len = CassandraUtils.mreadVInt(bytes);
+
+        byte[] b = new byte[prefix + len];
+        System.arraycopy(last, 0, b, 0, prefix);
+        bytes.get(b, prefix, len);
+
+        return b;
+    }
+}
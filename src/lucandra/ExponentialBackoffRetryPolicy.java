@@ -0,0 +1,68 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Doubles the wait after each failed attempt, up to a maximum, and gives
+ * up once the request deadline would pass.
+ *
+ * Half of each wait is random so threads that failed together don't all
+ * retry together.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy
+{
+    private final int    maxAttempts;
+    private final long   baseDelay;
+    private final long   maxDelay;
+    private final long   deadline;
+
+    private final Random random = new Random();
+
+    public ExponentialBackoffRetryPolicy(Properties properties)
+    {
+        maxAttempts = Integer.valueOf(properties.getProperty("cassandra.retries", "1024"));
+        baseDelay = Long.valueOf(properties.getProperty("cassandra.retries.sleep", "100"));
+        maxDelay = Long.valueOf(properties.getProperty("cassandra.retries.sleep.max", "2000"));
+        deadline = Long.valueOf(properties.getProperty("cassandra.retries.deadline", "10000"));
+    }
+
+    public long retryDelay(int attempt, long elapsed)
+    {
+        if (attempt > maxAttempts)
+            return -1;
+
+        // base * 2^(retries so far), without overflowing the shift
+        long delay = attempt >= 32 ? maxDelay : Math.min(maxDelay, baseDelay << (attempt - 2));
+
+        long half = delay / 2;
+        synchronized (random)
+        {
+            delay = half + (long) (random.nextDouble() * (delay - half + 1));
+        }
+
+        if (elapsed + delay > deadline)
+            return -1;
+
+        return delay;
+    }
+}
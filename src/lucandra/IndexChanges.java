@@ -0,0 +1,229 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.lucene.index.Term;
+
+/**
+ * The terms and documents of an index changed between two cache flushes.
+ *
+ * Writers collect these as documents are added or removed and store them
+ * with the cache marker, so readers can drop only the affected entries
+ * instead of their whole cache.
+ *
+ * Once too many changes pile up the set is marked incomplete and readers
+ * fall back to clearing everything.
+ */
+public class IndexChanges
+{
+    // past this it's cheaper to rebuild the cache
+    public static final int      maxTerms = 65536;
+
+    private final SortedSet<Term>    terms  = new TreeSet<Term>();
+    private final SortedSet<Integer> docIds = new TreeSet<Integer>();
+    private boolean                  complete = true;
+
+    public synchronized void add(int docId, Collection<Term> docTerms)
+    {
+        if (!complete)
+            return;
+
+        docIds.add(docId);
+
+        if (docTerms != null)
+            terms.addAll(docTerms);
+
+        if (terms.size() > maxTerms)
+            markIncomplete();
+    }
+
+    /** Terms whose cached postings or counts are stale, with no doc to drop */
+    public synchronized void addTerms(Collection<Term> changedTerms)
+    {
+        if (!complete)
+            return;
+
+        terms.addAll(changedTerms);
+
+        if (terms.size() > maxTerms)
+            markIncomplete();
+    }
+
+    public synchronized void addAll(IndexChanges other)
+    {
+        if (!complete)
+            return;
+
+        if (!other.complete)
+        {
+            markIncomplete();
+            return;
+        }
+
+        terms.addAll(other.terms);
+        docIds.addAll(other.docIds);
+
+        if (terms.size() > maxTerms)
+            markIncomplete();
+    }
+
+    /** Moves everything collected so far into a new set */
+    public synchronized IndexChanges drain()
+    {
+        IndexChanges drained = new IndexChanges();
+
+        drained.terms.addAll(terms);
+        drained.docIds.addAll(docIds);
+        drained.complete = complete;
+
+        terms.clear();
+        docIds.clear();
+        complete = true;
+
+        return drained;
+    }
+
+    private void markIncomplete()
+    {
+        complete = false;
+        terms.clear();
+        docIds.clear();
+    }
+
+    public synchronized boolean isComplete()
+    {
+        return complete;
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return complete && docIds.isEmpty() && terms.isEmpty();
+    }
+
+    public synchronized SortedSet<Term> getTerms()
+    {
+        return new TreeSet<Term>(terms);
+    }
+
+    public synchronized SortedSet<Integer> getDocIds()
+    {
+        return new TreeSet<Integer>(docIds);
+    }
+
+    public synchronized Set<String> getFields()
+    {
+        Set<String> fields = new HashSet<String>();
+        for (Term term : terms)
+            fields.add(term.field());
+
+        return fields;
+    }
+
+    /**
+     * Layout: complete flag, doc count, doc id deltas, term count, then
+     * each field and text as length prefixed UTF-8
+     */
+    public synchronized ByteBuffer serialize()
+    {
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 + docIds.size() * 3 + terms.size() * 16);
+
+            out.write(complete ? 1 : 0);
+
+            if (complete)
+            {
+                out.write(CassandraUtils.writeVInt(docIds.size()));
+
+                int last = 0;
+                for (Integer docId : docIds)
+                {
+                    out.write(CassandraUtils.writeVInt(docId - last));
+                    last = docId;
+                }
+
+                out.write(CassandraUtils.writeVInt(terms.size()));
+
+                for (Term term : terms)
+                {
+                    byte[] field = term.field().getBytes("UTF-8");
+                    byte[] text = term.text().getBytes("UTF-8");
+
+                    out.write(CassandraUtils.writeVInt(field.length));
+                    out.write(field);
+                    out.write(CassandraUtils.writeVInt(text.length));
+                    out.write(text);
+                }
+            }
+
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static IndexChanges deserialize(ByteBuffer bytes_)
+    {
+        ByteBuffer bytes = bytes_.duplicate(); // don't mutate the original
+
+        IndexChanges changes = new IndexChanges();
+
+        if (bytes.get() == 0)
+        {
+            changes.complete = false;
+            return changes;
+        }
+
+        int numDocs = CassandraUtils.mreadVInt(bytes);
+        for (int i = 0, last = 0; i < numDocs; i++)
+        {
+            last += CassandraUtils.mreadVInt(bytes);
+            changes.docIds.add(last);
+        }
+
+        int numTerms = CassandraUtils.mreadVInt(bytes);
+        for (int i = 0; i < numTerms; i++)
+        {
+            String field = readString(bytes);
+            String text = readString(bytes);
+
+            changes.terms.add(new Term(field, text));
+        }
+
+        return changes;
+    }
+
+    private static String readString(ByteBuffer bytes)
+    {
+        int len = CassandraUtils.mreadVInt(bytes);
+
+        byte[] str = new byte[len];
+        bytes.get(str);
+
+        return new String(str, CassandraUtils.UTF_8);
+    }
+}
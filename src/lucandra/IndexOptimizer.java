@@ -0,0 +1,545 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Rewrites the term rows of one index without their dead columns.
+ *
+ * The term list is walked a page at a time. A term row holding deleted
+ * columns, removal markers or (with term blocks) more columns than its
+ * live docs need is deleted and written again with only the live
+ * postings. Terms without any live docs are dropped from the term list.
+ *
+ * A row is deleted as of the newest column read from it and rewritten
+ * one tick later. Writes that follow the ones it read, postings or
+ * deletes, win over the copy however long the optimize runs. Docs marked
+ * as deleted are left out of the copy. Reads are throttled to
+ * solandra.index.optimize.rate.mb per second.
+ *
+ * With term stats on, each term's doc count counter is compared with its
+ * live postings and corrected, which repairs drift from counter writes
+ * that timed out, and so is the live doc count. A run that recounted
+ * everything marks the stats as counted, so readers of an index that had
+ * docs before the stats were kept start trusting them. Docs indexed while
+ * the optimize runs can leave a small error until the next run.
+ */
+public class IndexOptimizer
+{
+    private static final Logger       logger         = Logger.getLogger(IndexOptimizer.class);
+
+    // terms read per page of the term list
+    private static final int          pageSize       = 128;
+
+    private static final long         maxBytesPerSec = Long.valueOf(CassandraUtils.properties.getProperty(
+                                                             "solandra.index.optimize.rate.mb", "4")) * 1024 * 1024;
+
+    private static final ColumnParent termListParent = new ColumnParent(CassandraUtils.metaInfoColumnFamily);
+
+    private static final AtomicLong   totalReclaimed = new AtomicLong(0);
+    private static final AtomicLong   totalMillis    = new AtomicLong(0);
+
+    private final String              indexName;
+    private final byte[]              indexNameBytes;
+
+    private long                      termsRead;
+    private long                      termsRewritten;
+    private long                      termsDropped;
+    private long                      termsRecounted;
+    private boolean                   recountsLost;
+    private long                      bytesRead;
+    private long                      bytesReclaimed;
+    private long                      millis;
+
+    public IndexOptimizer(String indexName) throws IOException
+    {
+        this.indexName = indexName;
+        indexNameBytes = indexName.getBytes("UTF-8");
+    }
+
+    public IndexOptimizer run() throws IOException
+    {
+        long start = System.currentTimeMillis();
+
+        // marked later still hides the docs, the mark isn't rewritten
+        OpenBitSet deleted = DeletedDocs.read(indexName, Integer.MAX_VALUE);
+
+        ByteBuffer termsListKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, "terms"
+                .getBytes("UTF-8"));
+
+        ByteBuffer startCol = ByteBufferUtil.EMPTY_BYTE_BUFFER;
+
+        while (!Thread.currentThread().isInterrupted())
+        {
+            List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, new SliceFromReadCommand(
+                    CassandraUtils.keySpace, termsListKey, termListParent, startCol, ByteBufferUtil.EMPTY_BYTE_BUFFER,
+                    false, pageSize));
+
+            if (rows.isEmpty() || rows.get(0).cf == null)
+                break;
+
+            Map<ByteBuffer, Term> termKeys = new LinkedHashMap<ByteBuffer, Term>();
+            Map<ByteBuffer, IColumn> termCols = new HashMap<ByteBuffer, IColumn>();
+
+            int columns = 0;
+            for (IColumn col : rows.get(0).cf.getSortedColumns())
+            {
+                columns++;
+
+                // the start of the slice was read by the previous page
+                if (col.name().equals(startCol))
+                    continue;
+
+                startCol = col.name();
+                bytesRead += col.size();
+
+                if (!col.isLive())
+                    continue;
+
+                Term term = CassandraUtils.parseTerm(ByteBufferUtil.string(col.name(), CassandraUtils.UTF_8));
+                ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, term
+                        .field().getBytes("UTF-8"), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
+
+                termKeys.put(key, term);
+                termCols.put(key, col);
+            }
+
+            if (!termKeys.isEmpty())
+                rewrite(termsListKey, termKeys, termCols, deleted);
+
+            throttle(start);
+
+            if (columns < pageSize)
+                break;
+        }
+
+        if (CassandraUtils.useTermStats && !Thread.currentThread().isInterrupted() && recountLiveDocs(start)
+                && !recountsLost)
+            IndexWriter.markCounted(indexName);
+
+        millis = System.currentTimeMillis() - start;
+
+        totalReclaimed.addAndGet(getBytesReclaimed());
+        totalMillis.addAndGet(millis);
+
+        logger.info("Optimized " + indexName + ": " + this);
+
+        return this;
+    }
+
+    private void rewrite(ByteBuffer termsListKey, Map<ByteBuffer, Term> termKeys, Map<ByteBuffer, IColumn> termCols,
+            OpenBitSet deleted) throws IOException
+    {
+        Map<ByteBuffer, Collection<IColumn>> docRows = TermCache.readRows(CassandraUtils.termVecColumnFamily, termKeys
+                .keySet());
+        Map<ByteBuffer, Collection<IColumn>> blockRows = CassandraUtils.useTermBlocks ? TermCache.readRows(
+                CassandraUtils.termBlockColumnFamily, termKeys.keySet()) : null;
+
+        Map<Term, Long> docFreqs = CassandraUtils.useTermStats ? readDocFreqs(termKeys.values()) : null;
+        Map<String, RowMutation> recounts = new HashMap<String, RowMutation>();
+
+        List<RowMutation> mutations = new ArrayList<RowMutation>();
+        RowMutation termList = new RowMutation(CassandraUtils.keySpace, termsListKey);
+        boolean termsRemoved = false;
+
+        for (ByteBuffer key : termKeys.keySet())
+        {
+            termsRead++;
+
+            Collection<IColumn> docs = docRows.get(key);
+            Collection<IColumn> blocks = blockRows == null ? null : blockRows.get(key);
+
+            long rowBytes = 0;
+            boolean dead = false;
+            int liveColumns = 0;
+            long newest = Long.MIN_VALUE;
+
+            for (Collection<IColumn> cols : Arrays.asList(docs, blocks))
+            {
+                if (cols == null)
+                    continue;
+
+                for (IColumn col : cols)
+                {
+                    rowBytes += col.size();
+                    newest = Math.max(newest, col.timestamp());
+
+                    if (!col.isLive() || col.value().remaining() == 0)
+                        dead = true;
+                    else
+                        liveColumns++;
+                }
+            }
+
+            bytesRead += rowBytes;
+
+            LucandraTermBlock[] live = TermCache.convertTermBlocks(docs, blocks);
+
+            List<LucandraTermInfo> postings = new ArrayList<LucandraTermInfo>(LucandraTermBlock.count(live));
+            int marked = 0;
+
+            for (LucandraTermBlock block : live)
+            {
+                LucandraPostings p = block.getPostings();
+
+                for (int i = 0; i < p.size(); i++)
+                {
+                    if (deleted != null && deleted.get(p.docId(i)))
+                        marked++;
+                    else
+                        postings.add(liveDoc(p, i));
+                }
+            }
+
+            int liveDocs = postings.size();
+
+            // marked docs are counted out when they are purged
+            if (docFreqs != null)
+                recount(recounts, termKeys.get(key), docFreqs, liveDocs + marked);
+
+            if (marked > 0)
+                dead = true;
+
+            // blocks are fully packed, columns need one per doc
+            int neededColumns = CassandraUtils.useTermBlocks ? (liveDocs + CassandraUtils.termBlockSize - 1)
+                    / CassandraUtils.termBlockSize : liveDocs;
+
+            boolean misplaced = CassandraUtils.useTermBlocks && docs != null && !docs.isEmpty();
+
+            if (!dead && !misplaced && liveColumns <= neededColumns)
+                continue;
+
+            long written = 0;
+
+            // removes exactly what was read, anything written after it
+            // is newer than the copy
+            long stamp = newest + 1;
+
+            RowMutation rm = new RowMutation(CassandraUtils.keySpace, key);
+            rm.delete(new QueryPath(CassandraUtils.termVecColumnFamily), newest);
+
+            if (CassandraUtils.useTermBlocks)
+                rm.delete(new QueryPath(CassandraUtils.termBlockColumnFamily), newest);
+
+            if (liveDocs == 0)
+            {
+                // a term added again is written later than this
+                IColumn termCol = termCols.get(key);
+                termList.delete(new QueryPath(CassandraUtils.metaInfoColumnFamily, null, termCol.name()), termCol
+                        .timestamp());
+                termsRemoved = true;
+                termsDropped++;
+
+                bytesReclaimed += termCol.name().remaining();
+            }
+            else
+            {
+                if (CassandraUtils.useTermBlocks)
+                {
+                    for (int i = 0; i < postings.size(); i += CassandraUtils.termBlockSize)
+                    {
+                        List<LucandraTermInfo> block = postings.subList(i, Math.min(postings.size(), i
+                                + CassandraUtils.termBlockSize));
+
+                        written += add(rm, CassandraUtils.termBlockColumnFamily, LucandraTermBlock
+                                .createColumnName(block.get(0).docId), LucandraTermBlock.serialize(block), stamp);
+                    }
+                }
+                else
+                {
+                    for (LucandraTermInfo doc : postings)
+                        written += add(rm, CassandraUtils.termVecColumnFamily, ByteBuffer.wrap(CassandraUtils
+                                .writeVInt(doc.docId)), doc.serialize(), stamp);
+                }
+
+                termsRewritten++;
+            }
+
+            bytesReclaimed += rowBytes - written;
+            mutations.add(rm);
+        }
+
+        int rewritten = mutations.size();
+
+        if (termsRemoved)
+            mutations.add(termList);
+
+        if (!mutations.isEmpty())
+            CassandraUtils.robustInsert(CassandraUtils.consistency, mutations.toArray(new RowMutation[mutations.size()]));
+
+        if (!recounts.isEmpty())
+            writeRecounts(recounts.values());
+
+        if (logger.isDebugEnabled())
+            logger.debug(indexName + ": rewrote " + rewritten + " of " + termKeys.size() + " term rows");
+    }
+
+    // the doc count counters of these terms, terms without one are missing
+    private Map<Term, Long> readDocFreqs(Collection<Term> terms) throws IOException
+    {
+        Map<String, List<ByteBuffer>> fieldTerms = new HashMap<String, List<ByteBuffer>>();
+        for (Term term : terms)
+        {
+            List<ByteBuffer> texts = fieldTerms.get(term.field());
+            if (texts == null)
+            {
+                texts = new ArrayList<ByteBuffer>();
+                fieldTerms.put(term.field(), texts);
+            }
+
+            texts.add(ByteBuffer.wrap(term.text().getBytes("UTF-8")));
+        }
+
+        Map<ByteBuffer, String> fieldKeys = new HashMap<ByteBuffer, String>();
+        List<ReadCommand> reads = new ArrayList<ReadCommand>(fieldTerms.size());
+
+        for (Map.Entry<String, List<ByteBuffer>> entry : fieldTerms.entrySet())
+        {
+            ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, entry.getKey()
+                    .getBytes("UTF-8"));
+
+            fieldKeys.put(key, entry.getKey());
+            reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, new QueryPath(
+                    CassandraUtils.termStatsColumnFamily), entry.getValue()));
+        }
+
+        Map<Term, Long> docFreqs = new HashMap<Term, Long>();
+
+        for (Row row : CassandraUtils.robustRead(CassandraUtils.consistency, reads.toArray(new ReadCommand[reads
+                .size()])))
+        {
+            if (row.cf == null)
+                continue;
+
+            String field = fieldKeys.get(row.key.key);
+
+            for (IColumn col : row.cf.getSortedColumns())
+            {
+                if (col instanceof CounterColumn && col.isLive())
+                    docFreqs.put(new Term(field, ByteBufferUtil.string(col.name(), CassandraUtils.UTF_8)),
+                            ((CounterColumn) col).total());
+            }
+        }
+
+        return docFreqs;
+    }
+
+    // adds the difference between the counted and the live docs of a term
+    private void recount(Map<String, RowMutation> recounts, Term term, Map<Term, Long> docFreqs, int liveDocs)
+            throws IOException
+    {
+        Long counted = docFreqs.get(term);
+        long drift = liveDocs - (counted == null ? 0 : counted);
+
+        if (drift == 0)
+            return;
+
+        RowMutation rm = recounts.get(term.field());
+        if (rm == null)
+        {
+            rm = new RowMutation(CassandraUtils.keySpace, CassandraUtils.hashKeyBytes(indexNameBytes,
+                    CassandraUtils.delimeterBytes, term.field().getBytes("UTF-8")));
+            recounts.put(term.field(), rm);
+        }
+
+        rm.addCounter(new QueryPath(CassandraUtils.termStatsColumnFamily, null, ByteBuffer.wrap(term.text()
+                .getBytes("UTF-8"))), drift);
+
+        termsRecounted++;
+    }
+
+    // corrections are written once, a lost one is found again next run
+    private void writeRecounts(Collection<RowMutation> recounts)
+    {
+        IMutation[] counters = new IMutation[recounts.size()];
+
+        int i = 0;
+        for (RowMutation rm : recounts)
+            counters[i++] = new CounterMutation(rm, CassandraUtils.consistency);
+
+        try
+        {
+            CassandraUtils.insertOnce(CassandraUtils.consistency, counters);
+        }
+        catch (Exception e)
+        {
+            recountsLost = true;
+            logger.warn(indexName + ": term count corrections not written", e);
+        }
+    }
+
+    /**
+     * Corrects the live doc count from the doc rows below maxDoc, marked
+     * docs are still counted as they are counted out when purged. Returns
+     * false if the scan was interrupted or the correction not written.
+     */
+    private boolean recountLiveDocs(long start) throws IOException
+    {
+        int maxDoc = ReaderCache.readMaxDoc(indexName);
+        long liveDocs = 0;
+
+        List<ByteBuffer> columns = Arrays.asList(CassandraUtils.documentTermsFieldBytes,
+                CassandraUtils.documentMetaFieldBytes);
+        List<ReadCommand> reads = new ArrayList<ReadCommand>(pageSize);
+
+        for (int doc = 0; doc < maxDoc; doc++)
+        {
+            ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, Integer
+                    .toHexString(doc).getBytes("UTF-8"));
+
+            reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, CassandraUtils.metaColumnPath, columns));
+
+            if (reads.size() < pageSize && doc < maxDoc - 1)
+                continue;
+
+            for (Row row : CassandraUtils.robustRead(CassandraUtils.consistency, reads.toArray(new ReadCommand[reads
+                    .size()])))
+            {
+                if (row.cf == null)
+                    continue;
+
+                for (IColumn col : row.cf.getSortedColumns())
+                {
+                    if (col.isLive())
+                    {
+                        bytesRead += col.size();
+                        liveDocs++;
+                        break;
+                    }
+                }
+            }
+
+            reads.clear();
+            throttle(start);
+
+            if (Thread.currentThread().isInterrupted())
+                return false;
+        }
+
+        ByteBuffer statsKey = CassandraUtils.docStatsKey(indexName);
+
+        List<Row> rows = CassandraUtils.robustRead(statsKey, new QueryPath(CassandraUtils.termStatsColumnFamily),
+                Arrays.asList(CassandraUtils.liveDocsColBytes), CassandraUtils.consistency);
+
+        IColumn col = rows.isEmpty() || rows.get(0).cf == null ? null : rows.get(0).cf
+                .getColumn(CassandraUtils.liveDocsColBytes);
+        long counted = col instanceof CounterColumn && col.isLive() ? ((CounterColumn) col).total() : 0;
+
+        if (liveDocs == counted)
+            return true;
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, statsKey);
+        rm.addCounter(new QueryPath(CassandraUtils.termStatsColumnFamily, null, CassandraUtils.liveDocsColBytes),
+                liveDocs - counted);
+
+        try
+        {
+            CassandraUtils.insertOnce(CassandraUtils.consistency, new CounterMutation(rm, CassandraUtils.consistency));
+        }
+        catch (Exception e)
+        {
+            logger.warn(indexName + ": live doc count correction not written", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    // returns the bytes added
+    private static int add(RowMutation rm, String columnFamily, ByteBuffer name, ByteBuffer value, long timestamp)
+    {
+        rm.add(new QueryPath(columnFamily, null, name), value, timestamp);
+
+        return name.remaining() + value.remaining();
+    }
+
+    // default norms, and freqs of docs that count once, decode the same
+    // without being stored
+    private static LucandraTermInfo liveDoc(LucandraPostings postings, int i)
+    {
+        int freq = postings.freq(i);
+        byte norm = postings.norm(i);
+        int[] positions = postings.getPositions(i);
+
+        boolean hasFreq = freq != 1 || positions != null;
+
+        return new LucandraTermInfo(postings.docId(i), freq, hasFreq,
+                CassandraUtils.useNormRows || norm == LucandraPostings.defaultNorm ? null : norm, positions, postings
+                        .getOffsets(i));
+    }
+
+    // sleeps off reads ahead of the rate limit
+    private void throttle(long start)
+    {
+        long due = bytesRead * 1000 / maxBytesPerSec - (System.currentTimeMillis() - start);
+
+        if (due <= 0)
+            return;
+
+        try
+        {
+            Thread.sleep(due);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getBytesReclaimed()
+    {
+        return Math.max(0, bytesReclaimed);
+    }
+
+    public long getMillis()
+    {
+        return millis;
+    }
+
+    public String toString()
+    {
+        return "terms=" + termsRead + ", rewritten=" + termsRewritten + ", dropped=" + termsDropped + ", recounted="
+                + termsRecounted + ", bytesRead="
+                + bytesRead + ", bytesReclaimed=" + getBytesReclaimed() + ", millis=" + millis;
+    }
+
+    /** Bytes reclaimed by all optimize runs on this node */
+    public static long getTotalBytesReclaimed()
+    {
+        return totalReclaimed.get();
+    }
+
+    public static long getTotalMillis()
+    {
+        return totalMillis.get();
+    }
+}
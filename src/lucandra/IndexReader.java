@@ -24,13 +24,16 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import lucandra.cluster.CassandraIndexManager;
 import lucandra.serializers.thrift.DocumentMetadata;
 import lucandra.serializers.thrift.ThriftTerm;
 
 import com.google.common.collect.MapMaker;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.utils.ByteBufferUtil;
@@ -57,7 +60,6 @@ import solandra.SolandraFieldSelector;
 
 public class IndexReader extends org.apache.lucene.index.IndexReader
 {
-    private final static int                                numDocs       = CassandraIndexManager.maxDocsPerShard;
     private final static byte                               defaultNorm   = Similarity.encodeNorm(1.0f);
 
     private final static Directory                          mockDirectory = new RAMDirectory();
@@ -86,8 +88,31 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     private final static ThreadLocal<ReaderCache>           activeCache   = new ThreadLocal<ReaderCache>();
     private final static ConcurrentMap<String, ReaderCache> globalCache   = new MapMaker().makeMap();
 
+    // how often the cache size is checked against the budget, off the query threads
+    private final static long                               evictionCheckInterval = 1000;
+    private final static ScheduledExecutorService           evictionExecutor      = Executors
+                                                                                          .newSingleThreadScheduledExecutor(new NamedThreadFactory(
+                                                                                                  "SolandraCacheEviction"));
+
     private static final Logger                             logger        = Logger.getLogger(IndexReader.class);
 
+    static
+    {
+        evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    evictCaches();
+                }
+                catch (Throwable t)
+                {
+                    logger.error("Reader cache eviction failed", t);
+                }
+            }
+        }, evictionCheckInterval, evictionCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
     public IndexReader(String name)
     {
         super();
@@ -124,12 +149,30 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
                 LucandraFieldCache.purgeReader.finished(this);
             }
             
-            globalCache.remove(activeIndex);
+            ReaderCache cache = globalCache.remove(activeIndex);
+
+            // other threads still holding it read it again
+            if (cache != null)
+                cache.evict();
         }
 
         activeCache.remove();
     }
 
+    /**
+     * Drops only the cached entries touched by these changes, unlike
+     * reopen() which clears the whole cache
+     */
+    public void invalidate(IndexChanges changes)
+    {
+        String activeIndex = getIndexName();
+
+        ReaderCache cache = globalCache.get(activeIndex);
+
+        if (cache != null)
+            cache.invalidate(changes);
+    }
+
     public ReaderCache getCache() throws IOException
     {
         String activeIndex = getIndexName();
@@ -139,10 +182,14 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
 
         ReaderCache cache = activeCache.get();
 
-        if (cache != null)
+        if (cache != null && !cache.isEvicted())
+        {
+            cache.touch();
+
             return cache;
-        else
-            cache = globalCache.get(activeIndex);
+        }
+
+        cache = globalCache.get(activeIndex);
 
         if (cache == null)
         {
@@ -157,11 +204,62 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
             }
         }
 
+        cache.touch();
         activeCache.set(cache);
 
         return cache;
     }
 
+    // Drop the least recently used caches until we are within the heap budget,
+    // always keeping the most recently used one
+    private static void evictCaches()
+    {
+        List<ReaderCache> caches = new ArrayList<ReaderCache>(globalCache.values());
+        Map<ReaderCache, Long> weights = new IdentityHashMap<ReaderCache, Long>(caches.size());
+
+        long total = 0;
+        for (ReaderCache cache : caches)
+        {
+            long weight = cache.weight();
+            weights.put(cache, weight);
+            total += weight;
+        }
+
+        if (total <= CassandraUtils.readerCacheMaxBytes)
+            return;
+
+        Collections.sort(caches, new Comparator<ReaderCache>() {
+            public int compare(ReaderCache o1, ReaderCache o2)
+            {
+                long a1 = o1.getLastAccess();
+                long a2 = o2.getLastAccess();
+
+                return a1 < a2 ? -1 : (a1 == a2 ? 0 : 1);
+            }
+        });
+
+        for (ReaderCache cache : caches.subList(0, caches.size() - 1))
+        {
+            if (total <= CassandraUtils.readerCacheMaxBytes)
+                break;
+
+            if (globalCache.remove(cache.indexName, cache))
+            {
+                cache.evict();
+                total -= weights.get(cache);
+                cache.stats.evictions.incrementAndGet();
+
+                if (logger.isDebugEnabled())
+                    logger.debug("Evicted reader cache for " + cache.indexName + " (" + weights.get(cache)
+                            + " bytes) " + cache.stats);
+            }
+        }
+
+        if (total > CassandraUtils.readerCacheMaxBytes)
+            logger.warn("Reader caches use " + total + " bytes, over the " + CassandraUtils.readerCacheMaxBytes
+                    + " byte budget");
+    }
+
     protected void doClose() throws IOException
     {
         clearCache();
@@ -190,11 +288,12 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     public int docFreq(Term term) throws IOException
     {
 
-        LucandraTermInfo[] docs = getCache().termCache.get(term);
+        int docFreq = getCache().termCache.docFreq(term);
 
-        if (docs != null)
-            return docs.length;
+        if (docFreq >= 0)
+            return docFreq;
 
+        // no stats for this term, count its postings
         LucandraTermEnum termEnum = new LucandraTermEnum(this);
 
         if (termEnum.skipTo(term) && termEnum.term().equals(term))
@@ -208,7 +307,8 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     public Document document(int docNum, FieldSelector selector) throws CorruptIndexException, IOException
     {
 
-        Map<Integer, Document> documentCache = getCache().documents;
+        ReaderCache cache = getCache();
+        Map<Integer, Document> documentCache = cache.documents;
         Document doc = documentCache.get(docNum);
 
         if (doc != null)
@@ -216,9 +316,12 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
             if (logger.isDebugEnabled())
                 logger.debug("Found doc in cache");
 
+            cache.stats.hits.incrementAndGet();
             return doc;
         }
 
+        cache.stats.misses.incrementAndGet();
+
         String indexName = getIndexName();
 
         List<ByteBuffer> fieldNames = null;
@@ -313,7 +416,9 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
                         String fieldName = ByteBufferUtil.string(col.name());
 
                         // Incase __META__ slips through
-                        if (ByteBufferUtil.compare(col.name(), CassandraUtils.documentMetaFieldBytes.array()) == 0)
+                        if (ByteBufferUtil.compare(col.name(), CassandraUtils.documentMetaFieldBytes.array()) == 0
+                                || ByteBufferUtil.compare(col.name(), CassandraUtils.documentTermsFieldBytes.array()) == 0
+                                || ByteBufferUtil.compare(col.name(), CassandraUtils.documentHashesFieldBytes.array()) == 0)
                         {
                             logger.warn("Filtering out __META__ key");
                             continue;
@@ -351,7 +456,7 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
 
                 // only cache complete docs
                 if (fieldNames == null || fieldNames.size() == 0)
-                    documentCache.put(key.getKey(), cacheDoc);
+                    cache.putDocument(key.getKey(), cacheDoc);
 
             }
 
@@ -435,27 +540,51 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public boolean hasDeletions()
     {
-
-        return false;
+        try
+        {
+            return getCache().deletedDocs != null;
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
-    public boolean isDeleted(int arg0)
+    public boolean isDeleted(int docNum)
     {
+        try
+        {
+            OpenBitSet deleted = getCache().deletedDocs;
 
-        return false;
+            return deleted != null && deleted.get(docNum);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public int maxDoc()
     {
-        return numDocs + 1;
+        try
+        {
+            return getCache().maxDoc();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public byte[] norms(String field) throws IOException
     {
-        return getCache().fieldNorms.get(field);
+        ReaderCache cache = getCache();
+        DocNorms norms = CassandraUtils.useNormRows ? cache.loadNorms(field) : cache.fieldNorms.get(field);
+
+        return norms == null ? null : norms.toArray(cache.maxDoc());
     }
 
     @Override
@@ -469,8 +598,14 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public int numDocs()
     {
-
-        return numDocs;
+        try
+        {
+            return getCache().numDocs();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
@@ -498,52 +633,71 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public TermEnum terms() throws IOException
     {
-        return new LucandraTermEnum(this);
+        return new LucandraTermEnum(this, true);
     }
 
     @Override
     public TermEnum terms(Term term) throws IOException
     {
 
-        LucandraTermEnum termEnum = new LucandraTermEnum(this);
+        LucandraTermEnum termEnum = new LucandraTermEnum(this, true);
 
         termEnum.skipTo(term);
 
         return termEnum;
     }
 
-    public void addDocumentNormalizations(LucandraTermInfo[] allDocs, String field, ReaderCache cache)
+    /**
+     * Enumerates the terms from lower through upper, terms past upper are
+     * not read
+     */
+    public TermEnum terms(Term lower, Term upper) throws IOException
     {
+        LucandraTermEnum termEnum = new LucandraTermEnum(this, true);
 
-        byte[] norms = cache.fieldNorms.get(field);
-        OpenBitSet docHits = cache.docHits;
+        termEnum.setRangeEnd(upper);
+        termEnum.skipTo(lower);
 
-        for (LucandraTermInfo docInfo : allDocs)
-        {
+        return termEnum;
+    }
 
-            int idx = docInfo.docId;
+    public void addDocumentNormalizations(LucandraPostings allDocs, String field, ReaderCache cache)
+    {
 
-            if (idx > numDocs)
-                throw new IllegalStateException("numDocs reached");
+        DocHits docHits = cache.docHits;
+        int maxDoc = cache.maxDoc();
 
-            Byte norm = docInfo.norm;
+        // norms are read from their own row, postings only carry the hits
+        if (CassandraUtils.useNormRows)
+        {
+            for (int i = 0; i < allDocs.size() && allDocs.docId(i) < maxDoc; i++)
+                docHits.set(allDocs.docId(i), maxDoc);
 
-            if (norm == null)
-                norm = defaultNorm;
+            return;
+        }
 
-            // Check for cached reads
-            if (norms != null && norms.length > idx && norms[idx] == norm)
-                continue;
+        DocNorms norms = cache.getNorms(field);
 
-            docHits.fastSet(idx);
+        synchronized (norms)
+        {
+            for (int i = 0; i < allDocs.size(); i++)
+            {
+                int idx = allDocs.docId(i);
 
-            if (norms == null)
-                norms = new byte[numDocs];
+                // written after this cache was loaded
+                if (idx >= maxDoc)
+                    break;
 
-            norms[idx] = norm;
-        }
+                byte norm = allDocs.norm(i);
+
+                // Check for cached reads
+                if (norms.get(idx) == norm)
+                    continue;
 
-        cache.fieldNorms.put(field, norms);
+                docHits.set(idx, maxDoc);
+                norms.set(idx, norm, maxDoc);
+            }
+        }
     }
 
     public String getIndexName()
@@ -584,7 +738,7 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
         return true;
     }
 
-    public OpenBitSet getDocsHit()
+    public DocHits getDocsHit()
     {
         try
         {
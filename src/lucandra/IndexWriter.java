@@ -32,10 +32,12 @@ import lucandra.serializers.thrift.ThriftTerm;
 
 import com.google.common.collect.MapMaker;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.UnavailableException;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.Pair;
 import org.apache.log4j.Logger;
@@ -59,22 +61,167 @@ import org.apache.thrift.transport.TTransport;
 
 public class IndexWriter
 {
-    private static final ConcurrentMap<String, Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>>> mutationList    = new MapMaker()
+    private static final ConcurrentMap<String, MutationQueue>                                         mutationList    = new MapMaker()
+                                                                                                                              .makeMap();
+    // postings waiting to be packed into term blocks on commit
+    private static final ConcurrentMap<String, ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>>> postingList = new MapMaker()
+                                                                                                                              .makeMap();
+    // norms waiting to be packed into norm blocks on commit
+    private static final ConcurrentMap<String, ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>>> normList    = new MapMaker()
+                                                                                                                              .makeMap();
+    // per term doc count changes not yet written
+    private static final ConcurrentMap<String, Map<Term, Integer>>                                    docFreqDeltas   = new MapMaker()
+                                                                                                                              .makeMap();
+    // what changed in each index since its caches were last flushed
+    private static final ConcurrentMap<String, IndexChanges>                                          indexChanges    = new MapMaker()
                                                                                                                               .makeMap();
     private Similarity                                                                                similarity      = Similarity
                                                                                                                               .getDefault();
     private static final Logger                                                                       logger          = Logger.getLogger(IndexWriter.class);
     private static TProtocolFactory                                                                   protocolFactory = new TBinaryProtocol.Factory();
 
+    // counted with the terms, lands in the doc stats row of TS
+    private static final Term                                                                         liveDocsTerm    = new Term(
+                                                                                                                              CassandraUtils.docStatsField,
+                                                                                                                              CassandraUtils.liveDocsCol);
+
+    // commit pipeline: queued mutations are sent in bounded batches with
+    // several batches in flight at once
+    private static final int             commitBatchSize = Integer.valueOf(CassandraUtils.properties.getProperty(
+                                                                 "solandra.write.commit.batch.size", "512"));
+    private static final int             commitThreads   = Integer.valueOf(CassandraUtils.properties.getProperty(
+                                                                 "solandra.write.commit.threads", "4"));
+    private static final int             maxPending      = Integer.valueOf(CassandraUtils.properties.getProperty(
+                                                                 "solandra.write.max.pending.mutations", "65536"));
+    private static final ExecutorService commitExecutor  = Executors.newFixedThreadPool(commitThreads,
+                                                                 new NamedThreadFactory("SolandraCommit"));
+
+    // mutations queued vs rows actually sent after coalescing
+    private static final AtomicLong      mutationsQueued = new AtomicLong(0);
+    private static final AtomicLong      mutationsSent   = new AtomicLong(0);
+
+    // doc term lists read per multiget when deleting
+    private static final int             deleteBatchSize = Integer.valueOf(CassandraUtils.properties.getProperty(
+                                                                 "solandra.write.delete.batch.size", "256"));
+    private static final AtomicLong      docsDeleted     = new AtomicLong(0);
+    private static final AtomicLong      deleteNanos     = new AtomicLong(0);
+
+    // deferred deletes are purged in the background, one run per index at a time
+    private static final ScheduledExecutorService purgeExecutor = Executors.newSingleThreadScheduledExecutor(
+                                                                        new NamedThreadFactory("SolandraPurge"));
+    private static final Set<String>              purgeIndexes  = Collections.newSetFromMap(new MapMaker()
+                                                                        .<String, Boolean> makeMap());
+    private static final AtomicLong               docsPurged    = new AtomicLong(0);
+
+    /** Told which docs are gone for good, so their ids can be reused */
+    public interface PurgeListener
+    {
+        void purged(String indexName, List<Integer> docNumbers) throws IOException;
+    }
+
+    private volatile PurgeListener purgeListener;
+
+    // the highest doc id this node has written to each index
+    private static final ConcurrentMap<String, AtomicInteger> maxDocs = new MapMaker().makeMap();
+
+    // indexes this node has checked for an empty term list
+    private static final ConcurrentMap<String, Boolean> statsChecked = new MapMaker().makeMap();
+
+    private static final AtomicLong      updatesUnchanged = new AtomicLong(0);
+    private static final AtomicLong      updatesDiffed    = new AtomicLong(0);
+
+    // mutations waiting to be written for one index
+    private static class MutationQueue
+    {
+        final ConcurrentLinkedQueue<RowMutation> mutations = new ConcurrentLinkedQueue<RowMutation>();
+
+        // queued or in flight, but not yet written
+        final AtomicInteger                      pending   = new AtomicInteger(0);
+
+        final ConcurrentLinkedQueue<Future<Integer>> inFlight = new ConcurrentLinkedQueue<Future<Integer>>();
+
+        void addAll(Collection<RowMutation> rows)
+        {
+            mutations.addAll(rows);
+            pending.addAndGet(rows.size());
+        }
+    }
+
+    // waits on all the batches of one commit
+    private static class CommitFuture implements Future<Integer>
+    {
+        private final List<Future<Integer>> batches;
+
+        CommitFuture(List<Future<Integer>> batches)
+        {
+            this.batches = batches;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        public boolean isDone()
+        {
+            for (Future<Integer> batch : batches)
+            {
+                if (!batch.isDone())
+                    return false;
+            }
+
+            return true;
+        }
+
+        public Integer get() throws InterruptedException, ExecutionException
+        {
+            int written = 0;
+            for (Future<Integer> batch : batches)
+                written += batch.get();
+
+            return written;
+        }
+
+        public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException
+        {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+            int written = 0;
+            for (Future<Integer> batch : batches)
+                written += batch.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+            return written;
+        }
+    }
+
     public IndexWriter()
     {
 
     }
 
-    @SuppressWarnings("unchecked")
     public void addDocument(String indexName, Document doc, Analyzer analyzer, int docNumber, boolean autoCommit,
             RowMutation rms[]) throws CorruptIndexException, IOException
     {
+        addDocument(indexName, doc, analyzer, docNumber, autoCommit, rms, null, null,
+                CassandraUtils.useDiffUpdates ? DocumentHashes.compute(doc) : null);
+    }
+
+    /**
+     * Indexes a doc. When the terms and hashes of the doc it replaces are
+     * given, fields whose content is unchanged are left as they are and
+     * only the terms that went away are removed.
+     */
+    @SuppressWarnings("unchecked")
+    private void addDocument(String indexName, Document doc, Analyzer analyzer, int docNumber, boolean autoCommit,
+            RowMutation rms[], DocumentTerms oldTerms, DocumentHashes oldHashes, DocumentHashes hashes)
+            throws CorruptIndexException, IOException
+    {
 
         Map<ByteBuffer, RowMutation> workingMutations = new HashMap<ByteBuffer, RowMutation>();
 
@@ -82,8 +229,22 @@ public class IndexWriter
         ByteBuffer indexTermsKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes,
                 "terms".getBytes("UTF-8"));
 
-        DocumentMetadata allIndexedTerms = new DocumentMetadata();
+        if (CassandraUtils.useTermStats && statsChecked.putIfAbsent(indexName, Boolean.TRUE) == null)
+        {
+            try
+            {
+                markCountedIfEmpty(indexName, indexTermsKey);
+            }
+            catch (IOException e)
+            {
+                statsChecked.remove(indexName);
+                throw e;
+            }
+        }
+
+        DocumentTerms allIndexedTerms = new DocumentTerms();
         Map<String, DocumentMetadata> fieldCache = new HashMap<String, DocumentMetadata>(1024);
+        List<Pair<ByteBuffer, LucandraTermInfo>> termPostings = new ArrayList<Pair<ByteBuffer, LucandraTermInfo>>();
 
         // By default we don't handle indexSharding
         // We round robin replace the index
@@ -92,8 +253,30 @@ public class IndexWriter
         ByteBuffer docId = ByteBuffer.wrap(CassandraUtils.writeVInt(docNumber));
         int position = 0;
 
+        // fields kept from the old doc and where each field started
+        Set<String> keptFields = new HashSet<String>();
+        Map<String, Integer> fieldStarts = new HashMap<String, Integer>();
+
         for (Fieldable field : doc.getFields())
         {
+            if (hashes != null && !fieldStarts.containsKey(field.name()))
+            {
+                fieldStarts.put(field.name(), position);
+
+                if (oldHashes != null && hashes.isUnchanged(field.name(), oldHashes, position))
+                {
+                    keptFields.add(field.name());
+
+                    for (Term term : oldTerms.getTerms(field.name()))
+                        allIndexedTerms.add(term.field(), term.text());
+
+                    position = oldHashes.endPosition(field.name());
+                    hashes.setPositions(field.name(), fieldStarts.get(field.name()), position);
+                }
+            }
+
+            if (keptFields.contains(field.name()))
+                continue;
 
             ThriftTerm firstTerm = null;
 
@@ -132,9 +315,14 @@ public class IndexWriter
                 if (field.isStoreOffsetWithTermVector())
                     offsetAttribute = (OffsetAttribute) tokens.addAttribute(OffsetAttribute.class);
 
+                // what the postings of this field keep
+                boolean storeFreqs = !field.getOmitTermFreqAndPositions();
+                boolean storePositions = storeFreqs && !CassandraUtils.omitPositionFields.contains(field.name());
+
                 // positions
-                // these are always gathered in later lucene versions
-                PositionIncrementAttribute posIncrAttribute = (PositionIncrementAttribute) tokens
+                PositionIncrementAttribute posIncrAttribute = null;
+                if (storePositions)
+                    posIncrAttribute = (PositionIncrementAttribute) tokens
                             .addAttribute(PositionIncrementAttribute.class);
 
                 // term as string
@@ -156,7 +344,7 @@ public class IndexWriter
                     if (firstTerm == null)
                         firstTerm = tterm;
 
-                    allIndexedTerms.addToTerms(tterm);
+                    allIndexedTerms.add(term.field(), term.text());
 
                     // fetch all collected information for this term
                     Map<ByteBuffer, List<Number>> termInfo = allTermInformation.get(term);
@@ -168,6 +356,7 @@ public class IndexWriter
                     }
 
                     // term frequency
+                    if (storeFreqs)
                     {
                         List<Number> termFrequency = termInfo.get(CassandraUtils.termFrequencyKeyBytes);
 
@@ -183,6 +372,7 @@ public class IndexWriter
                     }
 
                     // position vector
+                    if (storePositions)
                     {
                         position += (posIncrAttribute.getPositionIncrement() - 1);
 
@@ -225,6 +415,15 @@ public class IndexWriter
                     final float norm = similarity.computeNorm(field.name(), invertState);
 
                     bnorm.add(Similarity.getDefault().encodeNormValue(norm));
+
+                    // one norm per field, packed into the field's row on commit
+                    if (CassandraUtils.useNormRows)
+                    {
+                        getNormQueue(indexName).add(
+                                new Pair<ByteBuffer, LucandraTermInfo>(CassandraUtils.normsKey(indexName, field
+                                        .name()), new LucandraTermInfo(docNumber, 0, bnorm.get(0).byteValue(), null,
+                                        null)));
+                    }
                 }
 
                 for (Map.Entry<Term, Map<ByteBuffer, List<Number>>> term : allTermInformation.entrySet())
@@ -239,13 +438,12 @@ public class IndexWriter
 
                     // Mix in the norm for this field alongside each term
                     // more writes but faster on read side.
-                    if (!field.getOmitNorms())
+                    if (!field.getOmitNorms() && !CassandraUtils.useNormRows)
                     {
                         term.getValue().put(CassandraUtils.normsKeyBytes, bnorm);
                     }
 
-                    CassandraUtils.addMutations(workingMutations, CassandraUtils.termVecColumnFamily, docId, key,
-                            new LucandraTermInfo(docNumber, term.getValue()).serialize());
+                    addTermInfo(workingMutations, termPostings, key, new LucandraTermInfo(docNumber, term.getValue()));
 
                     // Store all terms under a row
                     CassandraUtils.addMutations(workingMutations, CassandraUtils.metaInfoColumnFamily,
@@ -263,7 +461,7 @@ public class IndexWriter
                 if (firstTerm == null)
                     firstTerm = tterm;
 
-                allIndexedTerms.addToTerms(tterm);
+                allIndexedTerms.add(field.name(), field.stringValue());
 
                 ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"),
                         CassandraUtils.delimeterBytes, field.name().getBytes("UTF-8"), CassandraUtils.delimeterBytes,
@@ -273,8 +471,7 @@ public class IndexWriter
                 termMap.put(CassandraUtils.termFrequencyKeyBytes, CassandraUtils.emptyArray);
                 termMap.put(CassandraUtils.positionVectorKeyBytes, CassandraUtils.emptyArray);
 
-                CassandraUtils.addMutations(workingMutations, CassandraUtils.termVecColumnFamily, docId, key,
-                        new LucandraTermInfo(docNumber, termMap).serialize());
+                addTermInfo(workingMutations, termPostings, key, new LucandraTermInfo(docNumber, termMap));
 
                 // Store all terms under a row
                 CassandraUtils.addMutations(workingMutations, CassandraUtils.metaInfoColumnFamily,
@@ -317,6 +514,9 @@ public class IndexWriter
                 if (logger.isDebugEnabled())
                     logger.debug(indexName + " - firstTerm: " + ByteBufferUtil.string(fieldCacheKey));
             }
+
+            if (hashes != null)
+                hashes.setPositions(field.name(), fieldStarts.get(field.name()), position);
         }
 
         ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, Integer
@@ -329,18 +529,76 @@ public class IndexWriter
                     field.getKey().getBytes("UTF-8"), key, toBytesUsingThrift(field.getValue()));
         }
 
-        // Finally, Store meta-data so we can delete this document
+        // Finally, Store the unique terms so we can delete this document
         CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily,
-                CassandraUtils.documentMetaFieldBytes, key, toBytesUsingThrift(allIndexedTerms));
+                CassandraUtils.documentTermsFieldBytes, key, allIndexedTerms.serialize());
+
+        // and the field hashes so it can be updated in place
+        if (hashes != null)
+            CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily,
+                    CassandraUtils.documentHashesFieldBytes, key, hashes.serialize());
+
+        raiseMaxDoc(workingMutations, indexName, docNumber);
+
+        if (oldTerms == null)
+        {
+            getIndexChanges(indexName).add(docNumber, allIndexedTerms.getTerms());
+            countTerms(indexName, allIndexedTerms.getTerms(), 1);
+        }
+        else
+        {
+            SortedSet<Term> added = new TreeSet<Term>(allIndexedTerms.getTerms());
+            added.removeAll(oldTerms.getTerms());
+
+            SortedSet<Term> removed = new TreeSet<Term>(oldTerms.getTerms());
+            removed.removeAll(allIndexedTerms.getTerms());
+
+            addTermTombstones(workingMutations, indexNameBytes, docNumber, removed);
+
+            // fields gone from the doc
+            Set<String> fields = new HashSet<String>(oldTerms.getFields());
+            fields.removeAll(allIndexedTerms.getFields());
+            addFieldCacheTombstones(workingMutations, indexNameBytes, docNumber, fields);
+
+            fields = new HashSet<String>(oldHashes.getFields());
+            fields.removeAll(hashes.getFields());
+            for (String field : fields)
+                CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily, field
+                        .getBytes("UTF-8"), key, (ByteBuffer) null);
+
+            removePendingPostings(indexName, docNumber, removed);
+
+            // rewritten terms need invalidating too
+            Set<Term> changed = new HashSet<Term>(removed);
+            for (Term term : allIndexedTerms.getTerms())
+            {
+                if (!keptFields.contains(term.field()))
+                    changed.add(term);
+            }
+
+            getIndexChanges(indexName).add(docNumber, changed);
+            countTerms(indexName, added, removed);
+        }
+
+        if (!termPostings.isEmpty())
+            getPostingQueue(indexName).addAll(termPostings);
 
         if (rms != null)
         {
-            Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> mutationQ = getMutationQueue(indexName);
+            MutationQueue mutationQ = getMutationQueue(indexName);
+
+            List<RowMutation> rows = new ArrayList<RowMutation>(rms.length + workingMutations.size());
+
+            // the id manager leaves a slot empty when it has nothing to write
+            for (RowMutation rm : rms)
+            {
+                if (rm != null)
+                    rows.add(rm);
+            }
 
-            List<RowMutation> rows = new ArrayList(Arrays.asList(rms));
             rows.addAll(workingMutations.values());
 
-            mutationQ.right.addAll(rows);
+            mutationQ.addAll(rows);
         }
         else
         {
@@ -359,13 +617,9 @@ public class IndexWriter
         IndexSearcher searcher = new IndexSearcher(reader);
         final AtomicLong numRemoved = new AtomicLong(0);
 
-        // Also delete the id lookup
-        final ByteBuffer idKey = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes,
-                "ids".getBytes("UTF-8"));
-        
-        final Map<ByteBuffer, RowMutation> workingMutations = new HashMap<ByteBuffer, RowMutation>();
-        final RowMutation rm = new RowMutation(CassandraUtils.keySpace, idKey);
-        workingMutations.put(idKey, rm);
+        // deleted in batches once the search is done, the id lookups are
+        // dropped with the ids once the docs are purged
+        final List<Integer> docNumbers = new ArrayList<Integer>();
         
         Collector collector = new Collector() {
 
@@ -384,12 +638,8 @@ public class IndexWriter
             @Override
             public void collect(int docNumber) throws IOException
             {
-                deleteLucandraDocument(indexName, docNumber, autoCommit);
+                docNumbers.add(docNumber);
                 numRemoved.incrementAndGet();
-                
-                //delete the id reference
-                rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBufferUtil.bytes(Integer.toString(docNumber))), System.currentTimeMillis()-1);
-               
             }
 
             @Override
@@ -402,10 +652,20 @@ public class IndexWriter
         //collector will perform deletes
         searcher.search(query, collector);   
         
-        appendMutations(indexName, workingMutations);
-        
-        if(autoCommit)
+        deleteLucandraDocuments(indexName, docNumbers, false);
+
+        PurgeListener listener = purgeListener;
+
+        // without deferred deletes the docs are gone once committed
+        if (!CassandraUtils.useDeferredDeletes && listener != null && !docNumbers.isEmpty())
+        {
+            commit(indexName, false);
+            listener.purged(indexName, docNumbers);
+        }
+        else if (autoCommit)
+        {
             commit(indexName, false);
+        }
 
         return numRemoved.get();
     }
@@ -413,209 +673,1263 @@ public class IndexWriter
     public void deleteDocuments(String indexName, Term term, boolean autoCommit) throws CorruptIndexException,
             IOException
     {
-        ColumnParent cp = new ColumnParent(CassandraUtils.termVecColumnFamily);
+        List<Integer> docNumbers = termDocNumbers(indexName, term);
+
+        if (!docNumbers.isEmpty())
+            deleteLucandraDocuments(indexName, docNumbers, autoCommit);
+    }
 
+    // every doc in the postings of a term
+    private List<Integer> termDocNumbers(String indexName, Term term) throws IOException
+    {
         ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, term
                 .field().getBytes("UTF-8"), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
 
-        ReadCommand rc = new SliceFromReadCommand(CassandraUtils.keySpace, key, cp, ByteBufferUtil.EMPTY_BYTE_BUFFER,
-                ByteBufferUtil.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE);
+        LucandraTermBlock[] blocks = TermCache.readTermBlocks(Arrays.asList(key)).get(key);
 
-        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, rc);
+        List<Integer> docNumbers = new ArrayList<Integer>();
 
-        // delete by documentId
-        for (Row row : rows)
+        if (blocks == null)
+            return docNumbers;
+
+        for (LucandraTermBlock block : blocks)
         {
-            if (row.cf != null)
-            {
-                Collection<IColumn> columns = row.cf.getSortedColumns();
+            LucandraPostings postings = block.getPostings();
 
-                for (IColumn col : columns)
-                {
-                    deleteLucandraDocument(indexName, CassandraUtils.readVInt(col.name()), autoCommit);
-                }
-            }
+            for (int i = 0; i < postings.size(); i++)
+                docNumbers.add(postings.docId(i));
         }
+
+        return docNumbers;
     }
 
-    private void deleteLucandraDocument(String indexName, int docNumber, boolean autoCommit) throws IOException
+    /**
+     * With deferred deletes the docs are only marked as deleted, otherwise
+     * their postings are removed right away
+     */
+    private void deleteLucandraDocuments(String indexName, List<Integer> docNumbers, boolean autoCommit)
+            throws IOException
     {
+        long start = System.nanoTime();
 
-        Map<ByteBuffer, RowMutation> workingMutations = new HashMap<ByteBuffer, RowMutation>();
+        if (CassandraUtils.useDeferredDeletes)
+            markDocuments(indexName, docNumbers);
+        else
+            removeDocuments(indexName, docNumbers, false);
 
-        byte[] docId = Integer.toHexString(docNumber).getBytes("UTF-8");
-        byte[] indexNameBytes = indexName.getBytes("UTF-8");
+        deleteNanos.addAndGet(System.nanoTime() - start);
+
+        if (autoCommit)
+            commit(indexName, false);
+    }
 
-        ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, docId);
+    // a delete is one column in the deleted docs row written without a
+    // read, postings and doc counts stay until the purge removes them
+    private void markDocuments(String indexName, List<Integer> docNumbers) throws IOException
+    {
+        Map<ByteBuffer, RowMutation> workingMutations = new HashMap<ByteBuffer, RowMutation>();
+        Set<Integer> deleted = new HashSet<Integer>();
 
-        List<Row> rows = CassandraUtils.robustRead(key, CassandraUtils.metaColumnPath,
-                Arrays.asList(CassandraUtils.documentMetaFieldBytes), CassandraUtils.consistency);
+        for (Integer docNumber : docNumbers)
+        {
+            if (!deleted.add(docNumber))
+                continue;
 
-        if (rows.isEmpty() || rows.get(0).cf == null)
-            return; // nothing to delete
+            DeletedDocs.mark(workingMutations, indexName, docNumber);
+            getIndexChanges(indexName).add(docNumber, null);
+        }
 
-        IColumn metaCol = rows.get(0).cf.getColumn(CassandraUtils.documentMetaFieldBytes);
-        if (metaCol == null)
+        if (deleted.isEmpty())
             return;
 
-        DocumentMetadata terms = fromBytesUsingThrift(metaCol.value());
+        removePendingPostings(indexName, deleted);
+
+        if (logger.isDebugEnabled())
+            logger.debug("Marked " + deleted.size() + " docs as deleted in " + indexName);
 
-        Set<String> fields = new HashSet<String>();
+        docsDeleted.addAndGet(deleted.size());
 
-        for (ThriftTerm term : terms.getTerms())
-        {
-            // remove from field cache
-            if (!fields.contains(term.getField()))
-            {
-                ByteBuffer fieldCacheKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes,
-                        term.getField().getBytes());
+        appendMutations(indexName, workingMutations);
 
-                CassandraUtils.addMutations(workingMutations, CassandraUtils.fieldCacheColumnFamily,
-                        CassandraUtils.writeVInt(docNumber), fieldCacheKey, (ByteBuffer) null);
+        schedulePurge(indexName);
+    }
 
-                fields.add(term.getField());
-            }
+    /**
+     * Removes docs in batches, the term lists of a batch are read with one
+     * multiget and the tombstones of all its docs are merged per row
+     */
+    private void removeDocuments(String indexName, List<Integer> docNumbers, boolean purge) throws IOException
+    {
+        byte[] indexNameBytes = indexName.getBytes("UTF-8");
 
-            try
+        for (int from = 0; from < docNumbers.size(); from += deleteBatchSize)
+        {
+            List<Integer> batch = docNumbers.subList(from, Math.min(docNumbers.size(), from + deleteBatchSize));
+
+            Map<ByteBuffer, Integer> docKeys = new LinkedHashMap<ByteBuffer, Integer>(batch.size());
+            List<ReadCommand> reads = new ArrayList<ReadCommand>(batch.size());
+
+            for (Integer docNumber : batch)
             {
-                key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, term.getField()
-                        .getBytes("UTF-8"), CassandraUtils.delimeterBytes, term.getText());
+                ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, Integer
+                        .toHexString(docNumber).getBytes("UTF-8"));
+
+                if (docKeys.put(key, docNumber) == null)
+                    reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, CassandraUtils.metaColumnPath,
+                            Arrays.asList(CassandraUtils.documentTermsFieldBytes,
+                                    CassandraUtils.documentMetaFieldBytes)));
             }
-            catch (UnsupportedEncodingException e)
+
+            List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, reads
+                    .toArray(new ReadCommand[reads.size()]));
+
+            Map<ByteBuffer, RowMutation> workingMutations = new HashMap<ByteBuffer, RowMutation>();
+            Set<Integer> deleted = new HashSet<Integer>();
+
+            for (Row row : rows)
             {
-                throw new RuntimeException("JVM doesn't support UTF-8", e);
+                DocumentTerms terms = DocumentTerms.read(row.cf);
+                if (terms == null)
+                    continue; // nothing to delete
+
+                int docNumber = docKeys.get(row.key.key);
+
+                addDeleteMutations(workingMutations, indexNameBytes, row.key.key, docNumber, terms);
+
+                getIndexChanges(indexName).add(docNumber, terms.getTerms());
+                countTerms(indexName, terms.getTerms(), -1);
+
+                deleted.add(docNumber);
             }
 
-            CassandraUtils.addMutations(workingMutations, CassandraUtils.termVecColumnFamily,
-                    CassandraUtils.writeVInt(docNumber), key, (ByteBuffer) null);
-        }
-                
-        // finally delete ourselves
-        ByteBuffer selfKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, docId);
-        CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily, (ByteBuffer) null, selfKey,
-                (ByteBuffer) null);
+            removePendingPostings(indexName, deleted);
 
-        if (logger.isDebugEnabled())
-            logger.debug("Deleted all terms for: " + docNumber);
+            if (logger.isDebugEnabled())
+                logger.debug("Deleted all terms for " + deleted.size() + " docs");
 
-        appendMutations(indexName, workingMutations);
+            // purged docs were counted when they were marked
+            if (!purge)
+                docsDeleted.addAndGet(deleted.size());
 
-        if (autoCommit)
-            commit(indexName, false);
+            appendMutations(indexName, workingMutations);
+        }
     }
 
-    public void updateDocument(String indexName, Term updateTerm, Document doc, Analyzer analyzer, int docNumber,
-            boolean autoCommit) throws CorruptIndexException, IOException
+    // drop any postings for these docs that haven't been packed yet
+    private void removePendingPostings(String indexName, Set<Integer> docNumbers)
     {
+        if (!CassandraUtils.useTermBlocks || docNumbers.isEmpty())
+            return;
 
-        deleteDocuments(indexName, updateTerm, false);
-        addDocument(indexName, doc, analyzer, docNumber, autoCommit, null);     
+        Iterator<Pair<ByteBuffer, LucandraTermInfo>> it = getPostingQueue(indexName).iterator();
+        while (it.hasNext())
+        {
+            if (docNumbers.contains(it.next().right.docId))
+                it.remove();
+        }
     }
 
-    public int docCount()
+    private void schedulePurge(final String indexName)
     {
+        if (!purgeIndexes.add(indexName))
+            return;
 
-        throw new RuntimeException("not supported");
+        purgeExecutor.schedule(new Runnable() {
+            public void run()
+            {
+                int purged = 0;
+
+                try
+                {
+                    purged = purgeDeletes(indexName, CassandraUtils.purgeBatchSize);
+                }
+                catch (Throwable t)
+                {
+                    logger.error("Purge of deleted docs failed for " + indexName, t);
+                }
 
+                // keep going until a run finds nothing left
+                purgeIndexes.remove(indexName);
+                if (purged > 0)
+                    schedulePurge(indexName);
+            }
+        }, CassandraUtils.purgeInterval, TimeUnit.SECONDS);
     }
 
-    // write completed mutations
-    public void commit(String indexName, boolean blocked)
+    /**
+     * Removes the postings of up to batchSize deleted docs, then clears
+     * their marks. Returns the number of docs purged, throws if their
+     * postings couldn't be removed.
+     */
+    public int purgeDeletes(String indexName, int batchSize) throws IOException
     {
+        SortedMap<Integer, Long> marks = DeletedDocs.readMarks(indexName, batchSize);
 
-        Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> mutationQ = getMutationQueue(indexName);
+        if (marks.isEmpty())
+            return 0;
 
-        boolean success = false;
+        List<Integer> docNumbers = new ArrayList<Integer>(marks.keySet());
 
-        List<RowMutation> rows = new ArrayList<RowMutation>();
+        removeDocuments(indexName, docNumbers, true);
 
-        // Take and write
-        try
-        {
-            while (blocked && mutationQ.left.get() > 0)
-            {
-                Thread.sleep(20);
-            }
+        // readers must not see the docs again before their postings are
+        // gone, so a failed commit fails the purge and the marks stay
+        commit(indexName, false);
 
-            // marked active write
-            mutationQ.left.incrementAndGet();
+        // only the marks that were read, older ones may still be queued
+        Map<ByteBuffer, RowMutation> workingMutations = new HashMap<ByteBuffer, RowMutation>();
+        DeletedDocs.clear(workingMutations, indexName, marks);
 
-            Iterator<RowMutation> it = mutationQ.right.iterator();
-            while(it.hasNext())
-                rows.add(it.next());
+        // readers reread the marks, the live count already dropped
+        for (Integer docNumber : docNumbers)
+            getIndexChanges(indexName).add(docNumber, null);
 
-            
-            if (rows.isEmpty())
-            {
-                if (logger.isDebugEnabled())
-                    logger.debug("Nothing to write for :" + indexName);
-                return;
-            }
+        appendMutations(indexName, workingMutations);
+        commit(indexName, false);
 
-            mutationQ.right.removeAll(rows);
-            CassandraUtils.robustInsert(CassandraUtils.consistency, rows.toArray(new RowMutation[] {}));
-            
-            success = true;
-        }
-        catch (InterruptedException e)
-        {
-            // handled below
-        }
-        finally
-        {
+        // ids stay unused until their marks are gone
+        PurgeListener listener = purgeListener;
+        if (listener != null)
+            listener.purged(indexName, docNumbers);
 
-            // If write failed, add them back for another attempt
-            if (!success)
-            {
-                if (rows != null)
-                    mutationQ.right.addAll(rows);
-            }
-            else
-            {
-                if (logger.isDebugEnabled())
-                    logger.debug("wrote " + rows.size());
-            }
+        docsPurged.addAndGet(docNumbers.size());
 
-            // Mark we are done.
-            mutationQ.left.decrementAndGet();
-        }
+        if (logger.isDebugEnabled())
+            logger.debug("Purged " + docNumbers.size() + " deleted docs from " + indexName);
 
+        return docNumbers.size();
     }
 
-    // append complete mutations to the list
-    private void appendMutations(String indexName, Map<ByteBuffer, RowMutation> mutations)
+    /** Purges every deleted doc of the index, returns how many there were */
+    public int expungeDeletes(String indexName) throws IOException
     {
+        int total = 0;
 
-        Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> mutationQ = getMutationQueue(indexName);
+        for (int purged; (purged = purgeDeletes(indexName, CassandraUtils.purgeBatchSize)) > 0;)
+            total += purged;
 
-        mutationQ.right.addAll(mutations.values());
+        return total;
     }
 
-    // append complete mutations to the list
-    public void appendMutations(String indexName, RowMutation... mutations)
+    /**
+     * Purges the deleted docs, then rewrites the term rows of the index
+     * without their dead columns
+     */
+    public IndexOptimizer optimize(String indexName) throws IOException
     {
-        Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> mutationQ = getMutationQueue(indexName);
+        // pending postings go out first so they are seen by the rewrite,
+        // a failed purge fails the optimize
+        commit(indexName, true);
+        expungeDeletes(indexName);
 
-        mutationQ.right.addAll(Arrays.asList(mutations));
+        return new IndexOptimizer(indexName).run();
     }
-    
-    private Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> getMutationQueue(String indexName)
+
+    public void setPurgeListener(PurgeListener listener)
+    {
+        purgeListener = listener;
+    }
+
+    /** Deleted docs whose postings have been removed */
+    public static long getDocsPurged()
     {
+        return docsPurged.get();
+    }
 
-        Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> mutationQ = mutationList.get(indexName);
+    private void addDeleteMutations(Map<ByteBuffer, RowMutation> workingMutations, byte[] indexNameBytes,
+            ByteBuffer selfKey, int docNumber, DocumentTerms terms) throws IOException
+    {
+        addFieldCacheTombstones(workingMutations, indexNameBytes, docNumber, terms.getFields());
+        addTermTombstones(workingMutations, indexNameBytes, docNumber, terms.getTerms());
 
-        if (mutationQ == null)
+        // finally delete ourselves
+        CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily, (ByteBuffer) null, selfKey,
+                (ByteBuffer) null);
+    }
+
+    // remove from field cache
+    private void addFieldCacheTombstones(Map<ByteBuffer, RowMutation> workingMutations, byte[] indexNameBytes,
+            int docNumber, Collection<String> fields)
+    {
+        for (String field : fields)
         {
-            mutationQ = new Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>>(new AtomicInteger(0),
-                    new ConcurrentLinkedQueue<RowMutation>());
-            Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> liveQ = mutationList
-                    .putIfAbsent(indexName, mutationQ);
+            ByteBuffer fieldCacheKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes,
+                    field.getBytes());
 
-            if (liveQ != null)
-                mutationQ = liveQ;
+            CassandraUtils.addMutations(workingMutations, CassandraUtils.fieldCacheColumnFamily,
+                    CassandraUtils.writeVInt(docNumber), fieldCacheKey, (ByteBuffer) null);
         }
+    }
 
-        return mutationQ;
+    private void addTermTombstones(Map<ByteBuffer, RowMutation> workingMutations, byte[] indexNameBytes,
+            int docNumber, Collection<Term> terms) throws IOException
+    {
+        for (Term term : terms)
+        {
+            ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, term.field()
+                    .getBytes("UTF-8"), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
+
+            // blocks can't be changed in place, so mark the doc as removed
+            // from this term
+            CassandraUtils.addMutations(workingMutations, CassandraUtils.termVecColumnFamily,
+                    CassandraUtils.writeVInt(docNumber), key,
+                    CassandraUtils.useTermBlocks ? ByteBufferUtil.EMPTY_BYTE_BUFFER : (ByteBuffer) null);
+        }
+    }
+
+    // drop postings of these terms for the doc that haven't been packed yet,
+    // they would outlive the tombstones
+    private void removePendingPostings(String indexName, int docNumber, Collection<Term> terms) throws IOException
+    {
+        if (!CassandraUtils.useTermBlocks || terms.isEmpty())
+            return;
+
+        byte[] indexNameBytes = indexName.getBytes("UTF-8");
+
+        Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
+        for (Term term : terms)
+            keys.add(CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, term.field().getBytes(
+                    "UTF-8"), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8")));
+
+        Iterator<Pair<ByteBuffer, LucandraTermInfo>> it = getPostingQueue(indexName).iterator();
+        while (it.hasNext())
+        {
+            Pair<ByteBuffer, LucandraTermInfo> posting = it.next();
+
+            if (posting.right.docId == docNumber && keys.contains(posting.left))
+                it.remove();
+        }
+    }
+
+    /** Docs deleted per second spent deleting them */
+    public static double getDeleteRate()
+    {
+        long nanos = deleteNanos.get();
+
+        return nanos == 0 ? 0.0 : docsDeleted.get() * 1e9 / nanos;
+    }
+
+    public static long getDocsDeleted()
+    {
+        return docsDeleted.get();
+    }
+
+    /**
+     * Replaces the doc with this number. Docs indexed with field hashes are
+     * updated in place: unchanged docs aren't written at all, otherwise only
+     * changed fields are indexed again. That relies on updateTerm matching
+     * just this doc, as the id lookup of Solandra ensures.
+     */
+    public void updateDocument(String indexName, Term updateTerm, Document doc, Analyzer analyzer, int docNumber,
+            boolean autoCommit) throws CorruptIndexException, IOException
+    {
+        if (CassandraUtils.useDiffUpdates)
+        {
+            int shardedNumber = docNumber % CassandraIndexManager.maxDocsPerShard;
+
+            ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes,
+                    Integer.toHexString(shardedNumber).getBytes("UTF-8"));
+
+            List<Row> rows = CassandraUtils.robustRead(key, CassandraUtils.metaColumnPath, Arrays.asList(
+                    CassandraUtils.documentTermsFieldBytes, CassandraUtils.documentMetaFieldBytes,
+                    CassandraUtils.documentHashesFieldBytes), CassandraUtils.consistency);
+
+            ColumnFamily cf = rows.isEmpty() ? null : rows.get(0).cf;
+
+            DocumentTerms oldTerms = DocumentTerms.read(cf);
+            DocumentHashes oldHashes = DocumentHashes.read(cf);
+
+            if (oldTerms != null && oldHashes != null)
+            {
+                DocumentHashes hashes = DocumentHashes.compute(doc);
+
+                if (hashes.sameContent(oldHashes))
+                {
+                    updatesUnchanged.incrementAndGet();
+
+                    if (logger.isDebugEnabled())
+                        logger.debug("Skipped unchanged update of " + shardedNumber);
+                }
+                else
+                {
+                    updatesDiffed.incrementAndGet();
+                    addDocument(indexName, doc, analyzer, docNumber, false, null, oldTerms, oldHashes, hashes);
+                }
+
+                if (autoCommit)
+                    commit(indexName, false);
+
+                return;
+            }
+        }
+
+        // the doc keeps its number, so it can't be left marked as deleted
+        removeDocuments(indexName, termDocNumbers(indexName, updateTerm), false);
+        addDocument(indexName, doc, analyzer, docNumber, autoCommit, null);     
+    }
+
+    /** Updates skipped since the doc was unchanged */
+    public static long getUpdatesUnchanged()
+    {
+        return updatesUnchanged.get();
+    }
+
+    /** Updates that only rewrote the changed fields */
+    public static long getUpdatesDiffed()
+    {
+        return updatesDiffed.get();
+    }
+
+    public int docCount()
+    {
+
+        throw new RuntimeException("not supported");
+
+    }
+
+    /**
+     * Writes the queued mutations of this index. Returns once they are
+     * written, a blocked commit also waits for the writes of other commits
+     * still in flight.
+     *
+     * Failed writes are queued again for the next commit, and the commit
+     * throws so callers don't act on data that was never written.
+     */
+    public void commit(String indexName, boolean blocked) throws IOException
+    {
+        Future<Integer> commit = commitAsync(indexName);
+
+        if (blocked)
+        {
+            for (Future<Integer> batch : getMutationQueue(indexName).inFlight)
+                waitFor(indexName, batch);
+        }
+
+        // finished batches may already be gone from the in flight list
+        waitFor(indexName, commit);
+    }
+
+    private void waitFor(String indexName, Future<Integer> commit) throws IOException
+    {
+        try
+        {
+            commit.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + indexName, e);
+        }
+        catch (ExecutionException e)
+        {
+            logger.error("Write failed for " + indexName + ", will retry on next commit", e.getCause());
+            throw new IOException("Write failed for " + indexName, e.getCause());
+        }
+    }
+
+    /**
+     * Hands the queued mutations of this index to the commit pipeline
+     * without waiting for them to be written
+     */
+    public Future<Integer> commitAsync(final String indexName)
+    {
+        final MutationQueue mutationQ = getMutationQueue(indexName);
+
+        List<RowMutation> normBlocks = packNormBlocks(indexName);
+        if (!normBlocks.isEmpty())
+            mutationQ.addAll(normBlocks);
+
+        // forget finished writes
+        Iterator<Future<Integer>> it = mutationQ.inFlight.iterator();
+        while (it.hasNext())
+        {
+            if (it.next().isDone())
+                it.remove();
+        }
+
+        List<Future<Integer>> batches = new ArrayList<Future<Integer>>();
+
+        // delete markers queued after this are newer than the blocks, the
+        // ones before it go out in the batches below
+        long timestamp = System.currentTimeMillis();
+        Map<ByteBuffer, List<LucandraTermInfo>> termPostings = drainPostings(indexName);
+
+        // counter updates aren't idempotent, so they are summed per term
+        // and sent once, apart from the row mutations
+        final Map<Term, Integer> docFreqs = drainDocFreqs(indexName);
+        if (!docFreqs.isEmpty())
+        {
+            Future<Integer> future = commitExecutor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception
+                {
+                    IMutation[] counters = toCounterMutations(indexName, docFreqs);
+
+                    try
+                    {
+                        CassandraUtils.insertOnce(CassandraUtils.consistency, counters);
+                    }
+                    catch (UnavailableException e)
+                    {
+                        // nothing was applied, so they go out with the next commit
+                        addDocFreqs(indexName, docFreqs);
+                        throw e;
+                    }
+                    catch (TimeoutException e)
+                    {
+                        // may have been applied, sending them again could
+                        // count twice. Readers drop their counts for these
+                        // terms and the next optimize recounts them.
+                        logger.warn("Term counts of " + indexName + " may be off until the next optimize", e);
+                        getIndexChanges(indexName).addTerms(docFreqs.keySet());
+                    }
+
+                    return counters.length;
+                }
+            });
+
+            batches.add(future);
+            mutationQ.inFlight.add(future);
+        }
+
+        while (true)
+        {
+            final List<RowMutation> batch = new ArrayList<RowMutation>(commitBatchSize);
+
+            RowMutation rm;
+            while (batch.size() < commitBatchSize && (rm = mutationQ.mutations.poll()) != null)
+                batch.add(rm);
+
+            if (batch.isEmpty())
+                break;
+
+            Future<Integer> future = commitExecutor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception
+                {
+                    List<RowMutation> rows = coalesce(batch);
+
+                    // merged rows are written, or re-queued, in place of the originals
+                    if (rows.size() < batch.size())
+                        mutationQ.pending.addAndGet(rows.size() - batch.size());
+
+                    boolean success = false;
+
+                    try
+                    {
+                        CassandraUtils.robustInsert(CassandraUtils.consistency, rows.toArray(new RowMutation[] {}));
+                        success = true;
+                    }
+                    finally
+                    {
+                        // If write failed, add them back for another attempt
+                        if (success)
+                            mutationQ.pending.addAndGet(-rows.size());
+                        else
+                            mutationQ.mutations.addAll(rows);
+                    }
+
+                    if (logger.isDebugEnabled())
+                        logger.debug("wrote " + batch.size() + " mutations as " + rows.size() + " rows for "
+                                + indexName);
+
+                    return batch.size();
+                }
+            });
+
+            batches.add(future);
+            mutationQ.inFlight.add(future);
+        }
+
+        // packed last, so the markers it merges past are already written
+        if (termPostings != null)
+        {
+            Future<Integer> packed = packTermBlocks(indexName, mutationQ, termPostings, timestamp,
+                    new ArrayList<Future<Integer>>(mutationQ.inFlight));
+
+            batches.add(packed);
+            mutationQ.inFlight.add(packed);
+        }
+
+        if (batches.isEmpty() && logger.isDebugEnabled())
+            logger.debug("Nothing to write for :" + indexName);
+
+        return new CommitFuture(batches);
+    }
+
+    /**
+     * Merges the mutations of a batch that share a row key, so a row touched
+     * by many documents (the term list, field cache rows) is sent once
+     */
+    static List<RowMutation> coalesce(List<RowMutation> batch)
+    {
+        Map<ByteBuffer, List<RowMutation>> byKey = new LinkedHashMap<ByteBuffer, List<RowMutation>>(batch.size());
+
+        for (RowMutation rm : batch)
+        {
+            List<RowMutation> rows = byKey.get(rm.key());
+            if (rows == null)
+            {
+                rows = new ArrayList<RowMutation>(1);
+                byKey.put(rm.key(), rows);
+            }
+
+            rows.add(rm);
+        }
+
+        List<RowMutation> coalesced = new ArrayList<RowMutation>(byKey.size());
+
+        for (Map.Entry<ByteBuffer, List<RowMutation>> entry : byKey.entrySet())
+        {
+            List<RowMutation> rows = entry.getValue();
+
+            if (rows.size() == 1)
+            {
+                coalesced.add(rows.get(0));
+                continue;
+            }
+
+            // queued mutations may still be re-sent, so merge into a copy
+            RowMutation merged = new RowMutation(CassandraUtils.keySpace, entry.getKey());
+
+            for (RowMutation rm : rows)
+            {
+                for (ColumnFamily cf : rm.getColumnFamilies())
+                {
+                    ColumnFamily mergedCf = merged.getColumnFamily(cf.id());
+                    if (mergedCf == null)
+                    {
+                        mergedCf = cf.cloneMeShallow();
+                        merged.add(mergedCf);
+                    }
+
+                    // columns reconcile by timestamp, as if applied one by one
+                    mergedCf.addAll(cf);
+                }
+            }
+
+            coalesced.add(merged);
+        }
+
+        mutationsQueued.addAndGet(batch.size());
+        mutationsSent.addAndGet(coalesced.size());
+
+        return coalesced;
+    }
+
+    /** Mutations queued per row written, 1.0 means nothing was merged */
+    public static double getCoalesceRatio()
+    {
+        long sent = mutationsSent.get();
+
+        return sent == 0 ? 1.0 : (double) mutationsQueued.get() / sent;
+    }
+
+    /**
+     * Blocks while too many mutations of this index are waiting to be
+     * written, so writers slow down to the rate cassandra accepts them
+     */
+    public void awaitCapacity(String indexName) throws IOException
+    {
+        MutationQueue mutationQ = getMutationQueue(indexName);
+
+        if (mutationQ.pending.get() <= maxPending)
+            return;
+
+        commitAsync(indexName);
+
+        try
+        {
+            for (Future<Integer> batch : mutationQ.inFlight)
+            {
+                if (mutationQ.pending.get() <= maxPending)
+                    break;
+
+                batch.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // counts each distinct term of a doc once, and the doc itself as live
+    /**
+     * Adds a column for docNumber to the max doc row if it is the highest
+     * this node has written, and drops the one it replaces. Readers take
+     * the last column, so writers never need to agree on a single value.
+     */
+    private static void raiseMaxDoc(Map<ByteBuffer, RowMutation> workingMutations, String indexName, int docNumber)
+    {
+        AtomicInteger max = maxDocs.get(indexName);
+        if (max == null)
+        {
+            max = new AtomicInteger(-1);
+            AtomicInteger liveMax = maxDocs.putIfAbsent(indexName, max);
+
+            if (liveMax != null)
+                max = liveMax;
+        }
+
+        int previous;
+        do
+        {
+            previous = max.get();
+
+            if (docNumber <= previous)
+                return;
+        }
+        while (!max.compareAndSet(previous, docNumber));
+
+        ByteBuffer key = CassandraUtils.maxDocsKey(indexName);
+
+        CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily, ByteBufferUtil.bytes(docNumber),
+                key, ByteBufferUtil.EMPTY_BYTE_BUFFER);
+
+        if (previous >= 0)
+            CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily, ByteBufferUtil
+                    .bytes(previous), key, (ByteBuffer) null);
+    }
+
+    /**
+     * An index without any terms yet has its term stats counted from the
+     * first doc on. One that has terms may hold docs written before the
+     * stats were, it waits for an optimize to recount them.
+     */
+    private static void markCountedIfEmpty(String indexName, ByteBuffer indexTermsKey) throws IOException
+    {
+        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, new SliceFromReadCommand(
+                CassandraUtils.keySpace, indexTermsKey, new ColumnParent(CassandraUtils.metaInfoColumnFamily),
+                ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER, false, 1));
+
+        if (!rows.isEmpty() && rows.get(0).cf != null && !rows.get(0).cf.getSortedColumns().isEmpty())
+            return;
+
+        markCounted(indexName);
+    }
+
+    /** Lets readers trust the term stats of this index */
+    static void markCounted(String indexName) throws IOException
+    {
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, CassandraUtils.docStatsKey(indexName));
+        rm.add(new QueryPath(CassandraUtils.docColumnFamily, null, CassandraUtils.countedColBytes),
+                ByteBufferUtil.EMPTY_BYTE_BUFFER, System.currentTimeMillis());
+
+        CassandraUtils.robustInsert(CassandraUtils.consistency, rm);
+    }
+
+    private void countTerms(String indexName, Collection<Term> terms, int delta)
+    {
+        if (!CassandraUtils.useTermStats)
+            return;
+
+        Map<Term, Integer> docFreqs = new HashMap<Term, Integer>();
+        docFreqs.put(liveDocsTerm, delta);
+
+        if (terms != null)
+        {
+            for (Term term : terms)
+                docFreqs.put(term, delta);
+        }
+
+        addDocFreqs(indexName, docFreqs);
+    }
+
+    // doc counts of a doc updated in place, its live count is unchanged
+    private void countTerms(String indexName, Collection<Term> added, Collection<Term> removed)
+    {
+        if (!CassandraUtils.useTermStats)
+            return;
+
+        Map<Term, Integer> docFreqs = new HashMap<Term, Integer>();
+
+        for (Term term : added)
+            docFreqs.put(term, 1);
+
+        for (Term term : removed)
+            docFreqs.put(term, -1);
+
+        if (!docFreqs.isEmpty())
+            addDocFreqs(indexName, docFreqs);
+    }
+
+    private void addDocFreqs(String indexName, Map<Term, Integer> docFreqs)
+    {
+        Map<Term, Integer> deltas = docFreqDeltas.get(indexName);
+
+        if (deltas == null)
+        {
+            deltas = new HashMap<Term, Integer>();
+            Map<Term, Integer> liveDeltas = docFreqDeltas.putIfAbsent(indexName, deltas);
+
+            if (liveDeltas != null)
+                deltas = liveDeltas;
+        }
+
+        synchronized (deltas)
+        {
+            for (Map.Entry<Term, Integer> entry : docFreqs.entrySet())
+            {
+                Integer current = deltas.get(entry.getKey());
+                deltas.put(entry.getKey(), current == null ? entry.getValue() : current + entry.getValue());
+            }
+        }
+    }
+
+    private Map<Term, Integer> drainDocFreqs(String indexName)
+    {
+        Map<Term, Integer> deltas = docFreqDeltas.get(indexName);
+
+        if (deltas == null)
+            return Collections.emptyMap();
+
+        synchronized (deltas)
+        {
+            Map<Term, Integer> drained = new HashMap<Term, Integer>(deltas);
+            deltas.clear();
+
+            return drained;
+        }
+    }
+
+    // one counter mutation per field row of the index
+    private IMutation[] toCounterMutations(String indexName, Map<Term, Integer> docFreqs) throws IOException
+    {
+        Map<String, RowMutation> fieldRows = new HashMap<String, RowMutation>();
+
+        for (Map.Entry<Term, Integer> entry : docFreqs.entrySet())
+        {
+            if (entry.getValue() == 0)
+                continue;
+
+            Term term = entry.getKey();
+            RowMutation rm = fieldRows.get(term.field());
+
+            if (rm == null)
+            {
+                ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes,
+                        term.field().getBytes("UTF-8"));
+
+                rm = new RowMutation(CassandraUtils.keySpace, key);
+                fieldRows.put(term.field(), rm);
+            }
+
+            rm.addCounter(new QueryPath(CassandraUtils.termStatsColumnFamily, null, ByteBuffer.wrap(term.text()
+                    .getBytes("UTF-8"))), entry.getValue());
+        }
+
+        IMutation[] counters = new IMutation[fieldRows.size()];
+
+        int i = 0;
+        for (RowMutation rm : fieldRows.values())
+            counters[i++] = new CounterMutation(rm, CassandraUtils.consistency);
+
+        return counters;
+    }
+
+    private void addTermInfo(Map<ByteBuffer, RowMutation> workingMutations,
+            List<Pair<ByteBuffer, LucandraTermInfo>> termPostings, ByteBuffer key, LucandraTermInfo termInfo)
+    {
+        if (CassandraUtils.useTermBlocks)
+        {
+            termPostings.add(new Pair<ByteBuffer, LucandraTermInfo>(key, termInfo));
+        }
+        else
+        {
+            CassandraUtils.addMutations(workingMutations, CassandraUtils.termVecColumnFamily, CassandraUtils
+                    .writeVInt(termInfo.docId), key, termInfo.serialize());
+        }
+    }
+
+    // the buffered postings of each term, in doc order with one per doc, or
+    // null if there are none
+    private Map<ByteBuffer, List<LucandraTermInfo>> drainPostings(String indexName)
+    {
+        ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>> postingQ = postingList.get(indexName);
+
+        if (postingQ == null || postingQ.isEmpty())
+            return null;
+
+        Map<ByteBuffer, List<LucandraTermInfo>> termPostings = new HashMap<ByteBuffer, List<LucandraTermInfo>>();
+
+        Pair<ByteBuffer, LucandraTermInfo> posting;
+        while ((posting = postingQ.poll()) != null)
+        {
+            List<LucandraTermInfo> docs = termPostings.get(posting.left);
+
+            if (docs == null)
+            {
+                docs = new ArrayList<LucandraTermInfo>();
+                termPostings.put(posting.left, docs);
+            }
+
+            docs.add(posting.right);
+        }
+
+        if (termPostings.isEmpty())
+            return null;
+
+        for (Map.Entry<ByteBuffer, List<LucandraTermInfo>> entry : termPostings.entrySet())
+        {
+            // sort is stable, so the last posting added for a doc wins
+            List<LucandraTermInfo> docs = entry.getValue();
+            Collections.sort(docs);
+
+            List<LucandraTermInfo> unique = new ArrayList<LucandraTermInfo>(docs.size());
+            for (LucandraTermInfo doc : docs)
+            {
+                if (!unique.isEmpty() && unique.get(unique.size() - 1).docId == doc.docId)
+                    unique.set(unique.size() - 1, doc);
+                else
+                    unique.add(doc);
+            }
+
+            entry.setValue(unique);
+        }
+
+        return termPostings;
+    }
+
+    /**
+     * Packs the postings of each term into blocks on the commit pool. The
+     * last block of each term row is read first and, while it has room,
+     * merged with the new postings under a new name, so rows keep few full
+     * blocks however small the commits are.
+     *
+     * Delete markers are stamped when they are queued, so the merge waits
+     * for the writes queued before timestamp. A marker still unwritten when
+     * the last block is read would be older than the merged block and
+     * couldn't hide its doc. If any of those writes failed the postings are
+     * packed without merging.
+     */
+    private Future<Integer> packTermBlocks(final String indexName, final MutationQueue mutationQ,
+            final Map<ByteBuffer, List<LucandraTermInfo>> termPostings, final long timestamp,
+            final List<Future<Integer>> writes)
+    {
+        return commitExecutor.submit(new Callable<Integer>() {
+            public Integer call() throws Exception
+            {
+                List<RowMutation> rows;
+
+                try
+                {
+                    // all of these were submitted before this task, so none
+                    // of them waits for a free thread behind it
+                    for (Future<Integer> write : writes)
+                        waitFor(indexName, write);
+
+                    rows = toTermBlocks(termPostings, readLastBlocks(termPostings.keySet()), timestamp);
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Unable to read the last term blocks of " + indexName + ", packing without them", e);
+                    rows = toTermBlocks(termPostings, Collections
+                            .<ByteBuffer, Pair<IColumn, Collection<IColumn>>> emptyMap(), timestamp);
+                }
+
+                boolean success = false;
+
+                try
+                {
+                    CassandraUtils.robustInsert(CassandraUtils.consistency, rows.toArray(new RowMutation[rows.size()]));
+                    success = true;
+                }
+                finally
+                {
+                    // the blocks are final now, retry them with the rest
+                    if (!success)
+                        mutationQ.addAll(rows);
+                }
+
+                if (logger.isDebugEnabled())
+                    logger.debug("packed postings of " + termPostings.size() + " terms for " + indexName);
+
+                return rows.size();
+            }
+        });
+    }
+
+    // the last block column of each term row that has room left, with the
+    // row's delete markers
+    private static Map<ByteBuffer, Pair<IColumn, Collection<IColumn>>> readLastBlocks(Collection<ByteBuffer> keys)
+            throws IOException
+    {
+        ColumnParent blockParent = new ColumnParent(CassandraUtils.termBlockColumnFamily);
+
+        List<ReadCommand> reads = new ArrayList<ReadCommand>(keys.size());
+        for (ByteBuffer key : keys)
+            reads.add(new SliceFromReadCommand(CassandraUtils.keySpace, key, blockParent,
+                    ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER, true, 1));
+
+        Map<ByteBuffer, IColumn> lastBlocks = new HashMap<ByteBuffer, IColumn>();
+
+        for (Row row : CassandraUtils.robustRead(CassandraUtils.consistency, reads.toArray(new ReadCommand[reads
+                .size()])))
+        {
+            if (row.cf == null)
+                continue;
+
+            for (IColumn col : row.cf.getSortedColumns())
+            {
+                if (!col.isLive())
+                    continue;
+
+                // only the header is read here
+                if (new LucandraTermBlock(col.name(), col.value(), col.timestamp()).size < CassandraUtils.termBlockSize)
+                    lastBlocks.put(row.key.key, col);
+            }
+        }
+
+        Map<ByteBuffer, Pair<IColumn, Collection<IColumn>>> open = new HashMap<ByteBuffer, Pair<IColumn, Collection<IColumn>>>(
+                lastBlocks.size());
+
+        if (lastBlocks.isEmpty())
+            return open;
+
+        Map<ByteBuffer, Collection<IColumn>> markers = TermCache.readRows(CassandraUtils.termVecColumnFamily,
+                lastBlocks.keySet());
+
+        for (Map.Entry<ByteBuffer, IColumn> entry : lastBlocks.entrySet())
+            open.put(entry.getKey(), new Pair<IColumn, Collection<IColumn>>(entry.getValue(), markers.get(entry
+                    .getKey())));
+
+        return open;
+    }
+
+    private static List<RowMutation> toTermBlocks(Map<ByteBuffer, List<LucandraTermInfo>> termPostings,
+            Map<ByteBuffer, Pair<IColumn, Collection<IColumn>>> openBlocks, long timestamp)
+    {
+        List<RowMutation> rows = new ArrayList<RowMutation>(termPostings.size());
+
+        for (Map.Entry<ByteBuffer, List<LucandraTermInfo>> entry : termPostings.entrySet())
+        {
+            List<LucandraTermInfo> docs = entry.getValue();
+            RowMutation rm = new RowMutation(CassandraUtils.keySpace, entry.getKey());
+
+            Pair<IColumn, Collection<IColumn>> open = openBlocks.get(entry.getKey());
+
+            int from = docs.size();
+            if (open != null)
+            {
+                IColumn col = open.left;
+                LucandraTermBlock block = new LucandraTermBlock(col.name(), col.value(), col.timestamp());
+
+                // only docs after the start of the block go into it, so it
+                // doesn't stretch over the blocks before it
+                from = 0;
+                while (from < docs.size() && docs.get(from).docId < block.firstDoc)
+                    from++;
+
+                if (from < docs.size())
+                {
+                    addTermBlocks(rm, LucandraTermBlock.append(block, deletedDocs(open.right), docs.subList(from,
+                            docs.size())), timestamp);
+
+                    // the merged block is written under a new name, so
+                    // concurrent packs of this row can't lose each other's docs
+                    rm.delete(new QueryPath(CassandraUtils.termBlockColumnFamily, null, col.name()), col.timestamp());
+                }
+            }
+
+            addTermBlocks(rm, docs.subList(0, from), timestamp);
+
+            rows.add(rm);
+        }
+
+        return rows;
+    }
+
+    private static void addTermBlocks(RowMutation rm, List<LucandraTermInfo> docs, long timestamp)
+    {
+        for (int i = 0; i < docs.size(); i += CassandraUtils.termBlockSize)
+        {
+            List<LucandraTermInfo> block = docs.subList(i, Math.min(docs.size(), i + CassandraUtils.termBlockSize));
+
+            rm.add(new QueryPath(CassandraUtils.termBlockColumnFamily, null, LucandraTermBlock
+                    .createColumnName(block.get(0).docId)), LucandraTermBlock.serialize(block), timestamp);
+        }
+    }
+
+    // docs marked deleted from the term blocks, with when they were
+    private static NavigableMap<Integer, Long> deletedDocs(Collection<IColumn> docs)
+    {
+        NavigableMap<Integer, Long> deleted = new TreeMap<Integer, Long>();
+
+        if (docs == null)
+            return deleted;
+
+        for (IColumn col : docs)
+        {
+            if (col.isLive() && col.value().remaining() == 0)
+                deleted.put(CassandraUtils.readVInt(col.name()), col.timestamp());
+        }
+
+        return deleted;
+    }
+
+    // pack the buffered norms of each field into one column per block
+    private List<RowMutation> packNormBlocks(String indexName)
+    {
+        ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>> normQ = normList.get(indexName);
+
+        if (normQ == null || normQ.isEmpty())
+            return Collections.emptyList();
+
+        Map<ByteBuffer, List<LucandraTermInfo>> fieldNorms = new HashMap<ByteBuffer, List<LucandraTermInfo>>();
+
+        Pair<ByteBuffer, LucandraTermInfo> norm;
+        while ((norm = normQ.poll()) != null)
+        {
+            List<LucandraTermInfo> docs = fieldNorms.get(norm.left);
+
+            if (docs == null)
+            {
+                docs = new ArrayList<LucandraTermInfo>();
+                fieldNorms.put(norm.left, docs);
+            }
+
+            docs.add(norm.right);
+        }
+
+        Map<ByteBuffer, RowMutation> workingMutations = new HashMap<ByteBuffer, RowMutation>(fieldNorms.size());
+
+        for (Map.Entry<ByteBuffer, List<LucandraTermInfo>> entry : fieldNorms.entrySet())
+        {
+            // sort is stable, so the last norm added for a doc wins
+            List<LucandraTermInfo> docs = entry.getValue();
+            Collections.sort(docs);
+
+            List<LucandraTermInfo> block = new ArrayList<LucandraTermInfo>();
+            for (LucandraTermInfo doc : docs)
+            {
+                if (!block.isEmpty() && block.get(block.size() - 1).docId == doc.docId)
+                {
+                    block.set(block.size() - 1, doc);
+                    continue;
+                }
+
+                if (!block.isEmpty()
+                        && LucandraNormBlock.blockStart(doc.docId) != LucandraNormBlock.blockStart(block.get(0).docId))
+                {
+                    addNormBlock(workingMutations, entry.getKey(), block);
+                    block = new ArrayList<LucandraTermInfo>();
+                }
+
+                block.add(doc);
+            }
+
+            addNormBlock(workingMutations, entry.getKey(), block);
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("packed norms of " + fieldNorms.size() + " fields for " + indexName);
+
+        return new ArrayList<RowMutation>(workingMutations.values());
+    }
+
+    private void addNormBlock(Map<ByteBuffer, RowMutation> workingMutations, ByteBuffer key,
+            List<LucandraTermInfo> block)
+    {
+        CassandraUtils.addMutations(workingMutations, CassandraUtils.normsColumnFamily, LucandraTermBlock
+                .createColumnName(LucandraNormBlock.blockStart(block.get(0).docId)), key, LucandraNormBlock
+                .serialize(block));
+    }
+
+    // append complete mutations to the list
+    private void appendMutations(String indexName, Map<ByteBuffer, RowMutation> mutations)
+    {
+        getMutationQueue(indexName).addAll(mutations.values());
+    }
+
+    // append complete mutations to the list
+    public void appendMutations(String indexName, RowMutation... mutations)
+    {
+        getMutationQueue(indexName).addAll(Arrays.asList(mutations));
+    }
+    
+    private MutationQueue getMutationQueue(String indexName)
+    {
+
+        MutationQueue mutationQ = mutationList.get(indexName);
+
+        if (mutationQ == null)
+        {
+            mutationQ = new MutationQueue();
+            MutationQueue liveQ = mutationList.putIfAbsent(indexName, mutationQ);
+
+            if (liveQ != null)
+                mutationQ = liveQ;
+        }
+
+        return mutationQ;
+    }
+
+    /**
+     * Takes the terms and documents changed in this index since the last
+     * call, so readers can be told what to invalidate
+     */
+    public IndexChanges takeChanges(String indexName)
+    {
+        return getIndexChanges(indexName).drain();
+    }
+
+    /** Puts back changes taken for a flush that failed */
+    public void restoreChanges(String indexName, IndexChanges changes)
+    {
+        getIndexChanges(indexName).addAll(changes);
+    }
+
+    private IndexChanges getIndexChanges(String indexName)
+    {
+        IndexChanges changes = indexChanges.get(indexName);
+
+        if (changes == null)
+        {
+            changes = new IndexChanges();
+            IndexChanges liveChanges = indexChanges.putIfAbsent(indexName, changes);
+
+            if (liveChanges != null)
+                changes = liveChanges;
+        }
+
+        return changes;
+    }
+
+    private ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>> getPostingQueue(String indexName)
+    {
+        ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>> postingQ = postingList.get(indexName);
+
+        if (postingQ == null)
+        {
+            postingQ = new ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>>();
+            ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>> liveQ = postingList.putIfAbsent(indexName,
+                    postingQ);
+
+            if (liveQ != null)
+                postingQ = liveQ;
+        }
+
+        return postingQ;
+    }
+
+    private ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>> getNormQueue(String indexName)
+    {
+        ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>> normQ = normList.get(indexName);
+
+        if (normQ == null)
+        {
+            normQ = new ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>>();
+            ConcurrentLinkedQueue<Pair<ByteBuffer, LucandraTermInfo>> liveQ = normList.putIfAbsent(indexName, normQ);
+
+            if (liveQ != null)
+                normQ = liveQ;
+        }
+
+        return normQ;
     }
 
     /** Write all terms to bytes using thrift serialization */
@@ -24,8 +24,6 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
-import lucandra.cluster.CassandraIndexManager;
-
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.utils.ByteBufferUtil;
@@ -42,7 +40,7 @@ public class LucandraAllTermDocs implements TermDocs
     private String        indexName;
     private int           idx;      // tracks where we are in the doc buffer
     private int           fillSize; // tracks how much the buffer was filled with docs from cassandra
-    private OpenBitSet    docBuffer = new OpenBitSet(CassandraIndexManager.maxDocsPerShard+1); // max number of docs we pull
+    private OpenBitSet    docBuffer; // max number of docs we pull
     private int           doc       = -1;
     private int           maxDoc;
 
@@ -50,6 +48,7 @@ public class LucandraAllTermDocs implements TermDocs
     {
         indexName = indexReader.getIndexName();
         maxDoc = indexReader.maxDoc();
+        docBuffer = new OpenBitSet(maxDoc);
         
         idx = 0;
         fillSize = 0;
@@ -58,6 +57,14 @@ public class LucandraAllTermDocs implements TermDocs
         try
         {
             fillDocBuffer();
+
+            // ids of deleted docs may outlive them
+            OpenBitSet deleted = indexReader.getCache().deletedDocs;
+            if (deleted != null)
+            {
+                docBuffer.andNot(deleted);
+                fillSize = (int) docBuffer.cardinality();
+            }
         }
         catch (IOException e)
         {
@@ -43,12 +43,11 @@ public class LucandraFilter extends Filter {
     public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
         OpenBitSet result = new OpenBitSet(reader.maxDoc());
 
-        OpenBitSet docsHit = ((lucandra.IndexReader) reader).getDocsHit();       
+        DocHits docsHit = ((lucandra.IndexReader) reader).getDocsHit();       
        
         List<ByteBuffer> filteredValues = new ArrayList<ByteBuffer>();
-        for(int i=0; i<docsHit.capacity(); i++){          
-            if(docsHit.fastGet(i))
-                filteredValues.add(ByteBuffer.wrap(CassandraUtils.writeVInt(i)));
+        for(int doc : docsHit.toArray()){          
+            filteredValues.add(ByteBuffer.wrap(CassandraUtils.writeVInt(doc)));
         }
 
         if (filteredValues.size() == 0)
@@ -57,7 +56,7 @@ public class LucandraFilter extends Filter {
         LucandraTermDocs termDocs = (LucandraTermDocs) reader.termDocs();
 
         for (Term term : terms) {
-            LucandraTermInfo[] terms = termDocs.filteredSeek(term, filteredValues);
+            LucandraTermBlock[] terms = termDocs.filteredSeek(term, filteredValues);
             // This is a conjunction and at least one value must match
             if (terms == null)
                 return null;
@@ -0,0 +1,194 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.ReadCommand;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.SliceFromReadCommand;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * The norms of one field written by a commit for a range of doc ids.
+ *
+ * Each field of an index has a single NR row. Column names are the first
+ * doc id of the range followed by a sequence, as for term blocks, so every
+ * commit adds its own column and the latest write of a doc wins on read.
+ *
+ * Encoded layout: version, run count, then per run the gap from the end of
+ * the previous run, its length and the raw norm bytes.
+ */
+public class LucandraNormBlock
+{
+    private static final byte version   = 1;
+
+    // doc ids covered by one column
+    public static final int   blockSize = 4096;
+
+    private static final Comparator<IColumn> writeOrder = new Comparator<IColumn>() {
+        public int compare(IColumn a, IColumn b)
+        {
+            int c = a.name().getInt(a.name().position()) - b.name().getInt(b.name().position());
+            if (c != 0)
+                return c;
+
+            if (a.timestamp() != b.timestamp())
+                return a.timestamp() < b.timestamp() ? -1 : 1;
+
+            return ByteBufferUtil.compareUnsigned(a.name(), b.name());
+        }
+    };
+
+    public static int blockStart(int docId)
+    {
+        return docId - docId % blockSize;
+    }
+
+    /**
+     * Encodes the norms of a sorted list of docs that all fall in the
+     * same block
+     */
+    public static ByteBuffer serialize(List<LucandraTermInfo> docs)
+    {
+        int start = blockStart(docs.get(0).docId);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + docs.size());
+        ByteArrayOutputStream runs = new ByteArrayOutputStream(8 + docs.size());
+
+        int runCount = 0;
+        int end = start;
+
+        for (int i = 0; i < docs.size();)
+        {
+            int first = docs.get(i).docId;
+
+            int j = i + 1;
+            while (j < docs.size() && docs.get(j).docId == first + (j - i))
+                j++;
+
+            writeVInt(runs, first - end);
+            writeVInt(runs, j - i);
+
+            for (int k = i; k < j; k++)
+                runs.write(docs.get(k).norm);
+
+            runCount++;
+            end = first + (j - i);
+            i = j;
+        }
+
+        out.write(version);
+        writeVInt(out, runCount);
+
+        byte[] r = runs.toByteArray();
+        out.write(r, 0, r.length);
+
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /** Applies one column to the norms, skipping docs at or past maxDoc */
+    public static void deserialize(ByteBuffer name, ByteBuffer value, DocNorms norms, int maxDoc)
+    {
+        int doc = name.getInt(name.position());
+
+        ByteBuffer b = value.duplicate(); // don't mutate the original
+
+        byte v = b.get();
+        if (v != version)
+            throw new IllegalStateException("Unknown norm block version: " + v);
+
+        int runCount = CassandraUtils.mreadVInt(b);
+
+        for (int i = 0; i < runCount; i++)
+        {
+            doc += CassandraUtils.mreadVInt(b);
+            int len = CassandraUtils.mreadVInt(b);
+
+            for (int j = 0; j < len; j++, doc++)
+            {
+                byte norm = b.get();
+
+                if (doc < maxDoc)
+                    norms.set(doc, norm, maxDoc);
+            }
+        }
+    }
+
+    /**
+     * Reads the norm blocks of a field holding fromDoc or later docs into
+     * norms. Returns false if the field has none.
+     */
+    public static boolean read(String indexName, String field, int fromDoc, DocNorms norms, int maxDoc)
+            throws IOException
+    {
+        ByteBuffer start = ByteBufferUtil.bytes(blockStart(fromDoc));
+
+        ReadCommand rc = new SliceFromReadCommand(CassandraUtils.keySpace, CassandraUtils.normsKey(indexName, field),
+                new ColumnParent(CassandraUtils.normsColumnFamily), start, ByteBufferUtil.EMPTY_BYTE_BUFFER, false,
+                Integer.MAX_VALUE);
+
+        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, rc);
+
+        if (rows.isEmpty() || rows.get(0).cf == null)
+            return false;
+
+        List<IColumn> columns = new ArrayList<IColumn>();
+        for (IColumn col : rows.get(0).cf.getSortedColumns())
+        {
+            if (col.isLive())
+                columns.add(col);
+        }
+
+        if (columns.isEmpty())
+            return false;
+
+        apply(columns, norms, maxDoc);
+
+        return true;
+    }
+
+    /**
+     * Applies live norm columns oldest write first, so where columns hold
+     * the same doc the latest timestamp wins
+     */
+    public static void apply(List<IColumn> columns, DocNorms norms, int maxDoc)
+    {
+        // sequences only order the writes of one node
+        Collections.sort(columns, writeOrder);
+
+        synchronized (norms)
+        {
+            for (IColumn col : columns)
+                deserialize(col.name(), col.value(), norms, maxDoc);
+        }
+    }
+
+    private static void writeVInt(ByteArrayOutputStream out, int i)
+    {
+        byte[] b = CassandraUtils.writeVInt(i);
+        out.write(b, 0, b.length);
+    }
+}
@@ -0,0 +1,441 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.lucene.search.Similarity;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * The postings of a term held in parallel primitive arrays.
+ *
+ * Positions and offsets of all docs are flattened into single arrays, the
+ * entries for doc i run from positionStarts[i] to positionStarts[i + 1].
+ * Docs without a norm get the default norm.
+ *
+ * Positions and offsets are only decoded when first asked for. Docs added
+ * from their serialized form keep the encoded bytes, readers walking
+ * positions decode them into a buffer of their own. Encoded streams set
+ * with setEncodedStreams are decoded for all docs on first use.
+ *
+ * Postings are appended in doc id order and treated as read only once they
+ * are handed to a reader.
+ */
+public class LucandraPostings
+{
+    public static final byte defaultNorm = Similarity.encodeNorm(1.0f);
+
+    private int              size;
+    private int[]            docIds;
+    private int[]            freqs;
+    private byte[]           norms;
+
+    private int[]            positions;
+    private int[]            positionStarts;
+    private int[]            offsets;
+    private int[]            offsetStarts;
+
+    // serialized LucandraTermInfo of docs not yet decoded, null if none
+    private ByteBuffer[]     encoded;
+    private long             encodedBytes;
+
+    // position and offset streams in the layout of LucandraTermBlock
+    private ByteBuffer       positionStream;
+    private ByteBuffer       offsetStream;
+    private volatile boolean hasStreams;
+
+    public LucandraPostings(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+
+        docIds = new int[capacity];
+        freqs = new int[capacity];
+        norms = new byte[capacity];
+        positionStarts = new int[capacity + 1];
+        offsetStarts = new int[capacity + 1];
+        positions = new int[capacity];
+        offsets = new int[0];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int docId(int i)
+    {
+        return docIds[i];
+    }
+
+    public int freq(int i)
+    {
+        return freqs[i];
+    }
+
+    public byte norm(int i)
+    {
+        return norms[i];
+    }
+
+    public int firstDoc()
+    {
+        return docIds[0];
+    }
+
+    public int lastDoc()
+    {
+        return docIds[size - 1];
+    }
+
+    public int positionCount(int i)
+    {
+        if (isEncoded(i))
+            return (encoded[i].get(encoded[i].position()) & 2) == 2 ? freqs[i] : 0;
+
+        decodeStreams();
+
+        return positionStarts[i + 1] - positionStarts[i];
+    }
+
+    /**
+     * Reads the positionCount(i) positions of doc i into buffer, or into a
+     * new array if it is too small, and returns the one used. Readers keep
+     * the buffer from doc to doc.
+     */
+    public int[] readPositions(int i, int[] buffer)
+    {
+        int count = positionCount(i);
+
+        if (buffer == null || buffer.length < count)
+            buffer = new int[ArrayUtil.oversize(count, 4)];
+
+        if (isEncoded(i))
+        {
+            LucandraTermInfo.readPositions(encoded[i], buffer);
+            return buffer;
+        }
+
+        System.arraycopy(positions, positionStarts[i], buffer, 0, count);
+
+        return buffer;
+    }
+
+    /** A copy of the positions of doc i, null if it has none */
+    public int[] getPositions(int i)
+    {
+        if (isEncoded(i))
+            return new LucandraTermInfo(docIds[i], encoded[i]).positions;
+
+        decodeStreams();
+
+        int len = positionStarts[i + 1] - positionStarts[i];
+        if (len == 0)
+            return null;
+
+        int[] p = new int[len];
+        System.arraycopy(positions, positionStarts[i], p, 0, len);
+
+        return p;
+    }
+
+    /** A copy of the offsets of doc i, null if it has none */
+    public int[] getOffsets(int i)
+    {
+        if (isEncoded(i))
+            return new LucandraTermInfo(docIds[i], encoded[i]).offsets;
+
+        decodeStreams();
+
+        int len = offsetStarts[i + 1] - offsetStarts[i];
+        if (len == 0)
+            return null;
+
+        int[] o = new int[len];
+        System.arraycopy(offsets, offsetStarts[i], o, 0, len);
+
+        return o;
+    }
+
+    private boolean isEncoded(int i)
+    {
+        return encoded != null && encoded[i] != null;
+    }
+
+    /** Binary search for a doc, returns its index or -(insertion point) - 1 */
+    public int indexOf(int docId)
+    {
+        int low = 0;
+        int high = size - 1;
+
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int midDoc = docIds[mid];
+
+            if (midDoc < docId)
+                low = mid + 1;
+            else if (midDoc > docId)
+                high = mid - 1;
+            else
+                return mid;
+        }
+
+        return -(low + 1);
+    }
+
+    /**
+     * Finds the first doc at or after index from whose id is >= target,
+     * returns size() if there is none.
+     *
+     * Gallops forward from the current index before binary searching, so
+     * short skips stay cheap and long skips are logarithmic.
+     */
+    public int advance(int from, int target)
+    {
+        if (from >= size || docIds[from] >= target)
+            return from;
+
+        // docIds[low] < target here
+        int low = from;
+        int step = 1;
+        int high = from + step;
+
+        while (high < size && docIds[high] < target)
+        {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+
+        if (high >= size)
+            high = size;
+
+        // first doc >= target is in (low, high]
+        low++;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (docIds[mid] < target)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+
+    /** Heap held by the arrays and encoded docs, in bytes */
+    public long ramBytesUsed()
+    {
+        long size = 64 + norms.length + encodedBytes + 4L
+                * (docIds.length + freqs.length + positions.length + positionStarts.length + offsets.length + offsetStarts.length);
+
+        if (encoded != null)
+            size += 4L * encoded.length;
+
+        ByteBuffer p = positionStream;
+        if (p != null)
+            size += p.remaining();
+
+        ByteBuffer o = offsetStream;
+        if (o != null)
+            size += o.remaining();
+
+        return size;
+    }
+
+    public LucandraTermInfo getTermInfo(int i)
+    {
+        if (isEncoded(i))
+        {
+            LucandraTermInfo info = new LucandraTermInfo(docIds[i], encoded[i]);
+
+            return new LucandraTermInfo(docIds[i], freqs[i], norms[i], info.positions, info.offsets);
+        }
+
+        return new LucandraTermInfo(docIds[i], freqs[i], norms[i], getPositions(i), getOffsets(i));
+    }
+
+    /**
+     * Appends a doc, positions and offsets are added separately with
+     * addPosition/addOffset before the next doc
+     */
+    public void addDoc(int docId, int freq, byte norm)
+    {
+        assert size == 0 || docId > docIds[size - 1] : "docs must be added in order";
+
+        if (size == docIds.length)
+        {
+            docIds = ArrayUtil.grow(docIds, size + 1);
+            freqs = ArrayUtil.grow(freqs, size + 1);
+            norms = ArrayUtil.grow(norms, size + 1);
+            positionStarts = ArrayUtil.grow(positionStarts, size + 2);
+            offsetStarts = ArrayUtil.grow(offsetStarts, size + 2);
+
+            if (encoded != null)
+                encoded = Arrays.copyOf(encoded, docIds.length);
+        }
+
+        docIds[size] = docId;
+        freqs[size] = freq;
+        norms[size] = norm;
+
+        size++;
+
+        positionStarts[size] = positionStarts[size - 1];
+        offsetStarts[size] = offsetStarts[size - 1];
+    }
+
+    public void addPosition(int position)
+    {
+        int end = positionStarts[size];
+
+        if (end == positions.length)
+            positions = ArrayUtil.grow(positions, end + 1);
+
+        positions[end] = position;
+        positionStarts[size] = end + 1;
+    }
+
+    public void addOffset(int offset)
+    {
+        int end = offsetStarts[size];
+
+        if (end == offsets.length)
+            offsets = ArrayUtil.grow(offsets, end + 1);
+
+        offsets[end] = offset;
+        offsetStarts[size] = end + 1;
+    }
+
+    /** Copies doc i of another postings list */
+    public void addDoc(LucandraPostings other, int i)
+    {
+        if (other.isEncoded(i))
+        {
+            addDoc(other.docIds[i], other.encoded[i]);
+            return;
+        }
+
+        other.decodeStreams();
+
+        addDoc(other.docIds[i], other.freqs[i], other.norms[i]);
+
+        for (int j = other.positionStarts[i]; j < other.positionStarts[i + 1]; j++)
+            addPosition(other.positions[j]);
+
+        for (int j = other.offsetStarts[i]; j < other.offsetStarts[i + 1]; j++)
+            addOffset(other.offsets[j]);
+    }
+
+    /**
+     * Appends a doc from the serialized form of LucandraTermInfo, its
+     * positions and offsets stay encoded
+     */
+    public void addDoc(int docId, ByteBuffer bytes)
+    {
+        ByteBuffer b = bytes.duplicate(); // don't mutate the original
+
+        byte flags = b.get();
+
+        boolean hasNorm = (flags & 1) == 1;
+
+        int freq = (flags & LucandraTermInfo.noFreqFlag) == 0 ? CassandraUtils.mreadVInt(b) : 1;
+
+        addDoc(docId, freq, hasNorm ? b.get() : defaultNorm);
+
+        if ((flags & 6) != 0)
+        {
+            if (encoded == null)
+                encoded = new ByteBuffer[docIds.length];
+
+            encoded[size - 1] = bytes;
+            encodedBytes += bytes.remaining();
+        }
+    }
+
+    /**
+     * Positions and offsets of all docs, kept encoded until first read.
+     * Set once every doc has been added.
+     */
+    public void setEncodedStreams(ByteBuffer positionStream, ByteBuffer offsetStream)
+    {
+        this.positionStream = positionStream;
+        this.offsetStream = offsetStream;
+
+        hasStreams = positionStream != null || offsetStream != null;
+    }
+
+    private void decodeStreams()
+    {
+        if (!hasStreams)
+            return;
+
+        synchronized (this)
+        {
+            if (!hasStreams)
+                return;
+
+            ByteBuffer p = positionStream == null ? null : positionStream.duplicate();
+            ByteBuffer o = offsetStream == null ? null : offsetStream.duplicate();
+
+            int pend = 0;
+            int oend = 0;
+
+            for (int i = 0; i < size; i++)
+            {
+                if (p != null)
+                {
+                    int len = CassandraUtils.mreadVInt(p);
+
+                    if (pend + len > positions.length)
+                        positions = ArrayUtil.grow(positions, pend + len);
+
+                    for (int j = 0, last = 0; j < len; j++)
+                    {
+                        last += CassandraUtils.mreadVInt(p);
+                        positions[pend++] = last;
+                    }
+                }
+
+                if (o != null)
+                {
+                    int len = CassandraUtils.mreadVInt(o);
+
+                    if (oend + len > offsets.length)
+                        offsets = ArrayUtil.grow(offsets, oend + len);
+
+                    for (int j = 0; j < len; j++)
+                        offsets[oend++] = CassandraUtils.mreadVInt(o);
+                }
+
+                positionStarts[i + 1] = pend;
+                offsetStarts[i + 1] = oend;
+            }
+
+            positionStream = null;
+            offsetStream = null;
+            hasStreams = false;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sorted run of postings for a single term.
+ *
+ * Blocks read from the TB column family keep their encoded bytes and are only
+ * decoded once a reader walks into them. The header alone is enough to
+ * count or skip the block.
+ *
+ * Encoded layout: version, size, lastDoc delta, flags, then separate streams
+ * for doc deltas, freqs, norms, positions and offsets. Docs only blocks
+ * have no freqs stream.
+ */
+public class LucandraTermBlock implements Comparable<LucandraTermBlock>
+{
+    private static final byte           version       = 1;
+
+    // makes block names unique when a doc id is reused
+    private static final AtomicLong     blockSequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    public static final LucandraTermBlock[] emptyBlocks = new LucandraTermBlock[] {};
+
+    public final int                    firstDoc;
+    public final int                    lastDoc;
+    public final int                    size;
+    public final long                   timestamp;
+
+    private final ByteBuffer            bytes;
+    private volatile LucandraPostings   postings;
+
+    public LucandraTermBlock(LucandraPostings postings, long timestamp)
+    {
+        if (postings.size() == 0)
+            throw new IllegalArgumentException("empty term block");
+
+        this.postings = postings;
+        this.timestamp = timestamp;
+
+        firstDoc = postings.firstDoc();
+        lastDoc = postings.lastDoc();
+        size = postings.size();
+        bytes = null;
+    }
+
+    public LucandraTermBlock(ByteBuffer name, ByteBuffer value, long timestamp)
+    {
+        this.timestamp = timestamp;
+
+        firstDoc = name.getInt(name.position());
+
+        ByteBuffer b = value.duplicate(); // don't mutate the original
+
+        byte v = b.get();
+        if (v != version)
+            throw new IllegalStateException("Unknown term block version: " + v);
+
+        size = CassandraUtils.mreadVInt(b);
+        lastDoc = firstDoc + CassandraUtils.mreadVInt(b);
+
+        bytes = b;
+    }
+
+    public boolean isDecoded()
+    {
+        return postings != null;
+    }
+
+    public LucandraPostings getPostings()
+    {
+        LucandraPostings p = postings;
+
+        if (p == null)
+        {
+            synchronized (this)
+            {
+                if (postings == null)
+                    postings = decode();
+
+                p = postings;
+            }
+        }
+
+        return p;
+    }
+
+    private LucandraPostings decode()
+    {
+        ByteBuffer b = bytes.duplicate();
+
+        byte flags = b.get();
+
+        boolean hasNorms = (flags & 1) == 1;
+        boolean hasPositions = (flags & 2) == 2;
+        boolean hasOffsets = (flags & 4) == 4;
+        boolean hasFreqs = (flags & 8) == 0;
+
+        int[] docIds = new int[size];
+        docIds[0] = firstDoc;
+        for (int i = 1; i < size; i++)
+            docIds[i] = docIds[i - 1] + CassandraUtils.mreadVInt(b);
+
+        int[] freqs = new int[size];
+        for (int i = 0; i < size; i++)
+            freqs[i] = hasFreqs ? CassandraUtils.mreadVInt(b) : 1;
+
+        byte[] norms = null;
+        if (hasNorms)
+        {
+            norms = new byte[size];
+            b.get(norms);
+        }
+
+        // the streams are stored one after another, so read the
+        // positions and offsets through their own views
+        ByteBuffer positions = null;
+        if (hasPositions)
+        {
+            int len = CassandraUtils.mreadVInt(b);
+            positions = b.duplicate();
+            b.position(b.position() + len);
+        }
+
+        ByteBuffer offsets = null;
+        if (hasOffsets)
+        {
+            CassandraUtils.mreadVInt(b); // stream length
+            offsets = b;
+        }
+
+        LucandraPostings result = new LucandraPostings(size);
+        for (int i = 0; i < size; i++)
+            result.addDoc(docIds[i], freqs[i], norms == null ? LucandraPostings.defaultNorm : norms[i]);
+
+        // positions are only decoded by queries that read them
+        result.setEncodedStreams(positions, offsets);
+
+        return result;
+    }
+
+    /** Estimated heap use, encoded blocks are counted as if decoded */
+    public long ramBytesUsed()
+    {
+        LucandraPostings p = postings;
+
+        if (p != null)
+            return 48 + p.ramBytesUsed();
+
+        return 48 + bytes.capacity() + size * 16L;
+    }
+
+    public static long ramBytesUsed(LucandraTermBlock[] blocks)
+    {
+        long size = 16;
+        for (LucandraTermBlock block : blocks)
+            size += block.ramBytesUsed();
+
+        return size;
+    }
+
+    public int compareTo(LucandraTermBlock o)
+    {
+        if (firstDoc != o.firstDoc)
+            return firstDoc < o.firstDoc ? -1 : 1;
+
+        if (timestamp != o.timestamp)
+            return timestamp < o.timestamp ? -1 : 1;
+
+        return 0;
+    }
+
+    public static ByteBuffer createColumnName(int firstDoc)
+    {
+        ByteBuffer name = ByteBuffer.allocate(12);
+        name.putInt(firstDoc);
+        name.putLong(blockSequence.incrementAndGet());
+        name.flip();
+
+        return name;
+    }
+
+    /**
+     * Encodes a sorted list of postings as one block column value
+     */
+    public static ByteBuffer serialize(List<LucandraTermInfo> docs)
+    {
+        int size = docs.size();
+
+        boolean hasNorms = false;
+        boolean hasPositions = false;
+        boolean hasOffsets = false;
+        boolean hasFreqs = false;
+
+        for (LucandraTermInfo doc : docs)
+        {
+            hasFreqs |= doc.hasFreq;
+            hasNorms |= doc.hasNorm;
+            hasPositions |= doc.hasPositions;
+            hasOffsets |= doc.hasOffsets;
+        }
+
+        byte flags = 0;
+        if (hasNorms)
+            flags |= 1;
+
+        if (hasPositions)
+            flags |= 2;
+
+        if (hasOffsets)
+            flags |= 4;
+
+        // docs only fields
+        if (!hasFreqs)
+            flags |= 8;
+
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 + size * 8);
+
+            out.write(version);
+            out.write(CassandraUtils.writeVInt(size));
+            out.write(CassandraUtils.writeVInt(docs.get(size - 1).docId - docs.get(0).docId));
+            out.write(flags);
+
+            for (int i = 1; i < size; i++)
+                out.write(CassandraUtils.writeVInt(docs.get(i).docId - docs.get(i - 1).docId));
+
+            if (hasFreqs)
+            {
+                for (LucandraTermInfo doc : docs)
+                    out.write(CassandraUtils.writeVInt(doc.freq));
+            }
+
+            if (hasNorms)
+            {
+                for (LucandraTermInfo doc : docs)
+                    out.write(doc.hasNorm ? doc.norm : LucandraPostings.defaultNorm);
+            }
+
+            if (hasPositions)
+            {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream(size * 4);
+
+                for (LucandraTermInfo doc : docs)
+                {
+                    int[] p = doc.hasPositions ? doc.positions : new int[] {};
+
+                    stream.write(CassandraUtils.writeVInt(p.length));
+                    for (int j = 0; j < p.length; j++)
+                        stream.write(CassandraUtils.writeVInt(j == 0 ? p[j] : p[j] - p[j - 1]));
+                }
+
+                out.write(CassandraUtils.writeVInt(stream.size()));
+                stream.writeTo(out);
+            }
+
+            if (hasOffsets)
+            {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream(size * 8);
+
+                for (LucandraTermInfo doc : docs)
+                {
+                    int[] o = doc.hasOffsets ? doc.offsets : new int[] {};
+
+                    stream.write(CassandraUtils.writeVInt(o.length));
+                    for (int j = 0; j < o.length; j++)
+                        stream.write(CassandraUtils.writeVInt(o[j]));
+                }
+
+                out.write(CassandraUtils.writeVInt(stream.size()));
+                stream.writeTo(out);
+            }
+
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The live postings of an open block merged with new sorted postings,
+     * a new posting for a doc replaces the block's. Docs deleted after the
+     * block was written are left out.
+     */
+    public static List<LucandraTermInfo> append(LucandraTermBlock block, NavigableMap<Integer, Long> deletedDocs,
+            List<LucandraTermInfo> docs)
+    {
+        LucandraPostings postings = block.getPostings();
+        List<LucandraTermInfo> merged = new ArrayList<LucandraTermInfo>(postings.size() + docs.size());
+
+        int next = 0;
+        for (int i = 0; i < postings.size(); i++)
+        {
+            int docId = postings.docId(i);
+
+            while (next < docs.size() && docs.get(next).docId < docId)
+                merged.add(docs.get(next++));
+
+            if (next < docs.size() && docs.get(next).docId == docId)
+                continue;
+
+            Long deletedAt = deletedDocs == null ? null : deletedDocs.get(docId);
+            if (deletedAt != null && deletedAt > block.timestamp)
+                continue;
+
+            merged.add(postings.getTermInfo(i));
+        }
+
+        while (next < docs.size())
+            merged.add(docs.get(next++));
+
+        return merged;
+    }
+
+    public static int count(LucandraTermBlock[] blocks)
+    {
+        if (blocks == null)
+            return 0;
+
+        int count = 0;
+        for (LucandraTermBlock block : blocks)
+            count += block.size;
+
+        return count;
+    }
+
+    /**
+     * Turns the blocks of a term row into sorted, non-overlapping blocks.
+     *
+     * Docs deleted after a block was written are filtered out, overlapping
+     * blocks (from re-used doc ids) are merged with the newest posting
+     * winning. Blocks untouched by either stay encoded.
+     */
+    public static LucandraTermBlock[] resolve(List<LucandraTermBlock> blocks, NavigableMap<Integer, Long> deletedDocs)
+    {
+        if (blocks.isEmpty())
+            return emptyBlocks;
+
+        List<LucandraTermBlock> live = new ArrayList<LucandraTermBlock>(blocks.size());
+
+        for (LucandraTermBlock block : blocks)
+        {
+            if (block.isDecoded() || deletedDocs == null || deletedDocs.isEmpty())
+            {
+                live.add(block);
+                continue;
+            }
+
+            boolean hasDeletes = false;
+            for (Long deletedAt : deletedDocs.subMap(block.firstDoc, true, block.lastDoc, true).values())
+            {
+                if (deletedAt > block.timestamp)
+                {
+                    hasDeletes = true;
+                    break;
+                }
+            }
+
+            if (!hasDeletes)
+            {
+                live.add(block);
+                continue;
+            }
+
+            LucandraPostings docs = block.getPostings();
+            LucandraPostings kept = new LucandraPostings(docs.size());
+            for (int i = 0; i < docs.size(); i++)
+            {
+                Long deletedAt = deletedDocs.get(docs.docId(i));
+
+                if (deletedAt == null || deletedAt <= block.timestamp)
+                    kept.addDoc(docs, i);
+            }
+
+            if (kept.size() > 0)
+                live.add(new LucandraTermBlock(kept, block.timestamp));
+        }
+
+        if (live.isEmpty())
+            return emptyBlocks;
+
+        Collections.sort(live);
+
+        List<LucandraTermBlock> resolved = new ArrayList<LucandraTermBlock>(live.size());
+
+        int groupStart = 0;
+        int groupLastDoc = live.get(0).lastDoc;
+
+        for (int i = 1; i <= live.size(); i++)
+        {
+            if (i < live.size() && live.get(i).firstDoc <= groupLastDoc)
+            {
+                groupLastDoc = Math.max(groupLastDoc, live.get(i).lastDoc);
+                continue;
+            }
+
+            if (i - groupStart == 1)
+                resolved.add(live.get(groupStart));
+            else
+                resolved.add(merge(live.subList(groupStart, i)));
+
+            if (i < live.size())
+            {
+                groupStart = i;
+                groupLastDoc = live.get(i).lastDoc;
+            }
+        }
+
+        return resolved.toArray(new LucandraTermBlock[resolved.size()]);
+    }
+
+    private static LucandraTermBlock merge(List<LucandraTermBlock> group)
+    {
+        // doc id -> the postings holding its newest entry
+        SortedMap<Integer, LucandraPostings> docs = new TreeMap<Integer, LucandraPostings>();
+        long timestamp = Long.MIN_VALUE;
+
+        // sorted by timestamp within a doc id so the newest posting wins
+        List<LucandraTermBlock> byAge = new ArrayList<LucandraTermBlock>(group);
+        Collections.sort(byAge, new Comparator<LucandraTermBlock>() {
+            public int compare(LucandraTermBlock o1, LucandraTermBlock o2)
+            {
+                return o1.timestamp < o2.timestamp ? -1 : (o1.timestamp == o2.timestamp ? 0 : 1);
+            }
+        });
+
+        for (LucandraTermBlock block : byAge)
+        {
+            LucandraPostings postings = block.getPostings();
+
+            for (int i = 0; i < postings.size(); i++)
+                docs.put(postings.docId(i), postings);
+
+            timestamp = Math.max(timestamp, block.timestamp);
+        }
+
+        LucandraPostings merged = new LucandraPostings(docs.size());
+        for (Map.Entry<Integer, LucandraPostings> doc : docs.entrySet())
+            merged.addDoc(doc.getValue(), doc.getValue().indexOf(doc.getKey()));
+
+        return new LucandraTermBlock(merged, timestamp);
+    }
+}
@@ -25,16 +25,23 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.*;
+import org.apache.lucene.util.OpenBitSet;
 
 public class LucandraTermDocs implements TermDocs, TermPositions
 {
 
     private IndexReader         indexReader;
     private LucandraTermEnum    termEnum;
-    private LucandraTermInfo[]  termDocs;
+    private String              field;
+    private LucandraTermBlock[] termBlocks;
+    private int                 blockPosition;
+    private LucandraPostings    termDocs;
     private int                 docPosition;
-    private int[]               termPositionArray;
     private int                 termPosition;
+    private int[]               positions;
+    private int                 positionCount = -1;
+    private int                 maxDoc;
+    private OpenBitSet          deletedDocs;
     private static final Logger logger = Logger.getLogger(LucandraTermDocs.class);
 
     public LucandraTermDocs(IndexReader indexReader) throws IOException
@@ -53,16 +60,15 @@ public class LucandraTermDocs implements TermDocs, TermPositions
         if (docPosition < 0)
             docPosition = 0;
 
-        return termDocs[docPosition].docId;
+        return termDocs.docId(docPosition);
     }
 
     public int freq()
     {
-        Integer freq = termDocs[docPosition].freq;
-        termPositionArray = termDocs[docPosition].positions;
         termPosition = 0;
+        positionCount = -1;
 
-        return freq;
+        return termDocs.freq(docPosition);
     }
 
     public boolean next() throws IOException
@@ -71,14 +77,47 @@ public class LucandraTermDocs implements TermDocs, TermPositions
         if (termDocs == null)
             return false;
 
-        return ++docPosition < termDocs.length;
+        do
+        {
+            if (++docPosition >= termDocs.size())
+            {
+                // move into the next block
+                if (!loadBlock(blockPosition + 1))
+                    return false;
+
+                docPosition = 0;
+            }
+
+            if (!isVisible())
+                return false;
+        }
+        while (isDeleted());
+
+        return true;
+    }
+
+    private boolean isDeleted()
+    {
+        return deletedDocs != null && deletedDocs.get(termDocs.docId(docPosition));
+    }
+
+    // docs past maxDoc were written after the reader's view, and as docs
+    // are in order so are all that follow
+    private boolean isVisible()
+    {
+        if (termDocs.docId(docPosition) < maxDoc)
+            return true;
+
+        blockPosition = termBlocks.length - 1;
+        docPosition = termDocs.size();
+        return false;
     }
 
     public int read(int[] docs, int[] freqs) throws IOException
     {
 
         int i = 0;
-        for (; (termDocs != null && docPosition < termDocs.length && i < docs.length); i++, docPosition++)
+        for (; i < docs.length && next(); i++)
         {
             docs[i] = doc();
             freqs[i] = freq();
@@ -90,16 +129,13 @@ public class LucandraTermDocs implements TermDocs, TermPositions
     public void seek(Term term) throws IOException
     {
 
-        if (termEnum.skipTo(term))
+        if (termEnum.skipTo(term) && termEnum.term().equals(term))
         {
-            if (termEnum.term().equals(term))
-            {
-                termDocs = termEnum.getTermDocFreq();
-            }
-            else
-            {
-                termDocs = null;
-            }
+            setTermBlocks(term.field(), termEnum.getTermDocFreq());
+        }
+        else
+        {
+            setTermBlocks(null, null);
         }
 
         docPosition = -1;
@@ -116,39 +152,105 @@ public class LucandraTermDocs implements TermDocs, TermPositions
             this.termEnum = (LucandraTermEnum) indexReader.terms(termEnum.term());
         }
 
-        termDocs = this.termEnum.getTermDocFreq();
+        setTermBlocks(this.termEnum.term() == null ? null : this.termEnum.term().field(), this.termEnum
+                .getTermDocFreq());
 
         if (logger.isDebugEnabled())
-            logger.debug("seeked out " + termDocs.length);
+            logger.debug("seeked out " + LucandraTermBlock.count(termBlocks));
 
         docPosition = -1;
     }
 
-    public LucandraTermInfo[] filteredSeek(Term term, List<ByteBuffer> docNums) throws IOException
+    public LucandraTermBlock[] filteredSeek(Term term, List<ByteBuffer> docNums) throws IOException
     {
 
-        termDocs = termEnum.loadFilteredTerms(term, docNums);
+        LucandraTermBlock[] blocks = termEnum.loadFilteredTerms(term, docNums);
+
+        setTermBlocks(term.field(), blocks);
 
         docPosition = -1;
-        return termDocs;
+        return blocks;
+    }
+
+    private void setTermBlocks(String field, LucandraTermBlock[] blocks) throws IOException
+    {
+        this.field = field;
+        termBlocks = blocks;
+        termDocs = null;
+        termPosition = 0;
+        positionCount = -1;
+        maxDoc = indexReader.maxDoc();
+        deletedDocs = indexReader.getCache().deletedDocs;
+
+        // the first block is read right away so the norms for this field exist
+        if (blocks != null && blocks.length > 0)
+            loadBlock(0);
     }
 
-    // this should be used to find a already loaded doc
+    // decode the block and make sure its norms are set
+    private boolean loadBlock(int position) throws IOException
+    {
+        if (termBlocks == null || position >= termBlocks.length)
+            return false;
+
+        blockPosition = position;
+        termDocs = termBlocks[position].getPostings();
+
+        indexReader.addDocumentNormalizations(termDocs, field, indexReader.getCache());
+
+        return true;
+    }
+
+    // moves forward from the current doc, whole blocks are skipped using
+    // their headers so they are never decoded
     public boolean skipTo(int target) throws IOException
     {
-        // find the target
         if (termDocs == null)
             return false;
 
-        docPosition = 0;
-        
-        while (target > doc())
+        int from = docPosition + 1;
+
+        if (termBlocks[blockPosition].lastDoc < target)
         {
-            if (!next())
+            int block = findBlock(blockPosition + 1, target);
+
+            if (!loadBlock(block))
+            {
+                // exhausted
+                blockPosition = termBlocks.length - 1;
+                docPosition = termDocs.size();
                 return false;
+            }
+
+            from = 0;
         }
 
-        return true;
+        docPosition = termDocs.advance(from, target);
+
+        if (docPosition < termDocs.size())
+            return isVisible() && (!isDeleted() || next());
+
+        // target is past this block
+        return next() && (target <= doc() || skipTo(target));
+    }
+
+    // first block from start whose last doc is >= target
+    private int findBlock(int start, int target)
+    {
+        int low = start;
+        int high = termBlocks.length;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (termBlocks[mid].lastDoc < target)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
     }
 
     public byte[] getPayload(byte[] data, int offset) throws IOException
@@ -168,10 +270,23 @@ public class LucandraTermDocs implements TermDocs, TermPositions
 
     public int nextPosition() throws IOException
     {
-        if (termPositionArray == null)
+        if (termDocs == null)
+            return -1;
+
+        // decoded on first use, most queries never ask. The buffer is
+        // reused from doc to doc
+        if (positionCount < 0)
+        {
+            positionCount = termDocs.positionCount(docPosition);
+
+            if (positionCount > 0)
+                positions = termDocs.readPositions(docPosition, positions);
+        }
+
+        if (termPosition >= positionCount)
             return -1;
 
-        int pos = termPositionArray[termPosition];
+        int pos = positions[termPosition];
         termPosition++;
 
         if (logger.isDebugEnabled())
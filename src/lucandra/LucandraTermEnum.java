@@ -22,8 +22,7 @@ package lucandra;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentNavigableMap;
 
 import org.apache.cassandra.db.ReadCommand;
@@ -43,14 +42,31 @@ public class LucandraTermEnum extends TermEnum
     private final TermCache                                  termCache;
 
     // Local info this enum
-    private Map.Entry<Term, LucandraTermInfo[]>              currentTermEntry;
-    private ConcurrentNavigableMap<Term, LucandraTermInfo[]> termView;
+    private Map.Entry<Term, LucandraTermBlock[]>              currentTermEntry;
+    private ConcurrentNavigableMap<Term, LucandraTermBlock[]> termView;
+
+    // terms to list on the next read, doubles as the enum keeps going
+    private int                                              bufferSize = TermCache.minBufferSize;
+
+    // no terms past this are needed, if set
+    private Term                                             rangeEnd;
+
+    // list term names only, postings are read when asked for
+    private final boolean                                    dictionaryOnly;
+    private List<Term>                                       dictionary;
+    private int                                              dictionaryPosition;
 
     private static final Logger                              logger = Logger.getLogger(LucandraTermEnum.class);
 
     public LucandraTermEnum(IndexReader indexReader) throws IOException
+    {
+        this(indexReader, false);
+    }
+
+    public LucandraTermEnum(IndexReader indexReader, boolean dictionaryOnly) throws IOException
     {
         this.indexReader = indexReader;
+        this.dictionaryOnly = dictionaryOnly;
         indexName = indexReader.getIndexName();
         readerCache = indexReader.getCache();
         termCache = readerCache.termCache;
@@ -61,12 +77,32 @@ public class LucandraTermEnum extends TermEnum
         if (term == null)
             return false;
 
-        termView = termCache.skipTo(term);
+        // a seek only needs the first few terms
+        bufferSize = TermCache.minBufferSize;
+
+        if (dictionaryOnly)
+        {
+            dictionary = termCache.listTerms(term, bufferSize, rangeEnd);
+            dictionaryPosition = 0;
+
+            return !dictionary.isEmpty();
+        }
+
+        termView = termCache.skipTo(term, bufferSize, rangeEnd);
         currentTermEntry = termView.firstEntry();
 
         return currentTermEntry != null;
     }
 
+    /**
+     * Hints that no terms after end will be needed, as for the upper bound of
+     * a range query, so terms past it aren't read
+     */
+    public void setRangeEnd(Term end)
+    {
+        rangeEnd = end;
+    }
+
     @Override
     public void close() throws IOException
     {
@@ -76,26 +112,49 @@ public class LucandraTermEnum extends TermEnum
     @Override
     public int docFreq()
     {
+        if (dictionaryOnly)
+        {
+            try
+            {
+                int docFreq = term() == null ? 0 : termCache.docFreq(term());
+
+                return docFreq >= 0 ? docFreq : LucandraTermBlock.count(getTermDocFreq());
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
 
-        int freq = currentTermEntry == null ? 0 : currentTermEntry.getValue().length;
+        int freq = currentTermEntry == null ? 0 : LucandraTermBlock.count(currentTermEntry.getValue());
         return freq;
     }
 
     @Override
     public boolean next() throws IOException
     {
+        if (dictionaryOnly)
+            return nextInDictionary();
+
         if(termView.size() == 0)
             return false;
         
         // current term is in tree
         termView = termView.tailMap(currentTermEntry.getKey(), false);
+
+        // earlier terms may still be being read
+        Map.Entry<Term, LucandraTermBlock[]> nextEntry = termView.firstEntry();
+        termCache.awaitTerms(currentTermEntry.getKey(), false, nextEntry == null ? null : nextEntry.getKey());
+
         currentTermEntry = termView.firstEntry() == null ? currentTermEntry : termView.firstEntry();
 
         // rebuffer from last key
         if (termView.size() == 0)
         {         
             //logger.info("Rebuffering terms");                 
-            termView = termCache.skipTo(currentTermEntry.getKey());
+            bufferSize = Math.min(bufferSize * 2, TermCache.maxBufferSize);
+
+            termView = termCache.skipTo(currentTermEntry.getKey(), bufferSize, rangeEnd);
             
             if (termView.size() == 0 || 
                  (termView.size() == 1 && termView.firstEntry().getKey().equals(currentTermEntry.getKey())))
@@ -114,28 +173,63 @@ public class LucandraTermEnum extends TermEnum
         return true;
     }
 
+    private boolean nextInDictionary() throws IOException
+    {
+        if (dictionary == null || dictionaryPosition >= dictionary.size())
+            return false;
+
+        if (++dictionaryPosition < dictionary.size())
+            return true;
+
+        // list more from the last term
+        Term last = dictionary.get(dictionary.size() - 1);
+
+        bufferSize = Math.min(bufferSize * 2, TermCache.maxBufferSize);
+
+        dictionary = termCache.listTerms(last, bufferSize, rangeEnd);
+        dictionaryPosition = !dictionary.isEmpty() && dictionary.get(0).equals(last) ? 1 : 0;
+
+        return dictionaryPosition < dictionary.size();
+    }
+
     @Override
     public Term term()
     {
+        if (dictionaryOnly)
+            return dictionary == null || dictionaryPosition >= dictionary.size() ? null : dictionary
+                    .get(dictionaryPosition);
+
         return currentTermEntry == null ? null : currentTermEntry.getKey();
     }
 
-    public final LucandraTermInfo[] getTermDocFreq()
+    public final LucandraTermBlock[] getTermDocFreq() throws IOException
     {
-        if (currentTermEntry == null)
-            return null;
+        if (dictionaryOnly)
+        {
+            Term term = term();
+            if (term == null)
+                return null;
 
-        Term term = currentTermEntry.getKey();
+            LucandraTermBlock[] blocks = termCache.get(term);
 
-        LucandraTermInfo[] docIds = currentTermEntry.getValue();
+            // read postings for the rest of the listed terms along with this one
+            if (blocks == null)
+            {
+                termCache.skipTo(term, dictionary.size() - dictionaryPosition, rangeEnd);
+                blocks = termCache.get(term);
+            }
 
-        // set normalizations
-        indexReader.addDocumentNormalizations(docIds, term.field(), readerCache);
+            return blocks;
+        }
 
-        return docIds;
+        if (currentTermEntry == null)
+            return null;
+
+        // normalizations are set as each block is read
+        return currentTermEntry.getValue();
     }
 
-    public LucandraTermInfo[] loadFilteredTerms(Term term, List<ByteBuffer> docNums) throws IOException
+    public LucandraTermBlock[] loadFilteredTerms(Term term, List<ByteBuffer> docNums) throws IOException
     {
         long start = System.currentTimeMillis();
         ColumnParent parent = new ColumnParent();
@@ -152,21 +246,54 @@ public class LucandraTermEnum extends TermEnum
             throw new RuntimeException("JVM doesn't support UTF-8", e2);
         }
 
-        ReadCommand rc = new SliceByNamesReadCommand(CassandraUtils.keySpace, key, parent, docNums);
-
-        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, rc);
+        LucandraTermBlock[] termInfo = null;
 
-        LucandraTermInfo[] termInfo = null;
+        if (CassandraUtils.useTermBlocks)
+        {
+            // blocks can't be read by doc id so filter the full term
+            LucandraTermBlock[] blocks = TermCache.readTermBlocks(Arrays.asList(key)).get(key);
 
-        if (rows != null && rows.size() > 0 && rows.get(0) != null && rows.get(0).cf != null)
+            if (blocks != null)
+            {
+                Set<Integer> filter = new HashSet<Integer>(docNums.size());
+                for (ByteBuffer docNum : docNums)
+                    filter.add(CassandraUtils.readVInt(docNum));
+
+                LucandraPostings docs = new LucandraPostings(filter.size());
+                for (LucandraTermBlock block : blocks)
+                {
+                    LucandraPostings postings = block.getPostings();
+
+                    for (int i = 0; i < postings.size(); i++)
+                    {
+                        if (filter.contains(postings.docId(i)))
+                            docs.addDoc(postings, i);
+                    }
+                }
+
+                if (docs.size() > 0)
+                    termInfo = new LucandraTermBlock[] { new LucandraTermBlock(docs, Long.MAX_VALUE) };
+            }
+        }
+        else
         {
-            termInfo = TermCache.convertTermInfo(rows.get(0).cf.getSortedColumns());
+            ReadCommand rc = new SliceByNamesReadCommand(CassandraUtils.keySpace, key, parent, docNums);
+
+            List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, rc);
+
+            if (rows != null && rows.size() > 0 && rows.get(0) != null && rows.get(0).cf != null)
+            {
+                LucandraPostings docs = TermCache.convertTermInfo(rows.get(0).cf.getSortedColumns());
+
+                if (docs.size() > 0)
+                    termInfo = new LucandraTermBlock[] { new LucandraTermBlock(docs, Long.MAX_VALUE) };
+            }
         }
 
         long end = System.currentTimeMillis();
 
         if (logger.isDebugEnabled())
-            logger.debug("loadFilterdTerms: " + term + "(" + termInfo == null ? 0 : termInfo.length + ") took "
+            logger.debug("loadFilterdTerms: " + term + "(" + LucandraTermBlock.count(termInfo) + ") took "
                     + (end - start) + "ms");
 
         return termInfo;
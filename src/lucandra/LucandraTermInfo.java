@@ -28,12 +28,18 @@ import org.apache.cassandra.utils.ByteBufferUtil;
 
 public class LucandraTermInfo implements Comparable<LucandraTermInfo>
 {
+    // set in the flags byte when positions and offsets are stored as deltas,
+    // data written before it holds absolute values
+    private static final byte deltaFlag = 8;
     
+    // set when the field omits term freqs, every doc then counts once
+    static final byte         noFreqFlag = 16;
     
     public final int     docId;
     public final boolean hasNorm;
     public final boolean hasPositions;
     public final boolean hasOffsets;
+    public final boolean hasFreq;
     
     public final int[]   positions;
     public final int[]   offsets;
@@ -109,8 +115,10 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
             }
         }
         
-        if(freq_ < 0)
-            throw new IllegalArgumentException("term freq is < 0");
+        // docs only
+        hasFreq = freq_ >= 0;
+        if(!hasFreq)
+            freq_ = 1;
     
         if(hasPositions_ && freq_ != positions_.length)
             throw new IllegalArgumentException("freq != position count: "+freq_+" vs "+positions_.length);
@@ -125,6 +133,57 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
         offsets      = offsets_;
     }
 
+    public LucandraTermInfo(int docId, int freq, Byte norm, int[] positions, int[] offsets)
+    {
+        this(docId, freq, true, norm, positions, offsets);
+    }
+
+    // without a freq the doc counts once
+    LucandraTermInfo(int docId, int freq, boolean hasFreq, Byte norm, int[] positions, int[] offsets)
+    {
+        this.docId     = docId;
+        this.freq      = hasFreq ? freq : 1;
+        this.norm      = norm;
+        this.positions = positions;
+        this.offsets   = offsets;
+
+        this.hasFreq = hasFreq;
+        hasNorm      = norm != null;
+        hasPositions = positions != null && positions.length > 0;
+        hasOffsets   = offsets != null && offsets.length > 0;
+    }
+
+    /**
+     * Reads just the positions of a serialized doc into buffer, which must
+     * hold freq of them, and returns how many there were
+     */
+    static int readPositions(ByteBuffer bytes_, int[] buffer)
+    {
+        ByteBuffer bytes = bytes_.duplicate();
+        
+        byte flags = bytes.get();
+        
+        if((flags & 2) != 2)
+            return 0;
+        
+        boolean deltas = (flags & deltaFlag) == deltaFlag;
+        
+        int freq = (flags & noFreqFlag) == 0 ? CassandraUtils.mreadVInt(bytes) : 1;
+        
+        if((flags & 1) == 1)
+            bytes.get(); // norm
+        
+        for(int i=0, last=0; i<freq; i++)
+        {
+            buffer[i] = CassandraUtils.mreadVInt(bytes);
+            
+            if(deltas)
+                last = buffer[i] += last;
+        }
+        
+        return freq;
+    }
+
     public LucandraTermInfo(int docId, ByteBuffer bytes_)
     {
         this.docId = docId;
@@ -137,7 +196,10 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
         hasPositions = (flags & 2) == 2;
         hasOffsets   = (flags & 4) == 4;
         
-        freq = CassandraUtils.mreadVInt(bytes);
+        boolean deltas = (flags & deltaFlag) == deltaFlag;
+        
+        hasFreq = (flags & noFreqFlag) == 0;
+        freq = hasFreq ? CassandraUtils.mreadVInt(bytes) : 1;
         
         norm = hasNorm ? bytes.get() : null;
         
@@ -146,8 +208,13 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
         {
             positions_ = new int[freq];
         
-            for(int i=0; i<freq; i++)
+            for(int i=0, last=0; i<freq; i++)
+            {
                 positions_[i] = CassandraUtils.mreadVInt(bytes);
+                
+                if(deltas)
+                    last = positions_[i] += last;
+            }
              
         }
         
@@ -160,7 +227,20 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
             offsets_ = new int[len];
             
             for(int i=0; i<len; i++)
-                offsets_[i] = CassandraUtils.mreadVInt(bytes);          
+                offsets_[i] = CassandraUtils.mreadVInt(bytes);
+            
+            // start from the previous start, end as a length
+            if(deltas)
+            {
+                for(int i=0; i<len; i+=2)
+                {
+                    if(i > 0)
+                        offsets_[i] += offsets_[i-2];
+                    
+                    if(i+1 < len)
+                        offsets_[i+1] += offsets_[i];
+                }
+            }
         }
         
         offsets = offsets_;
@@ -169,12 +249,8 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
     
     public ByteBuffer serialize()
     {
-        //         flags, freq, norm, pos, numoff, off 
-        int size = 1 + 4 + (hasNorm ? 1 : 0) + (hasPositions ? positions.length*4 : 0) + (hasOffsets ? positions.length*4+4 : 0);
-        ByteBuffer r = ByteBuffer.allocate(size);
-        
         //store the initial content flags in the inital byte
-        byte flags = 0;
+        byte flags = deltaFlag;
         if(hasNorm)
             flags |= 1;
         
@@ -184,9 +260,32 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
         if(hasOffsets)
             flags |= 4;
         
+        if(!hasFreq)
+            flags |= noFreqFlag;
+        
+        //         flags, freq, norm
+        int size = 1 + (hasFreq ? vIntSize(freq) : 0) + (hasNorm ? 1 : 0);
+        
+        if(hasPositions)
+        {
+            for(int i=0; i<positions.length; i++)
+                size += vIntSize(positionDelta(i));
+        }
+        
+        if(hasOffsets)
+        {
+            size += vIntSize(offsets.length);
+            
+            for(int i=0; i<offsets.length; i++)
+                size += vIntSize(offsetDelta(i));
+        }
+        
+        ByteBuffer r = ByteBuffer.allocate(size);
+        
         r.put(flags);
-        r.put(CassandraUtils.writeVInt(freq));
         
+        if(hasFreq)
+            r.put(CassandraUtils.writeVInt(freq));
         
         if(hasNorm)
             r.put(norm);
@@ -195,7 +294,7 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
         {
             for(int i=0; i<positions.length; i++)
             {
-                r.put(CassandraUtils.writeVInt(positions[i]));
+                r.put(CassandraUtils.writeVInt(positionDelta(i)));
             }
         }
         
@@ -205,7 +304,7 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
             
             for(int i=0; i<offsets.length; i++)
             {
-                r.put(CassandraUtils.writeVInt(offsets[i]));
+                r.put(CassandraUtils.writeVInt(offsetDelta(i)));
             }
         }
   
@@ -213,6 +312,32 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
   
         return r;
     }
+    
+    private int positionDelta(int i)
+    {
+        return i == 0 ? positions[i] : positions[i] - positions[i-1];
+    }
+    
+    // offsets come in start, end pairs
+    private int offsetDelta(int i)
+    {
+        if(i % 2 == 1)
+            return offsets[i] - offsets[i-1];
+        
+        return i == 0 ? offsets[i] : offsets[i] - offsets[i-2];
+    }
+    
+    private static int vIntSize(int i)
+    {
+        int size = 1;
+        while((i & ~0x7F) != 0)
+        {
+            i >>>= 7;
+            size++;
+        }
+        
+        return size;
+    }
 
     public int compareTo(LucandraTermInfo o)
     {
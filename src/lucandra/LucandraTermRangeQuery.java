@@ -0,0 +1,123 @@
+/**
+ * Copyright T Jake Luciani
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.FilteredTermEnum;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * A TermRangeQuery that tells the lucandra term enum where the range ends,
+ * so terms past it aren't read. Readers of other kinds, and ranges with a
+ * collator, are enumerated as TermRangeQuery does.
+ */
+public class LucandraTermRangeQuery extends TermRangeQuery
+{
+    private static final long serialVersionUID = 1L;
+
+    public LucandraTermRangeQuery(String field, String lowerTerm, String upperTerm, boolean includeLower,
+            boolean includeUpper)
+    {
+        super(field, lowerTerm, upperTerm, includeLower, includeUpper);
+    }
+
+    /** The same range, with the same boost and rewrite method */
+    public LucandraTermRangeQuery(TermRangeQuery range)
+    {
+        this(range.getField(), range.getLowerTerm(), range.getUpperTerm(), range.includesLower(), range
+                .includesUpper());
+
+        setBoost(range.getBoost());
+        setRewriteMethod(range.getRewriteMethod());
+    }
+
+    /** The lucandra reader behind reader, or null if there is none */
+    protected IndexReader unwrap(org.apache.lucene.index.IndexReader reader)
+    {
+        return reader instanceof IndexReader ? (IndexReader) reader : null;
+    }
+
+    @Override
+    protected FilteredTermEnum getEnum(org.apache.lucene.index.IndexReader reader) throws IOException
+    {
+        IndexReader lucandraReader = unwrap(reader);
+
+        if (lucandraReader == null || getCollator() != null)
+            return super.getEnum(reader);
+
+        return new RangeTermEnum(lucandraReader);
+    }
+
+    // code point order only, as TermRangeTermEnum without a collator
+    private class RangeTermEnum extends FilteredTermEnum
+    {
+        private final String field = StringHelper.intern(getField());
+        private final String lower = getLowerTerm() == null ? "" : getLowerTerm();
+        private final String upper = getUpperTerm();
+
+        private boolean      endEnum;
+
+        RangeTermEnum(IndexReader reader) throws IOException
+        {
+            setEnum(reader.terms(new Term(field, lower), upper == null ? null : new Term(field, upper)));
+        }
+
+        @Override
+        protected boolean termCompare(Term term)
+        {
+            if (term == null || term.field() != field)
+            {
+                endEnum = true;
+                return false;
+            }
+
+            if (!includesLower() && getLowerTerm() != null && term.text().compareTo(lower) <= 0)
+                return false;
+
+            if (upper != null)
+            {
+                int compare = upper.compareTo(term.text());
+
+                if (compare < 0 || (!includesUpper() && compare == 0))
+                {
+                    endEnum = true;
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public float difference()
+        {
+            return 1.0f;
+        }
+
+        @Override
+        protected boolean endEnum()
+        {
+            return endEnum;
+        }
+    }
+}
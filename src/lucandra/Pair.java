@@ -5,7 +5,7 @@ import com.google.common.base.Objects;
 public class Pair<T1, T2>
 {
     public final T1 left;
-    public T2 right;
+    public final T2 right;
 
     public Pair(T1 left, T2 right)
     {
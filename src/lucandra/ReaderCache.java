@@ -20,28 +20,74 @@
 package lucandra;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lucandra.cluster.CassandraIndexManager;
 
 import com.google.common.collect.MapMaker;
 
+import org.apache.cassandra.db.CounterColumn;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.SliceFromReadCommand;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.log4j.Logger;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.index.IndexReader.ReaderFinishedListener;
 import org.apache.lucene.util.OpenBitSet;
 
 public class ReaderCache
 {
     private static final Logger logger = Logger.getLogger(ReaderCache.class);
+
+    // kept per index so counts survive the cache being evicted or flushed
+    private static final ConcurrentMap<String, Stats> allStats = new MapMaker().makeMap();
+
+    // marks fields without a norms row
+    private static final DocNorms noNorms = new DocNorms(0);
+
+    public static class Stats
+    {
+        public final AtomicLong hits      = new AtomicLong(0);
+        public final AtomicLong misses    = new AtomicLong(0);
+        public final AtomicLong evictions = new AtomicLong(0);
+
+        public String toString()
+        {
+            return "hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get();
+        }
+    }
     
     public final String indexName;
     public final Map<Integer, Document> documents;
     public final TermCache termCache;
-    public final Map<String, byte[]>  fieldNorms;
-    public final OpenBitSet docHits;
-    public final Object fieldCacheKey;
+    public final ConcurrentMap<String, DocNorms> fieldNorms;
+    public final DocHits docHits;
+    public volatile Object fieldCacheKey;
     public final Collection<ReaderFinishedListener> readerFinishedListeners;
+    public final Stats stats;
+
+    // deleted docs whose postings aren't purged yet, null if none
+    public volatile OpenBitSet deletedDocs;
+
+    private final AtomicLong documentBytes = new AtomicLong(0);
+    private volatile long lastAccess;
+
+    // set once the cache is dropped, threads holding it must read it again
+    private volatile boolean evicted;
+
+    // docs at or past maxDoc were written after this cache's view
+    private volatile int maxDoc;
+    private volatile int numDocs;
+
+    // marked docs are still in the live count until they are purged
+    private volatile int deletedCount;
     
     public ReaderCache(String indexName) throws IOException
     {
@@ -50,10 +96,300 @@ public class ReaderCache
         documents           = new MapMaker().makeMap();
         termCache           = new TermCache(indexName);
         fieldNorms          = new MapMaker().makeMap();
-        docHits             = new OpenBitSet(CassandraIndexManager.maxDocsPerShard);
         readerFinishedListeners = new ArrayList<ReaderFinishedListener>();
         
         fieldCacheKey = UUID.randomUUID();        
+
+        stats = getStats(indexName);
+        lastAccess = System.currentTimeMillis();
+
+        loadDocStats();
+        readDeletedDocs();
+
+        docHits             = new DocHits(maxDoc);
+    }
+
+    public DocNorms getNorms(String field)
+    {
+        DocNorms norms = fieldNorms.get(field);
+
+        if (norms == null)
+        {
+            norms = new DocNorms(maxDoc);
+            DocNorms liveNorms = fieldNorms.putIfAbsent(field, norms);
+
+            if (liveNorms != null)
+                norms = liveNorms;
+        }
+
+        return norms;
+    }
+
+    /**
+     * The norms of a field read from its norms row, loaded once and then
+     * kept current by invalidate. Returns null if the field has none.
+     */
+    public DocNorms loadNorms(String field) throws IOException
+    {
+        DocNorms norms = fieldNorms.get(field);
+
+        if (norms == null)
+        {
+            norms = new DocNorms(maxDoc);
+
+            if (!LucandraNormBlock.read(indexName, field, 0, norms, maxDoc))
+                norms = noNorms;
+
+            DocNorms liveNorms = fieldNorms.putIfAbsent(field, norms);
+
+            if (liveNorms != null)
+                norms = liveNorms;
+        }
+
+        return norms == noNorms ? null : norms;
+    }
+
+    public int maxDoc()
+    {
+        return maxDoc;
+    }
+
+    public int numDocs()
+    {
+        return Math.max(0, numDocs - deletedCount);
+    }
+
+    private void readDeletedDocs() throws IOException
+    {
+        OpenBitSet deleted = DeletedDocs.read(indexName, Integer.MAX_VALUE);
+
+        deletedDocs = deleted;
+        deletedCount = deleted == null ? 0 : (int) deleted.cardinality();
+    }
+
+    /**
+     * Reads the highest doc id and live doc count kept by the writers,
+     * indexes without them get the largest possible shard
+     */
+    private void loadDocStats() throws IOException
+    {
+        ByteBuffer key = CassandraUtils.docStatsKey(indexName);
+
+        int max = readMaxDoc(indexName);
+
+        List<Row> rows = CassandraUtils.robustRead(key, CassandraUtils.metaColumnPath, Arrays
+                .asList(CassandraUtils.countedColBytes), CassandraUtils.consistency);
+
+        IColumn counted = rows.isEmpty() || rows.get(0).cf == null ? null : rows.get(0).cf
+                .getColumn(CassandraUtils.countedColBytes);
+        termCache.termStatsCounted = counted != null && counted.isLive();
+
+        int live = max;
+
+        if (CassandraUtils.useTermStats && termCache.termStatsCounted)
+        {
+            rows = CassandraUtils.robustRead(key, new QueryPath(CassandraUtils.termStatsColumnFamily), Arrays
+                    .asList(CassandraUtils.liveDocsColBytes), CassandraUtils.consistency);
+
+            if (!rows.isEmpty() && rows.get(0).cf != null)
+            {
+                IColumn col = rows.get(0).cf.getColumn(CassandraUtils.liveDocsColBytes);
+
+                if (col instanceof CounterColumn && col.isLive())
+                    live = (int) Math.max(0, Math.min(max, ((CounterColumn) col).total()));
+            }
+        }
+
+        // a doc seen through an invalidation may be newer than the stats read
+        maxDoc = Math.max(maxDoc, max);
+        numDocs = Math.min(live, maxDoc);
+    }
+
+    /**
+     * One past the highest doc id kept by the writers, indexes without it
+     * get the largest possible shard
+     */
+    public static int readMaxDoc(String indexName) throws IOException
+    {
+        // replaced columns are dropped, but a few may still be around
+        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, new SliceFromReadCommand(
+                CassandraUtils.keySpace, CassandraUtils.maxDocsKey(indexName), new ColumnParent(
+                        CassandraUtils.docColumnFamily), ByteBufferUtil.EMPTY_BYTE_BUFFER,
+                ByteBufferUtil.EMPTY_BYTE_BUFFER, true, 16));
+
+        int max = CassandraIndexManager.maxDocsPerShard + 1;
+
+        if (rows.isEmpty() || rows.get(0).cf == null)
+            return max;
+
+        int last = -1;
+        for (IColumn col : rows.get(0).cf.getSortedColumns())
+        {
+            if (col.isLive())
+                last = Math.max(last, ByteBufferUtil.toInt(col.name()));
+        }
+
+        return last < 0 ? max : Math.min(max, last + 1);
+    }
+
+    public static Stats getStats(String indexName)
+    {
+        Stats stats = allStats.get(indexName);
+
+        if (stats == null)
+        {
+            stats = new Stats();
+            Stats liveStats = allStats.putIfAbsent(indexName, stats);
+
+            if (liveStats != null)
+                stats = liveStats;
+        }
+
+        return stats;
+    }
+
+    public static Map<String, Stats> getAllStats()
+    {
+        return Collections.unmodifiableMap(allStats);
+    }
+
+    public void touch()
+    {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    public long getLastAccess()
+    {
+        return lastAccess;
+    }
+
+    public void evict()
+    {
+        evicted = true;
+    }
+
+    public boolean isEvicted()
+    {
+        return evicted;
+    }
+
+    public void putDocument(Integer docNum, Document doc)
+    {
+        if (documents.put(docNum, doc) == null)
+            documentBytes.addAndGet(estimateSize(doc));
+    }
+
+    public void invalidate(IndexChanges changes)
+    {
+        if (changes.isEmpty())
+            return;
+
+        termCache.invalidate(changes.getTerms());
+
+        SortedSet<Integer> docIds = changes.getDocIds();
+        Set<String> fields = changes.getFields();
+
+        for (Integer docId : docIds)
+        {
+            Document doc = documents.remove(docId);
+
+            if (doc != null)
+                documentBytes.addAndGet(-estimateSize(doc));
+
+            // norms are set again when the doc's terms are reloaded
+            for (String field : CassandraUtils.useNormRows ? Collections.<String> emptySet() : fields)
+            {
+                DocNorms norms = fieldNorms.get(field);
+
+                if (norms != null)
+                    norms.clear(docId);
+            }
+
+            docHits.clear(docId);
+        }
+
+        // sort values for these docs may have changed
+        fieldCacheKey = UUID.randomUUID();
+
+        // new docs become visible
+        if (!docIds.isEmpty())
+            maxDoc = Math.max(maxDoc, Math.min(docIds.last() + 1, CassandraIndexManager.maxDocsPerShard + 1));
+
+        try
+        {
+            loadDocStats();
+
+            // deletes and purges both list the docs they touch
+            if (!docIds.isEmpty())
+                readDeletedDocs();
+
+            if (CassandraUtils.useNormRows && !docIds.isEmpty())
+                reloadNorms(fields, docIds.first());
+        }
+        catch (IOException e)
+        {
+            logger.warn("Unable to read doc stats, deletes or norms for " + indexName, e);
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Invalidated " + docIds.size() + " docs and " + changes.getTerms().size() + " terms for "
+                    + indexName);
+    }
+
+    // rereads the norm blocks from the first changed doc on
+    private void reloadNorms(Set<String> fields, int fromDoc) throws IOException
+    {
+        for (String field : fields)
+        {
+            DocNorms norms = fieldNorms.get(field);
+
+            if (norms == null)
+                continue;
+
+            if (norms == noNorms)
+            {
+                // the field may have its first norms now
+                fieldNorms.remove(field, noNorms);
+                continue;
+            }
+
+            LucandraNormBlock.read(indexName, field, fromDoc, norms, maxDoc);
+        }
+    }
+
+    /**
+     * Rough estimate of the heap held by this cache in bytes, measured when
+     * called so postings decoded since they were read are counted
+     */
+    public long weight()
+    {
+        long weight = termCache.weight() + documentBytes.get() + docHits.ramBytesUsed();
+
+        OpenBitSet deleted = deletedDocs;
+        if (deleted != null)
+            weight += deleted.getBits().length * 8L;
+
+        for (DocNorms norms : fieldNorms.values())
+            weight += norms.ramBytesUsed();
+
+        return weight;
+    }
+
+    private static long estimateSize(Document doc)
+    {
+        long size = 64;
+
+        for (Fieldable field : doc.getFields())
+        {
+            size += 64 + field.name().length() * 2;
+
+            if (field.isBinary())
+                size += field.getBinaryLength();
+            else if (field.stringValue() != null)
+                size += field.stringValue().length() * 2;
+        }
+
+        return size;
     }
     
     
@@ -0,0 +1,35 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+/**
+ * Decides if and when a failed cassandra read or write is retried.
+ *
+ * Set with cassandra.retries.policy, implementations need a constructor
+ * taking the solandra properties.
+ */
+public interface RetryPolicy
+{
+    /**
+     * The milliseconds to wait before the given attempt of an operation that
+     * started elapsed milliseconds ago, or a negative value to give up
+     */
+    long retryDelay(int attempt, long elapsed);
+}
@@ -4,10 +4,12 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.log4j.Logger;
@@ -17,41 +19,102 @@ public class TermCache
 {
 
     private final static Term                                             emptyTerm         = new Term("");
-    private final static ConcurrentNavigableMap<Term, LucandraTermInfo[]> emptyMap          = new ConcurrentSkipListMap<Term, LucandraTermInfo[]>();
+    private final static ConcurrentNavigableMap<Term, LucandraTermBlock[]> emptyMap          = new ConcurrentSkipListMap<Term, LucandraTermBlock[]>();
     private final static ColumnParent                                     fieldColumnFamily = new ColumnParent(
                                                                                                     CassandraUtils.metaInfoColumnFamily);
     private final static Logger                                           logger            = Logger
                                                                                                     .getLogger(TermCache.class);
 
+    // terms listed per read, a seek starts small and an enumeration grows
+    // its window up to the max
+    public final static int                                               minBufferSize     = Integer
+                                                                                                    .valueOf(CassandraUtils.properties
+                                                                                                            .getProperty(
+                                                                                                                    "solandra.read.terms.window.min",
+                                                                                                                    "4"));
+    public final static int                                               maxBufferSize     = Integer
+                                                                                                    .valueOf(CassandraUtils.properties
+                                                                                                            .getProperty(
+                                                                                                                    "solandra.read.terms.window.max",
+                                                                                                                    "1024"));
+
+    // term rows are read in splits of this many terms, several at once
+    private final static int                                              readSplitSize     = Integer
+                                                                                                    .valueOf(CassandraUtils.properties
+                                                                                                            .getProperty(
+                                                                                                                    "solandra.read.terms.split.size",
+                                                                                                                    "8"));
+    private final static ExecutorService                                  readExecutor      = Executors
+                                                                                                    .newFixedThreadPool(
+                                                                                                            Integer
+                                                                                                                    .valueOf(CassandraUtils.properties
+                                                                                                                            .getProperty(
+                                                                                                                                    "solandra.read.terms.threads",
+                                                                                                                                    "16")),
+                                                                                                            new NamedThreadFactory(
+                                                                                                                    "SolandraTermReader"));
+
     public final String                                                   indexName;
     public final ByteBuffer                                               termsListKey;
-    public final ConcurrentSkipListMap<Term, LucandraTermInfo[]>          termList;
+    public final ConcurrentSkipListMap<Term, LucandraTermBlock[]>          termList;
     public final ConcurrentSkipListMap<Term, Pair<Term, Term>>            termQueryBoundries;
 
+    // the term stats count every doc of this index, set by the reader cache
+    volatile boolean                                                      termStatsCounted;
+
+    // doc counts read from the term stats, apart from the postings
+    private final ConcurrentMap<Term, Integer>                            docFreqs          = new ConcurrentHashMap<Term, Integer>();
+
+    // terms whose rows are still being read
+    private final ConcurrentSkipListMap<Term, Future<?>>                  pendingTerms      = new ConcurrentSkipListMap<Term, Future<?>>();
+
+    private final ReaderCache.Stats                                       stats;
+
     public TermCache(String indexName) throws IOException
     {
         this.indexName = indexName;
         termsListKey = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, "terms"
                 .getBytes("UTF-8"));
-        termList = new ConcurrentSkipListMap<Term, LucandraTermInfo[]>();
+        termList = new ConcurrentSkipListMap<Term, LucandraTermBlock[]>();
 
         // Get the boundries of terms each term
         termQueryBoundries = new ConcurrentSkipListMap<Term, Pair<Term, Term>>();
+
+        stats = ReaderCache.getStats(indexName);
+    }
+
+    /**
+     * Estimated heap held by the cached postings and doc counts. Blocks grow
+     * as readers decode them, so this walks the cached terms each time; only
+     * the background eviction check calls it.
+     */
+    public long weight()
+    {
+        long weight = 64L * docFreqs.size();
+
+        for (LucandraTermBlock[] blocks : termList.values())
+            weight += LucandraTermBlock.ramBytesUsed(blocks);
+
+        return weight;
     }
 
     // Cache check only
-    public LucandraTermInfo[] get(Term term)
+    public LucandraTermBlock[] get(Term term)
     {
         return termList.get(term);
     }
 
-    public ConcurrentNavigableMap<Term, LucandraTermInfo[]> skipTo(Term skip) throws IOException
+    /**
+     * Returns the cached terms from skip on, listing up to bufferSize more
+     * terms if skip isn't buffered yet. A non null end stops the listing at
+     * that term.
+     */
+    public ConcurrentNavigableMap<Term, LucandraTermBlock[]> skipTo(Term skip, int bufferSize, Term end)
+            throws IOException
     {
 
         Pair<Term, Term> range = null;
 
-        int bufferSize = termList.isEmpty() ? 4 : 64;
-
         // verify we've buffered sufficiently
         Map.Entry<Term, Pair<Term, Term>> tailEntry = termQueryBoundries.ceilingEntry(skip);
         boolean needsBuffering = true;
@@ -67,11 +130,16 @@ public class TermCache
             }
         }
 
-        ConcurrentNavigableMap<Term, LucandraTermInfo[]> subList = emptyMap;
+        ConcurrentNavigableMap<Term, LucandraTermBlock[]> subList = emptyMap;
 
         if (needsBuffering)
         {
-            range = bufferTerms(skip, bufferSize);
+            stats.misses.incrementAndGet();
+            range = bufferTerms(skip, bufferSize, end);
+        }
+        else
+        {
+            stats.hits.incrementAndGet();
         }
 
         //logger.info(Thread.currentThread().getName()+" rebuffered "+needsBuffering+" "+range);
@@ -79,22 +147,126 @@ public class TermCache
         if (skip.compareTo(range.left) >= 0 && (!range.right.equals(emptyTerm)) && skip.compareTo(range.right) <= 0)
         {
             subList = termList.subMap(skip, true, range.right, true);
+
+            // the view is live, so terms show up in it once their reads finish
+            awaitTerms(skip, true, subList.isEmpty() ? range.right : subList.firstKey());
         }
 
         return subList;
     }
 
-    public static LucandraTermInfo[] convertTermInfo(Collection<IColumn> docs)
+    /**
+     * Waits for the rows of terms between from and to (inclusive) that are
+     * still being read, to may be null to wait for all terms after from
+     */
+    public void awaitTerms(Term from, boolean fromInclusive, Term to) throws IOException
+    {
+        if (pendingTerms.isEmpty())
+            return;
+
+        if (to != null && from.compareTo(to) > 0)
+            return;
+
+        NavigableMap<Term, Future<?>> pending = to == null ? pendingTerms.tailMap(from, fromInclusive) : pendingTerms
+                .subMap(from, fromInclusive, to, true);
+
+        try
+        {
+            for (Future<?> read : pending.values())
+                read.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Drops the postings of these terms, along with any buffered range that
+     * contains them so new terms are picked up on the next read
+     */
+    public void invalidate(SortedSet<Term> terms)
+    {
+        if (terms.isEmpty())
+            return;
+
+        for (Term term : terms)
+        {
+            docFreqs.remove(term);
+
+            termList.remove(term);
+        }
+
+        Iterator<Pair<Term, Term>> it = termQueryBoundries.values().iterator();
+        while (it.hasNext())
+        {
+            Pair<Term, Term> range = it.next();
+
+            // ranges ending in emptyTerm are always re-read
+            if (range.right == null || range.right.equals(emptyTerm))
+                continue;
+
+            Term first = terms.ceiling(range.left);
+
+            if (first != null && first.compareTo(range.right) <= 0)
+                it.remove();
+        }
+    }
+
+    /**
+     * The number of docs containing a term, from the cached postings or the
+     * term stats. Returns -1 if neither knows the term.
+     */
+    public int docFreq(Term term) throws IOException
+    {
+        LucandraTermBlock[] blocks = termList.get(term);
+        if (blocks != null)
+            return LucandraTermBlock.count(blocks);
+
+        Integer docFreq = docFreqs.get(term);
+        if (docFreq != null)
+            return docFreq;
+
+        // counters that missed older docs would give a partial count
+        if (!CassandraUtils.useTermStats || !termStatsCounted)
+            return -1;
+
+        ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, term
+                .field().getBytes("UTF-8"));
+        ByteBuffer column = ByteBuffer.wrap(term.text().getBytes("UTF-8"));
+
+        List<Row> rows = CassandraUtils.robustRead(key, new QueryPath(CassandraUtils.termStatsColumnFamily), Arrays
+                .asList(column), CassandraUtils.consistency);
+
+        if (rows.isEmpty() || rows.get(0).cf == null)
+            return -1;
+
+        IColumn col = rows.get(0).cf.getColumn(column);
+        if (!(col instanceof CounterColumn) || !col.isLive())
+            return -1;
+
+        docFreq = (int) Math.max(0, ((CounterColumn) col).total());
+        docFreqs.put(term, docFreq);
+
+        return docFreq;
+    }
+
+    public static LucandraPostings convertTermInfo(Collection<IColumn> docs)
     {
 
-        LucandraTermInfo termInfo[] = new LucandraTermInfo[docs.size()];
+        LucandraPostings termInfo = new LucandraPostings(docs.size());
 
         int i = 0;
         for (IColumn col : docs)
         {
-            if (i == termInfo.length)
-                break;
-
             if (i == 0 && col instanceof SuperColumn)
                 throw new IllegalStateException(
                         "TermInfo ColumnFamily is a of type Super: This is no longer supported, please see NEWS.txt");
@@ -102,49 +274,144 @@ public class TermCache
             if (col == null || col.name() == null || col.value() == null)
                 throw new IllegalStateException("Encountered missing column: " + col);
 
-            termInfo[i] = new LucandraTermInfo(CassandraUtils.readVInt(col.name()), col.value());
             i++;
+
+            // deleted, or marks a doc deleted from the term blocks
+            if (!col.isLive() || col.value().remaining() == 0)
+                continue;
+
+            termInfo.addDoc(CassandraUtils.readVInt(col.name()), col.value());
         }
 
         return termInfo;
     }
 
-    public Pair<Term, Term> bufferTerms(Term startTerm, int bufferSize) throws IOException
+    /**
+     * Builds the postings of a term from its TI columns and its TB blocks
+     */
+    public static LucandraTermBlock[] convertTermBlocks(Collection<IColumn> docs, Collection<IColumn> blocks)
     {
-        assert bufferSize > 0;
+        List<LucandraTermBlock> termBlocks = new ArrayList<LucandraTermBlock>();
+        NavigableMap<Integer, Long> deletedDocs = null;
 
-        long start = System.currentTimeMillis();
+        if (docs != null && !docs.isEmpty())
+        {
+            LucandraPostings termInfo = new LucandraPostings(docs.size());
 
-        // Scan range of terms in this field (reversed, so we have a exit point)
-        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, new SliceFromReadCommand(
-                CassandraUtils.keySpace, termsListKey, fieldColumnFamily, CassandraUtils.createColumnName(startTerm),
-                ByteBufferUtil.EMPTY_BYTE_BUFFER, false, bufferSize));
+            int i = 0;
+            for (IColumn col : docs)
+            {
+                if (i++ == 0 && col instanceof SuperColumn)
+                    throw new IllegalStateException(
+                            "TermInfo ColumnFamily is a of type Super: This is no longer supported, please see NEWS.txt");
+
+                if (!col.isLive())
+                {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Removing " + col + " document");
 
-        ColumnParent columnParent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+                    continue;
+                }
 
-        // Collect read commands
-        Collection<IColumn> columns;
+                int docId = CassandraUtils.readVInt(col.name());
 
-        if (rows == null || rows.size() != 1 || rows.get(0).cf == null)
+                // Empty value marks a doc deleted from the term blocks
+                if (col.value().remaining() == 0)
+                {
+                    if (deletedDocs == null)
+                        deletedDocs = new TreeMap<Integer, Long>();
+
+                    deletedDocs.put(docId, col.timestamp());
+                    continue;
+                }
+
+                termInfo.addDoc(docId, col.value());
+            }
+
+            // column postings are always current
+            if (termInfo.size() > 0)
+                termBlocks.add(new LucandraTermBlock(termInfo, Long.MAX_VALUE));
+        }
+
+        if (blocks != null)
         {
-            columns = new ArrayList<IColumn>();
+            for (IColumn col : blocks)
+            {
+                if (col.isLive())
+                    termBlocks.add(new LucandraTermBlock(col.name(), col.value(), col.timestamp()));
+            }
         }
-        else
+
+        return LucandraTermBlock.resolve(termBlocks, deletedDocs);
+    }
+
+    /**
+     * Reads the postings for each term row key, terms without any live docs
+     * are left out
+     */
+    public static Map<ByteBuffer, LucandraTermBlock[]> readTermBlocks(Collection<ByteBuffer> termKeys)
+            throws IOException
+    {
+        Map<ByteBuffer, LucandraTermBlock[]> termBlocks = new HashMap<ByteBuffer, LucandraTermBlock[]>(termKeys.size());
+
+        if (termKeys.isEmpty())
+            return termBlocks;
+
+        Map<ByteBuffer, Collection<IColumn>> docRows = readRows(CassandraUtils.termVecColumnFamily, termKeys);
+        Map<ByteBuffer, Collection<IColumn>> blockRows = null;
+
+        if (CassandraUtils.useTermBlocks)
+            blockRows = readRows(CassandraUtils.termBlockColumnFamily, termKeys);
+
+        for (ByteBuffer key : termKeys)
         {
-            columns = rows.get(0).cf.getSortedColumns();
+            LucandraTermBlock[] blocks = convertTermBlocks(docRows.get(key), blockRows == null ? null : blockRows
+                    .get(key));
 
-            if (logger.isDebugEnabled())
-                logger.debug("Found " + columns.size() + " terms under field " + startTerm.field());
+            if (blocks.length > 0)
+                termBlocks.put(key, blocks);
         }
 
-        Pair<Term, Term> queryRange;
+        return termBlocks;
+    }
+
+    static Map<ByteBuffer, Collection<IColumn>> readRows(String columnFamily, Collection<ByteBuffer> keys)
+            throws IOException
+    {
+        ColumnParent columnParent = new ColumnParent(columnFamily);
 
-        if (!columns.isEmpty())
+        List<ReadCommand> reads = new ArrayList<ReadCommand>(keys.size());
+        for (ByteBuffer key : keys)
         {
-            //end of range will get filled in later
-            queryRange = new Pair<Term, Term>(startTerm, null);
+            reads.add((ReadCommand) new SliceFromReadCommand(CassandraUtils.keySpace, key, columnParent,
+                    ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE));
         }
-        else
+
+        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, reads.toArray(new ReadCommand[] {}));
+
+        Map<ByteBuffer, Collection<IColumn>> columns = new HashMap<ByteBuffer, Collection<IColumn>>(rows.size());
+        for (Row row : rows)
+        {
+            if (row.cf == null)
+                continue;
+
+            columns.put(row.key.key, row.cf.getSortedColumns());
+        }
+
+        return columns;
+    }
+
+    public Pair<Term, Term> bufferTerms(Term startTerm, int bufferSize, Term endTerm) throws IOException
+    {
+        assert bufferSize > 0;
+
+        long start = System.currentTimeMillis();
+
+        List<Term> terms = listTerms(startTerm, bufferSize, endTerm);
+
+        Pair<Term, Term> queryRange;
+
+        if (terms.isEmpty())
         {
             queryRange = new Pair<Term, Term>(startTerm, emptyTerm);
 
@@ -153,130 +420,190 @@ public class TermCache
             return queryRange;
         }
 
-        Map<Term, Pair<Term, Term>> localRanges = new HashMap<Term, Pair<Term, Term>>(columns.size());
+        // until every split is read the range runs to the last listed term,
+        // then it is swapped for one ending at the last term with docs
+        queryRange = new Pair<Term, Term>(startTerm, terms.get(terms.size() - 1));
+
+        Map<Term, Pair<Term, Term>> localRanges = new HashMap<Term, Pair<Term, Term>>(terms.size() + 1);
         localRanges.put(startTerm, queryRange);
 
-        List<ReadCommand> reads = new ArrayList<ReadCommand>(columns.size());
-        for (IColumn column : columns)
+        Map<ByteBuffer, Term> termKeys = new LinkedHashMap<ByteBuffer, Term>(terms.size());
+        for (Term term : terms)
         {
-            if(!column.isLive() || column instanceof DeletedColumn)
-                continue;
-            
-            Term term = CassandraUtils.parseTerm(ByteBufferUtil.string(column.name(), CassandraUtils.UTF_8));
-
             localRanges.put(term, queryRange);
 
-            ByteBuffer rowKey;
-            try
-            {
-                rowKey = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, term
-                        .field().getBytes("UTF-8"), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
-            }
-            catch (UnsupportedEncodingException e)
-            {
-                throw new RuntimeException("This JVM doesn't support UTF-8");
-            }
+            ByteBuffer rowKey = termRowKey(term);
 
             if (logger.isDebugEnabled())
                 logger.debug("scanning row: " + ByteBufferUtil.string(rowKey));
 
-            reads.add((ReadCommand) new SliceFromReadCommand(CassandraUtils.keySpace, rowKey, columnParent,
-                    ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE));
+            termKeys.put(rowKey, term);
         }
 
-        rows = CassandraUtils.robustRead(CassandraUtils.consistency, reads.toArray(new ReadCommand[] {}));
+        readTerms(termKeys, queryRange, localRanges);
 
-        // term to start with next time
-        int actualReadSize = rows.size();
+        long end = System.currentTimeMillis();
 
         if (logger.isDebugEnabled())
         {
-            logger.debug("Found " + rows.size() + " rows in range:" + startTerm + " to " + "" + " in "
-                    + (System.currentTimeMillis() - start) + "ms");
-
+            logger.debug("loadTerms: " + startTerm + "(" + termKeys.size() + ") listed in " + (end - start) + "ms");
         }
-        
-        if (actualReadSize > 0)
+
+        return queryRange;
+    }
+
+    /**
+     * Lists up to count live terms from startTerm on, without reading their
+     * postings. A non null endTerm stops the listing at that term.
+     */
+    public List<Term> listTerms(Term startTerm, int count, Term endTerm) throws IOException
+    {
+        ByteBuffer finish = endTerm == null || endTerm.compareTo(startTerm) < 0 ? ByteBufferUtil.EMPTY_BYTE_BUFFER
+                : CassandraUtils.createColumnName(endTerm);
+
+        // Scan range of terms in this field (reversed, so we have a exit point)
+        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, new SliceFromReadCommand(
+                CassandraUtils.keySpace, termsListKey, fieldColumnFamily, CassandraUtils.createColumnName(startTerm),
+                finish, false, count));
+
+        if (rows == null || rows.size() != 1 || rows.get(0).cf == null)
+            return Collections.emptyList();
+
+        Collection<IColumn> columns = rows.get(0).cf.getSortedColumns();
+
+        if (logger.isDebugEnabled())
+            logger.debug("Found " + columns.size() + " terms under field " + startTerm.field());
+
+        List<Term> terms = new ArrayList<Term>(columns.size());
+        for (IColumn column : columns)
         {
-            for (Row row : rows)
-            {
+            if (!column.isLive() || column instanceof DeletedColumn)
+                continue;
 
-                if (row.cf == null)
-                {
-                    //logger.info("Encountered deleted row");
-                    continue;
-                }
-                String key = ByteBufferUtil.string(row.key.key, CassandraUtils.UTF_8);
+            terms.add(CassandraUtils.parseTerm(ByteBufferUtil.string(column.name(), CassandraUtils.UTF_8)));
+        }
 
-                // term keys look like wikipedia/body/wiki
-                String termStr = key.substring(key.indexOf(CassandraUtils.delimeter)
-                        + CassandraUtils.delimeter.length());
-                Term term = CassandraUtils.parseTerm(termStr);
+        return terms;
+    }
 
-                columns = row.cf.getSortedColumns();
+    private ByteBuffer termRowKey(Term term)
+    {
+        try
+        {
+            return CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, term
+                    .field().getBytes("UTF-8"), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException("This JVM doesn't support UTF-8");
+        }
+    }
 
-                if (logger.isDebugEnabled())
-                    logger.debug(term + " has " + columns.size());
+    /**
+     * Reads the term rows in splits on the read executor, each term is put
+     * in termList as soon as its split is back
+     */
+    private void readTerms(Map<ByteBuffer, Term> termKeys, final Pair<Term, Term> queryRange,
+            final Map<Term, Pair<Term, Term>> localRanges)
+    {
+        List<Map<ByteBuffer, Term>> splits = new ArrayList<Map<ByteBuffer, Term>>();
 
-                // remove any deleted columns
-                Collection<IColumn> columnsToRemove = null;
+        Map<ByteBuffer, Term> split = null;
+        for (Map.Entry<ByteBuffer, Term> termKey : termKeys.entrySet())
+        {
+            if (split == null || split.size() == readSplitSize)
+            {
+                split = new LinkedHashMap<ByteBuffer, Term>(readSplitSize);
+                splits.add(split);
+            }
+
+            split.put(termKey.getKey(), termKey.getValue());
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(splits.size());
+        List<FutureTask<Void>> reads = new ArrayList<FutureTask<Void>>(splits.size());
 
-                for (IColumn col : columns)
+        for (final Map<ByteBuffer, Term> splitKeys : splits)
+        {
+            FutureTask<Void> read = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws Exception
                 {
-                    if (!col.isLive())
+                    long start = System.currentTimeMillis();
+                    boolean success = false;
+
+                    try
+                    {
+                        saveTerms(splitKeys, readTermBlocks(splitKeys.keySet()));
+                        success = true;
+                    }
+                    finally
                     {
-                        if (columnsToRemove == null)
-                            columnsToRemove = new ArrayList<IColumn>();
+                        // forget the range so it's read again
+                        if (!success)
+                        {
+                            for (Term term : localRanges.keySet())
+                                termQueryBoundries.remove(term, queryRange);
+                        }
+                    }
 
-                        if(logger.isDebugEnabled())
-                            logger.debug("Removing "+col+" documents from "+term);
+                    // once all are in, end the range at the last term with
+                    // docs so the next read starts after it
+                    if (remaining.decrementAndGet() == 0)
+                    {
+                        Term last = termList.floorKey(queryRange.right);
+                        Pair<Term, Term> readRange = new Pair<Term, Term>(queryRange.left, last == null
+                                || last.compareTo(queryRange.left) < 0 ? emptyTerm : last);
 
-                        
-                        columnsToRemove.add(col);
+                        for (Term term : localRanges.keySet())
+                            termQueryBoundries.replace(term, queryRange, readRange);
                     }
 
                     if (logger.isDebugEnabled())
-                        logger.debug("Kept DocId " + CassandraUtils.readVInt(col.name()));
-                }
-
-                if (columnsToRemove != null)
-                {                   
-                    columns.removeAll(columnsToRemove);
-                }
+                        logger.debug("read " + splitKeys.size() + " term rows in "
+                                + (System.currentTimeMillis() - start) + "ms");
 
-                if (!columns.isEmpty())
-                {
-                    if (logger.isDebugEnabled())
-                        logger.debug("saving term: " + term + " with " + columns.size() + " docs");
-
-                    termList.put(term, convertTermInfo(columns));
-                    
-                    //update end of range
-                    if(queryRange.right == null || queryRange.right.compareTo(term) < 0)
-                        queryRange.right = term;
-                    
+                    return null;
                 }
-                else
+            }) {
+                protected void done()
                 {
-                    if (logger.isDebugEnabled())
-                        logger.debug("Skipped term: " + term);
+                    for (Term term : splitKeys.values())
+                        pendingTerms.remove(term, this);
                 }
-            }
+            };
 
-            if(queryRange.right == null)
-                queryRange.right = emptyTerm;
-            
-            // to recall we did this query
-            termQueryBoundries.putAll(localRanges);
+            for (Term term : splitKeys.values())
+                pendingTerms.put(term, read);
+
+            reads.add(read);
         }
 
-        long end = System.currentTimeMillis();
+        // to recall we did this query, once readers know to wait for it
+        termQueryBoundries.putAll(localRanges);
 
-        if (logger.isDebugEnabled())
+        for (FutureTask<Void> read : reads)
+            readExecutor.execute(read);
+    }
+
+    private void saveTerms(Map<ByteBuffer, Term> termKeys, Map<ByteBuffer, LucandraTermBlock[]> termBlocks)
+    {
+        for (Map.Entry<ByteBuffer, Term> termKey : termKeys.entrySet())
         {
-            logger.debug("loadTerms: " + startTerm + "(" + actualReadSize + ") took " + (end - start) + "ms");
-        }
+            Term term = termKey.getValue();
+            LucandraTermBlock[] blocks = termBlocks.get(termKey.getKey());
 
-        return queryRange;
+            if (blocks != null)
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug("saving term: " + term + " with " + LucandraTermBlock.count(blocks) + " docs");
+
+                termList.put(term, blocks);
+            }
+            else
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug("Skipped term: " + term);
+            }
+        }
     }
 }
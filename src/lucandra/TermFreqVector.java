@@ -23,16 +23,13 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
-import lucandra.serializers.thrift.DocumentMetadata;
-import lucandra.serializers.thrift.ThriftTerm;
+import java.util.*;
 
+import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.SliceByNamesReadCommand;
+import org.apache.cassandra.db.SliceFromReadCommand;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.lucene.index.Term;
@@ -42,6 +39,9 @@ public class TermFreqVector implements org.apache.lucene.index.TermFreqVector,
         org.apache.lucene.index.TermPositionVector
 {
 
+    // blocks read back from a doc when looking for it
+    private static final int         blockScan = 8;
+
     private String                   field;
     private byte[]                   docId;
     private String[]                 terms;
@@ -67,10 +67,11 @@ public class TermFreqVector implements org.apache.lucene.index.TermFreqVector,
         ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, docId);
 
         ReadCommand rc = new SliceByNamesReadCommand(CassandraUtils.keySpace, key, CassandraUtils.metaColumnPath,
-                Arrays.asList(CassandraUtils.documentMetaFieldBytes));
+                Arrays.asList(CassandraUtils.documentTermsFieldBytes, CassandraUtils.documentMetaFieldBytes));
 
 
         List<Row> rows = null;
+        Map<ByteBuffer, LucandraTermInfo> termInfos;
         try
         {
 
@@ -85,54 +86,48 @@ public class TermFreqVector implements org.apache.lucene.index.TermFreqVector,
 
            
 
-            DocumentMetadata allTerms = IndexWriter.fromBytesUsingThrift(rows.get(0).cf.getColumn(
-                    CassandraUtils.documentMetaFieldBytes).value());
+            DocumentTerms allTerms = DocumentTerms.read(rows.get(0).cf);
 
-            List<ReadCommand> readCommands = new ArrayList<ReadCommand>();
+            if (allTerms == null)
+                return; // this docId is missing
 
-            for (ThriftTerm t : allTerms.getTerms())
-            {
-                // skip the ones not of this field
-                if (!t.getField().equals(field))
-                    continue;
+            List<ByteBuffer> termKeys = new ArrayList<ByteBuffer>();
 
+            for (Term t : allTerms.getTerms(field))
+            {
                 // add to multiget params
                 try
                 {
-                    key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, t.getField()
-                            .getBytes("UTF-8"), CassandraUtils.delimeterBytes, t.getText());
+                    key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, t.field()
+                            .getBytes("UTF-8"), CassandraUtils.delimeterBytes, t.text().getBytes("UTF-8"));
                 }
                 catch (UnsupportedEncodingException e)
                 {
                     throw new RuntimeException("JVM doesn't support UTF-8", e);
                 }
 
-                readCommands.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, new ColumnParent()
-                        .setColumn_family(CassandraUtils.termVecColumnFamily), Arrays.asList(ByteBuffer
-                        .wrap(CassandraUtils.writeVInt(docI)))));
+                termKeys.add(key);
             }
 
-            rows = CassandraUtils.robustRead(CassandraUtils.consistency, readCommands.toArray(new ReadCommand[] {}));
-
-
+            termInfos = readTermInfo(termKeys, docI);
         }
         catch (IOException e)
         {
             throw new RuntimeException(e);
         }
         
-        terms = new String[rows.size()];
-        freqVec = new int[rows.size()];
-        termPositions = new int[rows.size()][];
-        termOffsets = new TermVectorOffsetInfo[rows.size()][];
+        terms = new String[termInfos.size()];
+        freqVec = new int[termInfos.size()];
+        termPositions = new int[termInfos.size()][];
+        termOffsets = new TermVectorOffsetInfo[termInfos.size()][];
 
         int i = 0;
 
         try
         {
-            for (Row row : rows)
+            for (Map.Entry<ByteBuffer, LucandraTermInfo> entry : termInfos.entrySet())
             {
-                String rowKey = ByteBufferUtil.string(row.key.key, CassandraUtils.UTF_8);
+                String rowKey = ByteBufferUtil.string(entry.getKey(), CassandraUtils.UTF_8);
 
                 String termStr = rowKey.substring(rowKey.indexOf(CassandraUtils.delimeter)
                         + CassandraUtils.delimeter.length());
@@ -142,20 +137,12 @@ public class TermFreqVector implements org.apache.lucene.index.TermFreqVector,
                 terms[i] = t.text();
 
                 // Find the offsets and positions
-                LucandraTermInfo termInfo = null;
+                LucandraTermInfo termInfo = entry.getValue();
 
-                if (row.cf != null)
-                {
-                    ByteBuffer val = row.cf.getSortedColumns().iterator().next().value();
-                    
-                    termInfo = new LucandraTermInfo(0, val);
-
-                    termPositions[i] = termInfo.positions;
-                }
-                               
+                termPositions[i] = termInfo.positions;
                 freqVec[i] = termInfo.freq;
 
-                if (termInfo == null || !termInfo.hasOffsets)
+                if (!termInfo.hasOffsets)
                 {
                     termOffsets[i] = null;
                 }
@@ -182,6 +169,119 @@ public class TermFreqVector implements org.apache.lucene.index.TermFreqVector,
 
     }
 
+    // Find this doc under each term row
+    private static Map<ByteBuffer, LucandraTermInfo> readTermInfo(List<ByteBuffer> termKeys, int docI)
+            throws IOException
+    {
+        Map<ByteBuffer, LucandraTermInfo> termInfos = new LinkedHashMap<ByteBuffer, LucandraTermInfo>();
+
+        if (CassandraUtils.useTermBlocks)
+        {
+            Map<ByteBuffer, LucandraTermBlock[]> termBlocks = readDocBlocks(termKeys, docI);
+
+            for (ByteBuffer key : termKeys)
+            {
+                LucandraTermBlock[] blocks = termBlocks.get(key);
+
+                if (blocks == null)
+                    continue;
+
+                for (LucandraTermBlock block : blocks)
+                {
+                    if (docI < block.firstDoc || docI > block.lastDoc)
+                        continue;
+
+                    LucandraPostings postings = block.getPostings();
+                    int idx = postings.indexOf(docI);
+
+                    if (idx >= 0)
+                        termInfos.put(key, postings.getTermInfo(idx));
+                }
+            }
+
+            return termInfos;
+        }
+
+        List<ReadCommand> readCommands = new ArrayList<ReadCommand>(termKeys.size());
+
+        for (ByteBuffer key : termKeys)
+        {
+            readCommands.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, new ColumnParent()
+                    .setColumn_family(CassandraUtils.termVecColumnFamily), Arrays.asList(ByteBuffer
+                    .wrap(CassandraUtils.writeVInt(docI)))));
+        }
+
+        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, readCommands.toArray(new ReadCommand[] {}));
+
+        for (Row row : rows)
+        {
+            if (row.cf == null)
+                continue;
+
+            LucandraPostings postings = TermCache.convertTermInfo(row.cf.getSortedColumns());
+
+            for (int i = 0; i < postings.size(); i++)
+                termInfos.put(row.key.key, postings.getTermInfo(i));
+        }
+
+        return termInfos;
+    }
+
+    /**
+     * Reads only the parts of each term row that can hold the doc: its TI
+     * column and the blocks starting at or before it, newest first. Blocks
+     * are cut in doc order, so the one holding the doc is among the first
+     * few of these.
+     */
+    private static Map<ByteBuffer, LucandraTermBlock[]> readDocBlocks(List<ByteBuffer> termKeys, int docI)
+            throws IOException
+    {
+        ByteBuffer docName = ByteBuffer.wrap(CassandraUtils.writeVInt(docI));
+
+        // sorts after every block name starting at this doc
+        ByteBuffer blockStart = ByteBuffer.allocate(12);
+        blockStart.putInt(docI).putLong(Long.MAX_VALUE);
+        blockStart.flip();
+
+        ColumnParent docParent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+        ColumnParent blockParent = new ColumnParent(CassandraUtils.termBlockColumnFamily);
+
+        List<ReadCommand> docReads = new ArrayList<ReadCommand>(termKeys.size());
+        List<ReadCommand> blockReads = new ArrayList<ReadCommand>(termKeys.size());
+
+        for (ByteBuffer key : termKeys)
+        {
+            docReads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, docParent, Arrays.asList(docName)));
+            blockReads.add(new SliceFromReadCommand(CassandraUtils.keySpace, key, blockParent, blockStart,
+                    ByteBufferUtil.EMPTY_BYTE_BUFFER, true, blockScan));
+        }
+
+        Map<ByteBuffer, Collection<IColumn>> docs = byKey(CassandraUtils.robustRead(CassandraUtils.consistency,
+                docReads.toArray(new ReadCommand[docReads.size()])));
+        Map<ByteBuffer, Collection<IColumn>> blocks = byKey(CassandraUtils.robustRead(CassandraUtils.consistency,
+                blockReads.toArray(new ReadCommand[blockReads.size()])));
+
+        Map<ByteBuffer, LucandraTermBlock[]> termBlocks = new HashMap<ByteBuffer, LucandraTermBlock[]>(termKeys.size());
+
+        for (ByteBuffer key : termKeys)
+            termBlocks.put(key, TermCache.convertTermBlocks(docs.get(key), blocks.get(key)));
+
+        return termBlocks;
+    }
+
+    private static Map<ByteBuffer, Collection<IColumn>> byKey(List<Row> rows)
+    {
+        Map<ByteBuffer, Collection<IColumn>> columns = new HashMap<ByteBuffer, Collection<IColumn>>(rows.size());
+
+        for (Row row : rows)
+        {
+            if (row.cf != null)
+                columns.put(row.key.key, row.cf.getSortedColumns());
+        }
+
+        return columns;
+    }
+
     public String getField()
     {
         return field;
@@ -28,17 +28,26 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Random;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import lucandra.CassandraUtils;
+import lucandra.DeletedDocs;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.db.DeletedColumn;
 import org.apache.cassandra.db.ExpiringColumn;
 import org.apache.cassandra.db.IColumn;
@@ -74,17 +83,32 @@ public class CassandraIndexManager
     private final int offsetSlots = (maxDocsPerShard / reserveSlabSize);
     public final int expirationTime = 120; // seconds
 
-    private final Map<String, AllNodeRsvps> indexReserves = new HashMap<String, AllNodeRsvps>();
-    private final Map<String, ShardInfo> indexShards = new HashMap<String, ShardInfo>();
-    private final Map<String, ShardInfo> indexUsed = new HashMap<String, ShardInfo>();
+    // ids are handed out from the active reserves without locking, the
+    // next reserves are prefetched once fewer than lowWatermark ids are left
+    private final ConcurrentMap<String, AllNodeRsvps> indexReserves = new ConcurrentHashMap<String, AllNodeRsvps>();
+    private final ConcurrentMap<String, AllNodeRsvps> indexPrefetched = new ConcurrentHashMap<String, AllNodeRsvps>();
+    private final ConcurrentMap<String, ShardInfo> indexShards = new ConcurrentHashMap<String, ShardInfo>();
+    private final ConcurrentMap<String, ShardInfo> indexUsed = new ConcurrentHashMap<String, ShardInfo>();
+    private final ConcurrentMap<String, FreeIds> indexFree = new ConcurrentHashMap<String, FreeIds>();
+
+    public static final int lowWatermark = Integer.valueOf(CassandraUtils.properties.getProperty(
+            "solandra.index.id.reserve.low.watermark", String.valueOf(reserveSlabSize / 4)));
+
+    // reservations and free id checks run here, off the indexing threads
+    private final ExecutorService reserveExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory(
+            "SolandraIdReserve"));
+    private final Set<String> prefetching = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // how often an index without free ids is checked for new ones
+    private static final int freeIdsCheckInterval = 10000; // ms
 
     private static final Logger logger = Logger.getLogger(CassandraIndexManager.class);
 
     private class ShardInfo
     {
         public final String indexName;
-        private long ttl;
-        public final NavigableMap<Integer, NodeInfo> shards = new TreeMap<Integer, NodeInfo>();
+        private volatile long ttl;
+        public final NavigableMap<Integer, NodeInfo> shards = new ConcurrentSkipListMap<Integer, NodeInfo>();
 
         public ShardInfo(String indexName)
         {
@@ -106,7 +130,7 @@ public class CassandraIndexManager
     private class NodeInfo
     {
         public Integer shard;
-        public Map<String, AtomicInteger> nodes = new HashMap<String, AtomicInteger>();
+        public Map<String, AtomicInteger> nodes = new ConcurrentHashMap<String, AtomicInteger>();
 
         public NodeInfo(Integer shard)
         {
@@ -158,7 +182,7 @@ public class CassandraIndexManager
     private class AllNodeRsvps
     {
         public final AtomicLong incrementor = new AtomicLong(0);
-        public final List<RsvpInfo> rsvpList = new ArrayList<RsvpInfo>();
+        public final List<RsvpInfo> rsvpList = new CopyOnWriteArrayList<RsvpInfo>();
 
         public Long getNextId()
         {
@@ -205,6 +229,40 @@ public class CassandraIndexManager
 
             return null;
         }
+
+        // ids left in the live reserves of this node
+        public long remaining()
+        {
+            String myToken = getToken();
+            long now = System.currentTimeMillis();
+            long remaining = 0;
+
+            for (RsvpInfo info : rsvpList)
+            {
+                if (info != null && info.ttl >= now && info.token.equals(myToken))
+                    remaining += Math.max(0, info.endId - info.currentId.get());
+            }
+
+            return remaining;
+        }
+
+        // the slabs are taken for good, only the local lease runs out
+        public void renew(long ttl)
+        {
+            for (RsvpInfo info : rsvpList)
+            {
+                if (info != null)
+                    info.ttl = ttl;
+            }
+        }
+    }
+
+    // ids freed by deletes on this node, already taken off the free lists
+    // and ready to be handed out again
+    private class FreeIds
+    {
+        public final ConcurrentLinkedQueue<Long> ids = new ConcurrentLinkedQueue<Long>();
+        public final AtomicLong lastCheck = new AtomicLong(0);
     }
 
     private class RsvpInfo
@@ -213,7 +271,7 @@ public class CassandraIndexManager
         public Integer shard;
         public AtomicInteger currentId;
         public final int endId;
-        public final long ttl;
+        public volatile long ttl;
 
         public RsvpInfo(int startId, int endId, int shard, String token, final long ttl)
         {
@@ -302,25 +360,35 @@ public class CassandraIndexManager
         return System.currentTimeMillis() + (expirationTime * 1000) + r.nextInt(5000);
     }
 
-    private synchronized ShardInfo getShardInfo(String indexName, boolean force) throws IOException
+    private ShardInfo getShardInfo(String indexName, boolean force) throws IOException
     {
-
         ShardInfo shards = indexShards.get(indexName);
-        ShardInfo currentShards = shards;
 
-        if (shards != null && !force)
+        if (shards != null && !force && shards.ttl() > System.currentTimeMillis())
+            return shards;
+
+        return loadShardInfo(indexName, force);
+    }
+
+    // locks per index, the same lock reservations hold
+    private ShardInfo loadShardInfo(String indexName, boolean force) throws IOException
+    {
+        synchronized (indexName.intern())
         {
-            if (shards.ttl > System.currentTimeMillis())
-            {
-                return shards;
-            } else
+            ShardInfo shards = indexShards.get(indexName);
+            ShardInfo currentShards = shards;
+
+            if (shards != null && !force)
             {
-                logger.info("ShardInfo for " + indexName + " has expired");
+                if (shards.ttl > System.currentTimeMillis())
+                {
+                    return shards;
+                } else
+                {
+                    logger.info("ShardInfo for " + indexName + " has expired");
+                }
             }
-        }
 
-        synchronized (indexName)
-        {
 
             ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes,
                     "shards".getBytes("UTF-8"));
@@ -433,10 +501,213 @@ public class CassandraIndexManager
         }
     }
 
-    // TODO
-    public void deleteId(String indexName, long id)
+    /**
+     * Frees the id of a deleted doc so it can be handed out again. The id
+     * goes on the free list of its shard under this node's token, so only
+     * this node reuses it.
+     */
+    public void deleteId(String indexName, long id) throws IOException
+    {
+        int shard = getShardFromDocId(id);
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, freeIdsKey(indexName, shard));
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBuffer.wrap(getToken().getBytes("UTF-8")),
+                ByteBufferUtil.bytes(String.valueOf(getShardedDocId(id)))), ByteBufferUtil.EMPTY_BYTE_BUFFER, System
+                .currentTimeMillis());
+
+        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+    }
+
+    /**
+     * Frees the ids of purged docs of a shard. Ids still linked to a key are
+     * unlinked and put on the free list, ids freed by a delete by id were
+     * unlinked then and are skipped, so no id goes on the list twice.
+     */
+    public void releaseIds(String indexName, int shard, Collection<Integer> shardedIds) throws IOException
     {
+        if (shardedIds.isEmpty())
+            return;
+
+        ByteBuffer idKey = CassandraUtils.hashKeyBytes((indexName + "~" + shard).getBytes("UTF-8"),
+                CassandraUtils.delimeterBytes, "ids".getBytes("UTF-8"));
+
+        List<ByteBuffer> idCols = new ArrayList<ByteBuffer>(shardedIds.size());
+        for (Integer id : shardedIds)
+            idCols.add(ByteBufferUtil.bytes(String.valueOf(id)));
+
+        List<Row> rows = CassandraUtils.robustRead(idKey, new QueryPath(CassandraUtils.schemaInfoColumnFamily), idCols,
+                ConsistencyLevel.QUORUM);
+
+        if (rows.isEmpty() || rows.get(0).cf == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        ByteBuffer tokenCol = ByteBuffer.wrap(getToken().getBytes("UTF-8"));
+
+        List<RowMutation> rms = new ArrayList<RowMutation>();
+        RowMutation ids = new RowMutation(CassandraUtils.keySpace, idKey);
+        RowMutation free = new RowMutation(CassandraUtils.keySpace, freeIdsKey(indexName, shard));
+        int released = 0;
+
+        for (IColumn col : rows.get(0).cf.getSortedColumns())
+        {
+            if (col.isMarkedForDelete() || col.getSubColumns() == null || col.getSubColumns().isEmpty())
+                continue;
+
+            // {"id" : {"token" : key}}
+            for (IColumn sub : col.getSubColumns())
+            {
+                if (sub.isMarkedForDelete())
+                    continue;
+
+                String key = ByteBufferUtil.string(sub.value());
+                ByteBuffer keyKey = CassandraUtils.hashKeyBytes((indexName + "~" + key).getBytes("UTF-8"),
+                        CassandraUtils.delimeterBytes, "keys".getBytes("UTF-8"));
+
+                RowMutation rm = new RowMutation(CassandraUtils.keySpace, keyKey);
+                rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBuffer.wrap(key.getBytes("UTF-8"))),
+                        now);
+                rms.add(rm);
+            }
+
+            ids.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, col.name()), now);
+            free.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, tokenCol, col.name()),
+                    ByteBufferUtil.EMPTY_BYTE_BUFFER, now);
+            released++;
+        }
+
+        if (released == 0)
+            return;
+
+        rms.add(ids);
+        rms.add(free);
+
+        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rms.toArray(new RowMutation[rms.size()]));
+
+        if (logger.isDebugEnabled())
+            logger.debug("Released " + released + " ids of " + indexName + "~" + shard);
+    }
+
+    private ByteBuffer freeIdsKey(String indexName, int shard) throws IOException
+    {
+        return CassandraUtils.hashKeyBytes((indexName + "~" + shard).getBytes("UTF-8"), CassandraUtils.delimeterBytes,
+                "free".getBytes("UTF-8"));
+    }
+
+    /**
+     * Hands out an id freed on this node, lower shards first. Returns null
+     * when there is none, the free lists are then read again in the
+     * background at most every freeIdsCheckInterval.
+     */
+    private Long nextFreeId(final String indexName, final String myToken)
+    {
+        FreeIds free = indexFree.get(indexName);
+        if (free == null)
+        {
+            free = new FreeIds();
+            FreeIds liveFree = indexFree.putIfAbsent(indexName, free);
+
+            if (liveFree != null)
+                free = liveFree;
+        }
+
+        Long id = free.ids.poll();
+
+        if (id != null)
+            return id;
+
+        long lastCheck = free.lastCheck.get();
+        long now = System.currentTimeMillis();
+
+        if (lastCheck + freeIdsCheckInterval <= now && free.lastCheck.compareAndSet(lastCheck, now))
+        {
+            final FreeIds toFill = free;
+
+            reserveExecutor.submit(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        loadFreeIds(indexName, myToken, toFill);
+                    }
+                    catch (Throwable t)
+                    {
+                        logger.warn("Unable to read free ids for " + indexName, t);
+                    }
+                }
+            });
+        }
+
+        return null;
+    }
+
+    /**
+     * Claims the free ids of this node: they are taken off the free lists
+     * before they are queued, so a later read can't hand them out twice
+     * and the indexing threads have nothing to write for them.
+     */
+    private void loadFreeIds(String indexName, String myToken, FreeIds free) throws IOException
+    {
+        // claimed ids are still waiting
+        if (!free.ids.isEmpty())
+        {
+            free.lastCheck.set(0);
+            return;
+        }
+
+        ByteBuffer tokenCol = ByteBuffer.wrap(myToken.getBytes("UTF-8"));
+        int found = 0;
+
+        for (Integer shard : getShardInfo(indexName, false).shards.keySet())
+        {
+            ByteBuffer freeKey = freeIdsKey(indexName, shard);
+
+            List<Row> rows = CassandraUtils.robustRead(freeKey, new QueryPath(CassandraUtils.schemaInfoColumnFamily),
+                    Arrays.asList(tokenCol), ConsistencyLevel.QUORUM);
+
+            if (rows.isEmpty() || rows.get(0).cf == null)
+                continue;
+
+            IColumn supercol = rows.get(0).cf.getColumn(tokenCol);
+            if (supercol == null || supercol.getSubColumns() == null)
+                continue;
+
+            List<Integer> ids = new ArrayList<Integer>();
+            for (IColumn c : supercol.getSubColumns())
+            {
+                if (!c.isMarkedForDelete())
+                    ids.add(Integer.valueOf(ByteBufferUtil.string(c.name())));
+            }
+
+            if (ids.isEmpty())
+                continue;
+
+            // deferred deletes keep the postings until purged
+            List<Integer> unmarked = DeletedDocs.unmarked(indexName + "~" + shard, ids);
+
+            if (unmarked.isEmpty())
+                continue;
+
+            long now = System.currentTimeMillis();
+
+            RowMutation rm = new RowMutation(CassandraUtils.keySpace, freeKey);
+            for (Integer id : unmarked)
+                rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, tokenCol, ByteBufferUtil.bytes(String
+                        .valueOf(id))), now);
+
+            CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+
+            for (Integer id : unmarked)
+                free.ids.add((long) (maxDocsPerShard * shard) + id);
 
+            found += unmarked.size();
+
+            if (found >= reserveSlabSize)
+                break;
+        }
+
+        if (found > 0)
+            logger.info("Claimed " + found + " free ids for " + indexName + "(" + myToken + ")");
     }
 
     public long getMaxId(String indexName) throws IOException
@@ -538,74 +809,165 @@ public class CassandraIndexManager
         return StorageService.instance.getTokenMetadata().getToken(FBUtilities.getLocalAddress()).toString();
     }
 
+    /**
+     * Picks the id for a new doc and fills rowMutations with the writes
+     * that take it. The last one is null for a reused id.
+     */
     public long getNextId(String indexName, String key, RowMutation[] rowMutations) throws IOException
     {
         if (rowMutations.length != 3)
             throw new IllegalArgumentException("rowMutations must be length 3");
 
         String myToken = getToken();
-        ShardInfo shards = null;
-        NodeInfo nodes[] = null;
-        Long id = null;
 
-        synchronized (indexName.intern())
+        // ids freed by deletes go before new ones
+        Long id = nextFreeId(indexName, myToken);
+        boolean reused = id != null;
+
+        if (id == null)
+            id = nextActiveId(indexName);
+
+        // the reserves ran out before a prefetch could replace them
+        if (id == null)
+            id = reserveNextId(indexName, myToken);
+
+        int shard = getShardFromDocId(id);
+        int shardedId = getShardedDocId(id);
+
+        ByteBuffer idCol = ByteBufferUtil.bytes(String.valueOf(shardedId));
+        ByteBuffer keyCol = ByteBuffer.wrap(key.getBytes("UTF-8"));
+
+        // Permanently mark the id as taken
+        ByteBuffer idKey = CassandraUtils.hashKeyBytes((indexName + "~" + shard).getBytes("UTF-8"),
+                CassandraUtils.delimeterBytes, "ids".getBytes("UTF-8"));
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, idKey);
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol, ByteBuffer.wrap(myToken
+                .getBytes("UTF-8"))), keyCol, System.currentTimeMillis());
+
+        // Permanently link the key to the id
+        ByteBuffer keyKey = CassandraUtils.hashKeyBytes((indexName + "~" + key).getBytes("UTF-8"),
+                CassandraUtils.delimeterBytes, "keys".getBytes("UTF-8"));
+
+        ByteBuffer idVal = ByteBuffer.wrap(id.toString().getBytes("UTF-8"));
+
+        RowMutation rm2 = new RowMutation(CassandraUtils.keySpace, keyKey);
+        rm2.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol, idVal),
+                CassandraUtils.finalTokenBytes, System.currentTimeMillis());
+
+        // Update last offset info for this shard, a reused id is behind it
+        // and leaves nothing to write
+        RowMutation rm3 = reused ? null : updateNodeOffset(indexName, myToken, shard, shardedId);
+
+        rowMutations[0] = rm;
+        rowMutations[1] = rm2;
+        rowMutations[2] = rm3;
+
+        return id;
+    }
+
+    /**
+     * Hands out an id from the active reserves, switching to the prefetched
+     * ones when they run out. Returns null if neither has any left.
+     */
+    private Long nextActiveId(String indexName)
+    {
+        while (true)
         {
+            AllNodeRsvps active = indexReserves.get(indexName);
 
-            int attempts = 0;
-            while (attempts < CassandraUtils.retryAttempts)
-            {
-                shards = getShardInfo(indexName, false);
-                nodes = pickAShard(shards);
+            if (active == null)
+                return null;
 
-                id = nextReservedId(indexName, shards, nodes, myToken);
+            Long id = active.getNextId();
 
-                if (id == null)
-                {
-                    attempts++;
-                    // logger.info("Failed to get an ID, trying again");
-                    continue;
-                }
-                break;
+            if (id != null)
+            {
+                if (active.remaining() < lowWatermark)
+                    prefetch(indexName);
+
+                return id;
             }
 
-            if (id == null)
-                throw new IllegalStateException(myToken + ": Unable to reserve an id");
+            AllNodeRsvps next = indexPrefetched.remove(indexName);
 
-            int shard = getShardFromDocId(id);
-            int shardedId = getShardedDocId(id);
+            if (next == null)
+                return null;
 
-            ByteBuffer idCol = ByteBufferUtil.bytes(String.valueOf(shardedId));
-            ByteBuffer keyCol = ByteBuffer.wrap(key.getBytes("UTF-8"));
+            // a slow index may take longer than the ttl to get here
+            next.renew(getNewTTL());
 
-            // Permanently mark the id as taken
-            ByteBuffer idKey = CassandraUtils.hashKeyBytes((indexName + "~" + shard).getBytes("UTF-8"),
-                    CassandraUtils.delimeterBytes, "ids".getBytes("UTF-8"));
+            // another thread may have switched already
+            if (!indexReserves.replace(indexName, active, next))
+                indexPrefetched.putIfAbsent(indexName, next);
+        }
+    }
 
-            RowMutation rm = new RowMutation(CassandraUtils.keySpace, idKey);
-            rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol, ByteBuffer.wrap(myToken
-                    .getBytes("UTF-8"))), keyCol, System.currentTimeMillis());
+    // reserves new slabs on the calling thread, only when nothing was
+    // prefetched in time
+    private Long reserveNextId(String indexName, String myToken) throws IOException
+    {
+        synchronized (indexName.intern())
+        {
+            long start = System.currentTimeMillis();
 
-            // Permanently link the key to the id
-            ByteBuffer keyKey = CassandraUtils.hashKeyBytes((indexName + "~" + key).getBytes("UTF-8"),
-                    CassandraUtils.delimeterBytes, "keys".getBytes("UTF-8"));
+            for (int attempts = 0;; attempts++)
+            {
+                // reserved by another thread while this one waited
+                Long id = nextActiveId(indexName);
 
-            ByteBuffer idVal = ByteBuffer.wrap(id.toString().getBytes("UTF-8"));
+                if (id != null)
+                    return id;
 
-            RowMutation rm2 = new RowMutation(CassandraUtils.keySpace, keyKey);
-            rm2.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol, idVal),
-                    CassandraUtils.finalTokenBytes, System.currentTimeMillis());
+                // other nodes took every slab tried so far
+                if (attempts > 0 && !CassandraUtils.backoff("reserve ids", attempts, start, indexName))
+                    throw new IllegalStateException(myToken + ": Unable to reserve an id");
 
-            // Update last offset info for this shard
-            RowMutation rm3 = updateNodeOffset(indexName, myToken, shard, shardedId);
+                logger.info("need more ids for " + indexName + " " + myToken);
 
-            rowMutations[0] = rm;
-            rowMutations[1] = rm2;
-            rowMutations[2] = rm3;
+                ShardInfo shards = getShardInfo(indexName, false);
+                NodeInfo[] nodes = pickAShard(shards);
 
-            return id;
+                indexReserves.put(indexName, reserveSlabs(indexName, shards, nodes, myToken));
+            }
         }
     }
 
+    // reserves the next slabs in the background while ids are left
+    private void prefetch(final String indexName)
+    {
+        if (indexPrefetched.containsKey(indexName) || !prefetching.add(indexName))
+            return;
+
+        reserveExecutor.submit(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    synchronized (indexName.intern())
+                    {
+                        if (indexPrefetched.containsKey(indexName))
+                            return;
+
+                        ShardInfo shards = getShardInfo(indexName, false);
+                        AllNodeRsvps next = reserveSlabs(indexName, shards, pickAShard(shards), getToken());
+
+                        if (!next.rsvpList.isEmpty())
+                            indexPrefetched.put(indexName, next);
+                    }
+                }
+                catch (Throwable t)
+                {
+                    logger.warn("Unable to prefetch ids for " + indexName, t);
+                }
+                finally
+                {
+                    prefetching.remove(indexName);
+                }
+            }
+        });
+    }
+
     public long getNextId(String indexName, String key) throws IOException
     {
 
@@ -616,6 +978,9 @@ public class CassandraIndexManager
         // TODO: Delayed Insert!
         // Checks for more recent updates and disregards the older ones
 
+        if (rms[2] == null)
+            rms = new RowMutation[] { rms[0], rms[1] };
+
         CassandraUtils.robustInsert(CassandraUtils.consistency, rms);
         return val;
     }
@@ -636,7 +1001,11 @@ public class CassandraIndexManager
         CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rms.toArray(new RowMutation[] {}));
     }
 
-    private Long nextReservedId(String indexName, ShardInfo shards, NodeInfo[] nodes, String myToken)
+    /**
+     * Reserves a slab of ids in each of the picked shards. The caller holds
+     * the index lock.
+     */
+    private AllNodeRsvps reserveSlabs(String indexName, ShardInfo shards, NodeInfo[] nodes, String myToken)
             throws IOException
     {
 
@@ -646,19 +1015,6 @@ public class CassandraIndexManager
             if (logger.isDebugEnabled())
                 logger.debug("in reserveIds for index " + indexName);
 
-            AllNodeRsvps currentRsvpd = indexReserves.get(indexName);
-
-            if (currentRsvpd != null)
-            {
-                Long nextId = currentRsvpd.getNextId();
-
-                if (nextId != null)                
-                    return nextId;
-
-                //if (logger.isDebugEnabled())
-                    logger.info("need more ids for " +indexName+" "+myToken);
-            }
-
             AllNodeRsvps allNewRsvps = new AllNodeRsvps();
             ShardInfo usedShardInfo = indexUsed.get(indexName);
             if (usedShardInfo == null)
@@ -747,42 +1103,30 @@ public class CassandraIndexManager
                     {
                     }
 
-                    // Read the columns back
+                    // Read the columns back, the read retries failures
+                    // itself, a missing column waits as long as they would
                     IColumn supercol = null;
-                    int attempts = 0;
-                    while (supercol == null && attempts < CassandraUtils.retryAttempts)
-                    {
-                        try
-                        {
-                            List<Row> rows = CassandraUtils.robustRead(key, new QueryPath(
-                                    CassandraUtils.schemaInfoColumnFamily), Arrays.asList(id), ConsistencyLevel.QUORUM);
-
-                            if (rows == null || rows.size() == 0)
-                            {
-                                continue;
-                            }
-
-                            if (rows.size() == 1)
-                            {
-                                Row row = rows.get(0);
+                    long readStart = System.currentTimeMillis();
 
-                                if (row.cf == null || row.cf.isMarkedForDelete())
-                                {
-                                    continue;
-                                }
+                    for (int attempts = 1;; attempts++)
+                    {
+                        List<Row> rows = CassandraUtils.robustRead(key, new QueryPath(
+                                CassandraUtils.schemaInfoColumnFamily), Arrays.asList(id), ConsistencyLevel.QUORUM);
 
-                                supercol = rows.get(0).cf.getColumn(id);
-                            }
-                        } catch (IOException e)
+                        if (rows != null && rows.size() == 1)
                         {
-                            // let's try again...
+                            Row row = rows.get(0);
+
+                            if (row.cf != null && !row.cf.isMarkedForDelete())
+                                supercol = row.cf.getColumn(id);
                         }
 
-                        attempts++;
-                    }
+                        if (supercol != null)
+                            break;
 
-                    if (supercol == null)
-                        throw new IllegalStateException("just wrote " + offset + ", but didn't read it");
+                        if (!CassandraUtils.backoff("read back reserve", attempts, readStart, offset))
+                            throw new IllegalStateException("just wrote " + offset + ", but didn't read it");
+                    }
 
                     long minTtl = Long.MAX_VALUE;
                     ByteBuffer winningToken = null;
@@ -870,13 +1214,10 @@ public class CassandraIndexManager
                 }
             }
 
-            // store new reserves
-            indexReserves.put(indexName, allNewRsvps);
-
             if (logger.isTraceEnabled())
                 logger.trace("Reserved " + allNewRsvps.rsvpList.size() + " shards for " + myToken);
 
-            return allNewRsvps.getNextId();
+            return allNewRsvps;
         }
     }
 
@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import lucandra.CassandraUtils;
+import lucandra.IndexChanges;
 import lucandra.IndexReader;
 import lucandra.cluster.CassandraIndexManager;
 import lucandra.cluster.IndexManagerService;
@@ -35,10 +36,14 @@ import lucandra.cluster.IndexManagerService;
 import com.google.common.collect.MapMaker;
 
 import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.SliceFromReadCommand;
 import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.FBUtilities;
 import org.apache.log4j.Logger;
 import org.apache.solr.common.params.ShardParams;
@@ -51,14 +56,18 @@ public final class SolandraComponent
     private static final Logger logger = Logger.getLogger(SolandraComponent.class);
     public final static Map<String,Long> cacheCheck = new MapMaker().makeMap();
 
-    public static boolean flushCache(String indexName) throws IOException
+    public static void flushCache(String indexName, IndexReader reader) throws IOException
     {   
         if(CassandraUtils.cacheInvalidationInterval == 0)
-            return true;
+        {
+            reader.reopen();
+            return;
+        }
         
         Long lastCheck = SolandraComponent.cacheCheck.get(indexName);
+        long now = System.currentTimeMillis();
     
-        if(lastCheck == null || lastCheck <= (System.currentTimeMillis() - CassandraUtils.cacheInvalidationInterval))
+        if(lastCheck == null || lastCheck <= (now - CassandraUtils.cacheInvalidationInterval))
         {
         
             ByteBuffer keyKey = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, "cache".getBytes("UTF-8"));
@@ -66,21 +75,86 @@ public final class SolandraComponent
             List<Row> rows = CassandraUtils.robustRead(keyKey, new QueryPath(CassandraUtils.schemaInfoColumnFamily, CassandraUtils.cachedColBytes), Arrays
                     .asList(CassandraUtils.cachedColBytes), ConsistencyLevel.QUORUM);
             
+            // taken before the read so writes racing it are seen next time
+            SolandraComponent.cacheCheck.put(indexName, now);
             
-            SolandraComponent.cacheCheck.put(indexName, System.currentTimeMillis());
-            
-            
-            if(lastCheck == null || rows == null || rows.isEmpty() || rows.get(0).cf == null ||             
-                    rows.get(0).cf.getColumn(CassandraUtils.cachedColBytes).getSubColumn(CassandraUtils.cachedColBytes).timestamp() >= lastCheck)
+            if(lastCheck == null || rows == null || rows.isEmpty() || rows.get(0).cf == null)
             {
                 if(logger.isDebugEnabled())
                     logger.debug("Flushed cache: "+indexName);                 
                     
-                return true;
+                reader.reopen();
+                return;
+            }
+            
+            long version = rows.get(0).cf.getColumn(CassandraUtils.cachedColBytes).getSubColumn(CassandraUtils.cachedColBytes).timestamp();
+            
+            if(version < lastCheck)
+                return;
+            
+            IndexChanges changes = readChanges(keyKey, lastCheck, version);
+            
+            if(changes == null)
+            {
+                if(logger.isDebugEnabled())
+                    logger.debug("Flushed cache: "+indexName);
+                
+                reader.reopen();
+            }
+            else
+            {
+                if(logger.isDebugEnabled())
+                    logger.debug("Invalidated "+changes.getDocIds().size()+" docs in cache: "+indexName);
+                
+                reader.invalidate(changes);
             }
         }
-              
-        return false;
+    }
+    
+    // Collects the changes logged since the last check, or null if the log
+    // doesn't cover them
+    private static IndexChanges readChanges(ByteBuffer keyKey, long lastCheck, long version) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        
+        // entries this old may have expired
+        if(lastCheck < now - CassandraUtils.cacheChangeLogTTL * 1000L + CassandraUtils.cacheInvalidationInterval)
+            return null;
+        
+        // allow for clock drift between writers
+        long start = lastCheck - CassandraUtils.cacheInvalidationInterval;
+        
+        ColumnParent changesParent = new ColumnParent(CassandraUtils.schemaInfoColumnFamily)
+                .setSuper_column(CassandraUtils.cacheChangesColBytes);
+        
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.QUORUM, new SliceFromReadCommand(CassandraUtils.keySpace,
+                keyKey, changesParent, ByteBufferUtil.bytes(start), ByteBufferUtil.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE));
+        
+        if(rows == null || rows.isEmpty() || rows.get(0).cf == null)
+            return null;
+        
+        IColumn changeLog = rows.get(0).cf.getColumn(CassandraUtils.cacheChangesColBytes);
+        
+        if(changeLog == null)
+            return null;
+        
+        IndexChanges changes = new IndexChanges();
+        long lastVersion = Long.MIN_VALUE;
+        
+        for(IColumn entry : changeLog.getSubColumns())
+        {
+            if(!entry.isLive())
+                continue;
+            
+            changes.addAll(IndexChanges.deserialize(entry.value()));
+            lastVersion = Math.max(lastVersion, entry.name().getLong(entry.name().position()));
+        }
+        
+        // the latest flush must be in the log
+        if(!changes.isComplete() || lastVersion < version)
+            return null;
+        
+        return changes;
     }
     
     public static boolean prepare(ResponseBuilder rb) throws IOException
@@ -111,8 +185,7 @@ public final class SolandraComponent
 
             reader.setIndexName(indexName);
             
-            if(flushCache(indexName))
-                reader.reopen();
+            flushCache(indexName, reader);
             
             return false;
         }
@@ -144,10 +217,7 @@ public final class SolandraComponent
                 String subIndex = indexName+"~0";
                 reader.setIndexName(subIndex);
                 
-                if(flushCache(subIndex))
-                {
-                    reader.reopen();                
-                }
+                flushCache(subIndex, reader);
                 return false;
             }
             
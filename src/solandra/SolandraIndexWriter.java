@@ -36,6 +36,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import lucandra.CassandraUtils;
+import lucandra.IndexChanges;
 import lucandra.Pair;
 import lucandra.cluster.CassandraIndexManager;
 import lucandra.cluster.IndexManagerService;
@@ -85,6 +86,20 @@ public class SolandraIndexWriter extends UpdateHandler
     private final static lucandra.IndexWriter                 writer                          = new lucandra.IndexWriter();
     private final static Logger                               logger                          = Logger.getLogger(SolandraIndexWriter.class);
 
+    // docs deleted by query give their ids back once purged
+    static
+    {
+        writer.setPurgeListener(new lucandra.IndexWriter.PurgeListener() {
+            public void purged(String subIndex, List<Integer> docNumbers) throws IOException
+            {
+                int split = subIndex.lastIndexOf('~');
+
+                IndexManagerService.instance.releaseIds(subIndex.substring(0, split), Integer.valueOf(subIndex
+                        .substring(split + 1)), docNumbers);
+            }
+        });
+    }
+
     // stats
     AtomicLong                                                addCommands                     = new AtomicLong();
     AtomicLong                                                addCommandsCumulative           = new AtomicLong();
@@ -101,6 +116,8 @@ public class SolandraIndexWriter extends UpdateHandler
     AtomicLong                                                numErrors                       = new AtomicLong();
     AtomicLong                                                numErrorsCumulative             = new AtomicLong();
 
+    private static final AtomicInteger                        changeLogSequence               = new AtomicInteger();
+
     private static final ConcurrentMap<String, AtomicInteger> bufferedWrites                  = new MapMaker()
                                                                                                       .makeMap();
     private static final int                                  writeTreshold                   = Integer
@@ -137,14 +154,16 @@ public class SolandraIndexWriter extends UpdateHandler
                                 try
                                 {
                                     flush(core);
+
+                                    lastCoreFlush.put(core, System.currentTimeMillis());
+                                    if (logger.isDebugEnabled())
+                                        logger.debug("Flushed cache: " + core);
                                 }
                                 catch (IOException e)
                                 {
-                                    throw new RuntimeException(e);
+                                    // flushed again with the next write
+                                    logger.error("Unable to flush cache: " + core, e);
                                 }
-                                lastCoreFlush.put(core, System.currentTimeMillis());
-                                if (logger.isDebugEnabled())
-                                    logger.debug("Flushed cache: " + core);
                             }
                         }
                         else
@@ -159,7 +178,7 @@ public class SolandraIndexWriter extends UpdateHandler
                                 {
                                     if (entry.getValue().intValue() > 0)
                                     {
-                                        writer.commit(entry.getKey(), false);
+                                        writer.commitAsync(entry.getKey());
                                         entry.getValue().set(0);
                                     }
                                 }
@@ -192,17 +211,37 @@ public class SolandraIndexWriter extends UpdateHandler
 
     public void flush(String core) throws IOException
     {
-        // Make sure all writes are in for this core
-        writer.commit(core, true);
+        // Taken first so anything added during the commit is in the next flush
+        IndexChanges changes = writer.takeChanges(core);
+        boolean flushed = false;
 
-        ByteBuffer cacheKey = CassandraUtils.hashKeyBytes((core).getBytes("UTF-8"), CassandraUtils.delimeterBytes,
-                "cache".getBytes("UTF-8"));
+        try
+        {
+            // Make sure all writes are in for this core, throws if they aren't
+            writer.commit(core, true);
 
-        RowMutation rm = new RowMutation(CassandraUtils.keySpace, cacheKey);
-        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, CassandraUtils.cachedColBytes,
-                CassandraUtils.cachedColBytes), ByteBufferUtil.EMPTY_BYTE_BUFFER, System.currentTimeMillis());
+            ByteBuffer cacheKey = CassandraUtils.hashKeyBytes((core).getBytes("UTF-8"),
+                    CassandraUtils.delimeterBytes, "cache".getBytes("UTF-8"));
 
-        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+            long version = System.currentTimeMillis();
+
+            RowMutation rm = new RowMutation(CassandraUtils.keySpace, cacheKey);
+            rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, CassandraUtils.cachedColBytes,
+                    CassandraUtils.cachedColBytes), ByteBufferUtil.EMPTY_BYTE_BUFFER, version);
+
+            // what changed, so readers only drop those entries
+            rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, CassandraUtils.cacheChangesColBytes,
+                    changeLogName(version)), changes.serialize(), version, CassandraUtils.cacheChangeLogTTL);
+
+            CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+            flushed = true;
+        }
+        finally
+        {
+            // readers weren't told, so these go out with the next flush
+            if (!flushed)
+                writer.restoreChanges(core, changes);
+        }
 
         // also directly notify the local readers
         SolandraComponent.cacheCheck.put(core, System.currentTimeMillis() - CassandraUtils.cacheInvalidationInterval
@@ -210,6 +249,19 @@ public class SolandraIndexWriter extends UpdateHandler
 
     }
 
+    // version first so readers can slice by time, then this node and a
+    // sequence so flushes in the same millisecond don't overwrite each other
+    private static ByteBuffer changeLogName(long version)
+    {
+        byte[] node = FBUtilities.getLocalAddress().getAddress();
+
+        ByteBuffer name = ByteBuffer.allocate(8 + node.length + 4);
+        name.putLong(version).put(node).putInt(changeLogSequence.incrementAndGet());
+        name.flip();
+
+        return name;
+    }
+
     public int addDoc(AddUpdateCommand cmd) throws IOException
     {
 
@@ -322,16 +374,41 @@ public class SolandraIndexWriter extends UpdateHandler
                 logger.debug("committing " + indexName + "~" + i);
             commit(indexName + "~" + i, true);
         }
+
+        if (cmd.optimize)
+            optimizeCommands.incrementAndGet();
+        else if (cmd.expungeDeletes)
+            expungeDeleteCommands.incrementAndGet();
+        else
+            return;
+
+        // one shard at a time, each rewrite is rate limited
+        for (int i = 0; i <= maxShard; i++)
+        {
+            String subIndex = indexName + "~" + i;
+
+            if (cmd.optimize)
+                writer.optimize(subIndex);
+            else
+                writer.expungeDeletes(subIndex);
+
+            commit(subIndex, true);
+        }
     }
 
     public void commit(String indexName, boolean blocked) throws IOException
     {
-        writer.commit(indexName, blocked);
-
         if (blocked)
+        {
+            writer.commit(indexName, true);
             flush(indexName);
+        }
         else
+        {
+            // readers are notified by the flush thread, which waits for it
+            writer.commitAsync(indexName);
             SolandraIndexWriter.flushQueue.add(indexName);
+        }
     }
 
     public void delete(DeleteUpdateCommand cmd) throws IOException
@@ -393,7 +470,6 @@ public class SolandraIndexWriter extends UpdateHandler
                     rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol), System.currentTimeMillis());
 
                     // Delete docId so it can be reused
-                    // TODO: update shard info with this docid
                     ByteBuffer idKey = CassandraUtils.hashKeyBytes(subIndex.getBytes("UTF-8"),
                             CassandraUtils.delimeterBytes, "ids".getBytes("UTF-8"));
                     RowMutation rm2 = new RowMutation(CassandraUtils.keySpace, idKey);
@@ -402,6 +478,11 @@ public class SolandraIndexWriter extends UpdateHandler
 
                     CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm, rm2);
 
+                    // the delete has to be written before the id is handed
+                    // out again, a failed commit throws and keeps the id
+                    writer.commit(subIndex, false);
+                    IndexManagerService.instance.deleteId(indexName, id);
+
                     // Notify readers
                     tryCommit(subIndex);
                 }
@@ -568,11 +649,27 @@ public class SolandraIndexWriter extends UpdateHandler
         lst.add("adds", addCommands.get());
         lst.add("deletesById", deleteByIdCommands.get());
         lst.add("deletesByQuery", deleteByQueryCommands.get());
+        lst.add("optimizes", optimizeCommands.get());
+        lst.add("expungeDeletes", expungeDeleteCommands.get());
         lst.add("errors", numErrors.get());
         lst.add("cumulative_adds", addCommandsCumulative.get());
         lst.add("cumulative_deletesById", deleteByIdCommandsCumulative.get());
         lst.add("cumulative_deletesByQuery", deleteByQueryCommandsCumulative.get());
         lst.add("cumulative_errors", numErrorsCumulative.get());
+        lst.add("mutation_coalesce_ratio", lucandra.IndexWriter.getCoalesceRatio());
+        lst.add("docs_deleted", lucandra.IndexWriter.getDocsDeleted());
+        lst.add("docs_deleted_per_second", lucandra.IndexWriter.getDeleteRate());
+        lst.add("docs_purged", lucandra.IndexWriter.getDocsPurged());
+        lst.add("optimize_bytes_reclaimed", lucandra.IndexOptimizer.getTotalBytesReclaimed());
+        lst.add("optimize_millis", lucandra.IndexOptimizer.getTotalMillis());
+        lst.add("updates_unchanged", lucandra.IndexWriter.getUpdatesUnchanged());
+        lst.add("updates_diffed", lucandra.IndexWriter.getUpdatesDiffed());
+        lst.add("cassandra_write_retries", CassandraUtils.writeStats.retries.get());
+        lst.add("cassandra_write_timeouts", CassandraUtils.writeStats.timeouts.get());
+        lst.add("cassandra_write_failures", CassandraUtils.writeStats.failures.get());
+        lst.add("cassandra_read_retries", CassandraUtils.readStats.retries.get());
+        lst.add("cassandra_read_timeouts", CassandraUtils.readStats.timeouts.get());
+        lst.add("cassandra_read_failures", CassandraUtils.readStats.failures.get());
         return lst;
     }
 
@@ -605,5 +702,8 @@ public class SolandraIndexWriter extends UpdateHandler
             commit(indexName, false);
             times.set(0);
         }
+
+        // wait here rather than let unwritten mutations pile up
+        writer.awaitCapacity(indexName);
     }
 }
@@ -25,24 +25,82 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
+import lucandra.LucandraTermRangeQuery;
+
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.log4j.Logger;
 import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermRangeQuery;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.highlight.SolrHighlighter;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrIndexReader;
 
 public class SolandraQueryComponent extends SearchComponent
 {
     private static final Logger logger = Logger.getLogger(SolandraComponent.class);
     
+    // a range over a lucandra reader stops reading terms at its upper end
+    private static class SolandraTermRangeQuery extends LucandraTermRangeQuery
+    {
+        private static final long serialVersionUID = 1L;
+
+        SolandraTermRangeQuery(TermRangeQuery range)
+        {
+            super(range);
+        }
+
+        @Override
+        protected lucandra.IndexReader unwrap(IndexReader reader)
+        {
+            if (reader instanceof SolrIndexReader)
+                reader = ((SolrIndexReader) reader).getWrappedReader();
+
+            return super.unwrap(reader);
+        }
+    }
+
     @Override
     public void prepare(ResponseBuilder rb) throws IOException
     {
         SolandraComponent.prepare(rb);      
+
+        if (rb.getQuery() != null)
+            rb.setQuery(wrapRanges(rb.getQuery()));
+
+        List<Query> filters = rb.getFilters();
+        if (filters != null)
+        {
+            for (int i = 0; i < filters.size(); i++)
+                filters.set(i, wrapRanges(filters.get(i)));
+        }
+    }
+
+    // the parsed queries may be shared, so boolean queries are copied
+    static Query wrapRanges(Query query)
+    {
+        if (query instanceof TermRangeQuery && !(query instanceof LucandraTermRangeQuery))
+            return new SolandraTermRangeQuery((TermRangeQuery) query);
+
+        if (!(query instanceof BooleanQuery))
+            return query;
+
+        BooleanQuery bq = (BooleanQuery) query;
+        BooleanQuery wrapped = new BooleanQuery(bq.isCoordDisabled());
+        wrapped.setBoost(bq.getBoost());
+        wrapped.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+
+        for (BooleanClause clause : bq.clauses())
+            wrapped.add(wrapRanges(clause.getQuery()), clause.getOccur());
+
+        return wrapped;
     }
     
     @Override
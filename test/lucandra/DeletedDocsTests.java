@@ -0,0 +1,87 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.cassandra.db.RowMutation;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DeletedDocsTests
+{
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException
+    {
+        CassandraUtils.startupServer();
+    }
+
+    private static void write(Map<ByteBuffer, RowMutation> mutations) throws IOException
+    {
+        CassandraUtils.robustInsert(CassandraUtils.consistency, mutations.values().toArray(new RowMutation[0]));
+    }
+
+    @Test
+    public void testReadInDocOrder() throws IOException
+    {
+        String indexName = "marks" + System.nanoTime();
+
+        Map<ByteBuffer, RowMutation> marks = new HashMap<ByteBuffer, RowMutation>();
+        for (int doc : new int[] { 300, 7, 70000, 256 })
+            DeletedDocs.mark(marks, indexName, doc);
+        write(marks);
+
+        assertEquals(4, DeletedDocs.read(indexName, Integer.MAX_VALUE).cardinality());
+        assertArrayEquals(new Object[] { 7, 256, 300 }, DeletedDocs.readMarks(indexName, 3).keySet().toArray());
+    }
+
+    // a mark queued before the read but written after it must survive the clear
+    @Test
+    public void testClearKeepsLateOlderMarks() throws Exception
+    {
+        String indexName = "latemarks" + System.nanoTime();
+
+        Map<ByteBuffer, RowMutation> late = new HashMap<ByteBuffer, RowMutation>();
+        DeletedDocs.mark(late, indexName, 1);
+
+        Thread.sleep(10);
+
+        Map<ByteBuffer, RowMutation> written = new HashMap<ByteBuffer, RowMutation>();
+        DeletedDocs.mark(written, indexName, 2);
+        write(written);
+
+        SortedMap<Integer, Long> read = DeletedDocs.readMarks(indexName, Integer.MAX_VALUE);
+        assertEquals(1, read.size());
+
+        write(late);
+
+        Map<ByteBuffer, RowMutation> clear = new HashMap<ByteBuffer, RowMutation>();
+        DeletedDocs.clear(clear, indexName, read);
+        write(clear);
+
+        assertArrayEquals(new Object[] { 1 }, DeletedDocs.readMarks(indexName, Integer.MAX_VALUE).keySet().toArray());
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class DocHitsTests
+{
+    @Test
+    public void testSmallIndexStartsDense()
+    {
+        assertTrue(new DocHits(8192).isDense());
+        assertFalse(new DocHits(8193).isDense());
+    }
+
+    @Test
+    public void testSwitchesToDenseAtThreshold()
+    {
+        int maxDoc = 64000;
+        DocHits hits = new DocHits(maxDoc);
+
+        // one doc in 64 stays sparse
+        for (int doc = 0; doc < maxDoc / 64; doc++)
+        {
+            hits.set(doc * 31, maxDoc);
+            assertFalse("switched at " + doc, hits.isDense());
+        }
+
+        int last = maxDoc / 64 * 31;
+        hits.set(last, maxDoc);
+        assertTrue(hits.isDense());
+
+        for (int doc = 0; doc <= maxDoc / 64; doc++)
+            assertTrue(hits.get(doc * 31));
+
+        assertFalse(hits.get(1));
+        assertEquals(maxDoc / 64 + 1, hits.toArray().length);
+    }
+
+    @Test
+    public void testSparseSetAndClear()
+    {
+        int maxDoc = 10000000;
+        DocHits hits = new DocHits(maxDoc);
+
+        for (int doc = 0; doc < 1000; doc++)
+            hits.set(doc * 1009, maxDoc);
+
+        // twice is once
+        hits.set(1009, maxDoc);
+
+        for (int doc = 0; doc < 1000; doc++)
+            assertTrue(hits.get(doc * 1009));
+
+        assertFalse(hits.get(1));
+
+        // cleared docs can be found past and set again
+        for (int doc = 0; doc < 1000; doc += 2)
+            hits.clear(doc * 1009);
+
+        hits.clear(7); // never set
+
+        for (int doc = 0; doc < 1000; doc++)
+            assertEquals(doc % 2 == 1, hits.get(doc * 1009));
+
+        hits.set(0, maxDoc);
+        assertTrue(hits.get(0));
+
+        int[] array = hits.toArray();
+        assertEquals(501, array.length);
+        assertEquals(0, array[0]);
+        assertEquals(1009, array[1]);
+        assertEquals(999 * 1009, array[500]);
+
+        // removed slots don't count towards the switch
+        assertFalse(hits.isDense());
+    }
+
+    @Test
+    public void testOutOfRange()
+    {
+        DocHits dense = new DocHits(10);
+        assertFalse(dense.get(10));
+        assertFalse(dense.get(100000));
+
+        // a doc past maxDoc, written after the reader's view
+        dense.set(1000, 10);
+        assertTrue(dense.get(1000));
+
+        dense.clear(100000);
+        assertFalse(dense.get(100000));
+
+        DocHits sparse = new DocHits(100000);
+        assertFalse(sparse.get(100000));
+
+        sparse.set(200000, 100000);
+        assertTrue(sparse.get(200000));
+    }
+
+    @Test
+    public void testToArrayIsSorted()
+    {
+        int maxDoc = 1000000;
+        DocHits hits = new DocHits(maxDoc);
+
+        int[] docs = new int[] { 900000, 5, 77, 123456, 3 };
+        for (int doc : docs)
+            hits.set(doc, maxDoc);
+
+        assertArrayEquals(new int[] { 3, 5, 77, 123456, 900000 }, hits.toArray());
+
+        DocHits dense = new DocHits(100);
+        dense.set(50, 100);
+        dense.set(2, 100);
+
+        assertArrayEquals(new int[] { 2, 50 }, dense.toArray());
+        assertArrayEquals(new int[0], new DocHits(100).toArray());
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class DocNormsTests
+{
+    private static byte norm(int doc)
+    {
+        return (byte) (doc % 120 + 1);
+    }
+
+    @Test
+    public void testSmallIndexStartsDense()
+    {
+        assertTrue(new DocNorms(1024).isDense());
+        assertFalse(new DocNorms(1025).isDense());
+    }
+
+    @Test
+    public void testSwitchesToDenseAtThreshold()
+    {
+        int maxDoc = 2000;
+        DocNorms norms = new DocNorms(maxDoc);
+
+        // one doc in ten stays sparse
+        for (int doc = 0; doc < maxDoc / 10; doc++)
+        {
+            norms.set(doc * 7, norm(doc * 7), maxDoc);
+            assertFalse("switched at " + doc, norms.isDense());
+        }
+
+        int last = maxDoc / 10 * 7;
+        norms.set(last, norm(last), maxDoc);
+        assertTrue(norms.isDense());
+
+        // nothing is lost in the switch
+        for (int doc = 0; doc <= maxDoc / 10; doc++)
+            assertEquals(norm(doc * 7), norms.get(doc * 7));
+
+        assertEquals(0, norms.get(1));
+    }
+
+    @Test
+    public void testSparseGrowsAndClears()
+    {
+        int maxDoc = 1000000;
+        DocNorms norms = new DocNorms(maxDoc);
+
+        // enough docs to rehash a few times
+        for (int doc = 0; doc < 1000; doc++)
+            norms.set(doc * 997, norm(doc), maxDoc);
+
+        assertFalse(norms.isDense());
+
+        for (int doc = 0; doc < 1000; doc++)
+            assertEquals(norm(doc), norms.get(doc * 997));
+
+        norms.clear(997);
+        norms.clear(5); // never set
+
+        assertEquals(0, norms.get(997));
+        assertEquals(0, norms.get(5));
+        assertEquals(norm(2), norms.get(2 * 997));
+
+        // clearing doesn't count as a new doc
+        assertFalse(norms.isDense());
+    }
+
+    @Test
+    public void testOutOfRange()
+    {
+        DocNorms dense = new DocNorms(10);
+        assertEquals(0, dense.get(10));
+        assertEquals(0, dense.get(5000));
+
+        // a doc past maxDoc, written after the reader's view
+        dense.set(20, (byte) 3, 10);
+        assertEquals(3, dense.get(20));
+        assertEquals(0, dense.get(19));
+
+        dense.clear(5000);
+
+        DocNorms sparse = new DocNorms(100000);
+        assertEquals(0, sparse.get(100000));
+
+        sparse.set(200000, (byte) 4, 100000);
+        assertEquals(4, sparse.get(200000));
+    }
+
+    @Test
+    public void testToArray()
+    {
+        int maxDoc = 5000;
+        DocNorms norms = new DocNorms(maxDoc);
+
+        norms.set(3, (byte) 1, maxDoc);
+        norms.set(4999, (byte) 2, maxDoc);
+        norms.set(6000, (byte) 3, maxDoc); // past maxDoc
+
+        byte[] array = norms.toArray(maxDoc);
+
+        assertTrue(norms.isDense());
+        assertEquals(6001, array.length);
+        assertEquals(1, array[3]);
+        assertEquals(2, array[4999]);
+        assertEquals(3, array[6000]);
+        assertEquals(0, array[0]);
+
+        // later norms go to the same array
+        norms.set(10, (byte) 5, maxDoc);
+        assertEquals(5, array[10]);
+        assertSame(array, norms.toArray(maxDoc));
+
+        // and a larger maxDoc grows it
+        byte[] grown = norms.toArray(8000);
+        assertEquals(8000, grown.length);
+        assertEquals(5, grown[10]);
+    }
+
+    @Test
+    public void testToArrayOfDenseIndex()
+    {
+        DocNorms norms = new DocNorms(100);
+        norms.set(7, (byte) 9, 100);
+
+        byte[] array = norms.toArray(100);
+
+        assertEquals(100, array.length);
+        assertEquals(9, array[7]);
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import lucandra.serializers.thrift.DocumentMetadata;
+import lucandra.serializers.thrift.ThriftTerm;
+
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.DeletedColumn;
+import org.apache.lucene.index.Term;
+import org.junit.Test;
+
+public class DocumentTermsTests
+{
+    private static DocumentTerms roundTrip(DocumentTerms terms)
+    {
+        return DocumentTerms.deserialize(terms.serialize());
+    }
+
+    private static DocumentMetadata metadata(DocumentTerms terms) throws IOException
+    {
+        DocumentMetadata metadata = new DocumentMetadata();
+
+        for (Term term : terms.getTerms())
+            metadata.addToTerms(new ThriftTerm(term.field()).setText(
+                    ByteBuffer.wrap(term.text().getBytes("UTF-8"))).setIs_binary(false));
+
+        return metadata;
+    }
+
+    @Test
+    public void testSharedPrefixes()
+    {
+        DocumentTerms terms = new DocumentTerms();
+        terms.add("title", "index");
+        terms.add("title", "indexed");
+        terms.add("title", "indexer");
+        terms.add("title", "in");
+        terms.add("title", "zebra");
+        terms.add("text", "index"); // same text, other field
+        terms.add("text", "indexes");
+
+        DocumentTerms read = roundTrip(terms);
+
+        assertEquals(terms.getTerms(), read.getTerms());
+        assertEquals(terms.getFields(), read.getFields());
+        assertEquals(5, read.getTerms("title").size());
+    }
+
+    @Test
+    public void testEmptyText()
+    {
+        DocumentTerms terms = new DocumentTerms();
+        terms.add("f", "");
+        terms.add("f", "a");
+        terms.add("g", "");
+
+        assertEquals(terms.getTerms(), roundTrip(terms).getTerms());
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        DocumentTerms read = roundTrip(new DocumentTerms());
+
+        assertEquals(0, read.size());
+        assertTrue(read.getFields().isEmpty());
+    }
+
+    @Test
+    public void testMultiByteText()
+    {
+        DocumentTerms terms = new DocumentTerms();
+
+        // two and three byte chars sharing lead bytes, and a surrogate pair
+        terms.add("f", "caf\u00e9");
+        terms.add("f", "caf\u00e8");
+        terms.add("f", "caf\u00e9s");
+        terms.add("f", "\u65e5\u672c");
+        terms.add("f", "\u65e5\u672c\u8a9e");
+        terms.add("f", "\uD83D\uDE00");
+        terms.add("f", "\uD83D\uDE01");
+        terms.add("\u00fc\u00df", "x"); // and in the field name
+
+        DocumentTerms read = roundTrip(terms);
+
+        assertEquals(terms.getTerms(), read.getTerms());
+        assertTrue(read.getTerms().contains(new Term("f", "\uD83D\uDE01")));
+    }
+
+    @Test
+    public void testReadPrefersTermsColumn() throws IOException
+    {
+        DocumentTerms current = new DocumentTerms();
+        current.add("f", "new");
+
+        DocumentTerms old = new DocumentTerms();
+        old.add("f", "old");
+
+        Column termsCol = new Column(CassandraUtils.documentTermsFieldBytes, current.serialize(), 2);
+        Column metaCol = new Column(CassandraUtils.documentMetaFieldBytes, IndexWriter
+                .toBytesUsingThrift(metadata(old)), 1);
+
+        assertEquals(current.getTerms(), DocumentTerms.read(termsCol, metaCol).getTerms());
+    }
+
+    @Test
+    public void testReadFallsBackToMeta() throws IOException
+    {
+        DocumentTerms old = new DocumentTerms();
+        old.add("title", "caf\u00e9");
+        old.add("title", "cafes");
+        old.add("text", "");
+
+        Column metaCol = new Column(CassandraUtils.documentMetaFieldBytes, IndexWriter
+                .toBytesUsingThrift(metadata(old)), 1);
+
+        // docs written before the TERMS column
+        assertEquals(old.getTerms(), DocumentTerms.read(null, metaCol).getTerms());
+
+        // or with it deleted
+        DeletedColumn deleted = new DeletedColumn(CassandraUtils.documentTermsFieldBytes, 0, 2);
+        assertEquals(old.getTerms(), DocumentTerms.read(deleted, metaCol).getTerms());
+    }
+
+    @Test
+    public void testReadNothing() throws IOException
+    {
+        assertNull(DocumentTerms.read(null, null));
+        assertNull(DocumentTerms.read(new DeletedColumn(CassandraUtils.documentTermsFieldBytes, 0, 1), null));
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.junit.Test;
+
+public class IndexChangesTests
+{
+    @Test
+    public void testRoundTrip()
+    {
+        IndexChanges changes = new IndexChanges();
+        changes.add(3, Arrays.asList(new Term("title", "foo"), new Term("title", "bar")));
+        changes.add(70000, Arrays.asList(new Term("text", "caf\u00e9"), new Term("text", "")));
+        changes.add(12, null);
+
+        IndexChanges read = IndexChanges.deserialize(changes.serialize());
+
+        assertTrue(read.isComplete());
+        assertEquals(changes.getDocIds(), read.getDocIds());
+        assertEquals(changes.getTerms(), read.getTerms());
+        assertEquals(changes.getFields(), read.getFields());
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        IndexChanges read = IndexChanges.deserialize(new IndexChanges().serialize());
+
+        assertTrue(read.isComplete());
+        assertTrue(read.isEmpty());
+    }
+
+    @Test
+    public void testOverflowMarksIncomplete()
+    {
+        IndexChanges changes = new IndexChanges();
+
+        for (int i = 0; i < IndexChanges.maxTerms; i++)
+            changes.add(i, Arrays.asList(new Term("f", "t" + i)));
+
+        assertTrue(changes.isComplete());
+
+        changes.add(IndexChanges.maxTerms, Arrays.asList(new Term("f", "one more")));
+
+        assertFalse(changes.isComplete());
+        assertFalse(changes.isEmpty());
+        assertTrue(changes.getTerms().isEmpty());
+
+        // readers must clear everything
+        IndexChanges read = IndexChanges.deserialize(changes.serialize());
+        assertFalse(read.isComplete());
+
+        // and stay that way when merged with other flushes
+        IndexChanges merged = new IndexChanges();
+        merged.add(1, Arrays.asList(new Term("f", "a")));
+        merged.addAll(read);
+        assertFalse(merged.isComplete());
+
+        read.addAll(merged);
+        assertFalse(read.isComplete());
+    }
+
+    @Test
+    public void testDrainAndRestore()
+    {
+        IndexChanges changes = new IndexChanges();
+        List<Term> terms = Arrays.asList(new Term("f", "a"));
+        changes.add(1, terms);
+
+        IndexChanges drained = changes.drain();
+        assertTrue(changes.isEmpty());
+        assertEquals(1, drained.getDocIds().size());
+
+        // a failed flush puts its changes back
+        changes.add(2, null);
+        changes.addAll(drained);
+
+        assertEquals(2, changes.getDocIds().size());
+        assertEquals(terms.size(), changes.getTerms().size());
+    }
+}
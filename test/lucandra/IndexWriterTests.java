@@ -0,0 +1,337 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.TermQuery;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class IndexWriterTests
+{
+    private static final IndexWriter writer = new IndexWriter();
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException
+    {
+        CassandraUtils.startupServer();
+    }
+
+    // fails its first writes, as if its replicas were down
+    private static class FailingMutation extends RowMutation
+    {
+        private final AtomicInteger failures;
+
+        FailingMutation(ByteBuffer key, int failures)
+        {
+            super(CassandraUtils.keySpace, key);
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public String getTable()
+        {
+            if (failures.getAndDecrement() > 0)
+                throw new RuntimeException("write failed");
+
+            return super.getTable();
+        }
+    }
+
+    private static Document doc(String id, String text)
+    {
+        Document doc = new Document();
+        doc.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+        doc.add(new Field("text", text, Field.Store.YES, Field.Index.ANALYZED));
+
+        return doc;
+    }
+
+    private static List<Integer> termDocs(String indexName, Term term) throws IOException
+    {
+        TermDocs termDocs = new IndexReader(indexName).reopen().termDocs(term);
+
+        List<Integer> docs = new ArrayList<Integer>();
+        while (termDocs.next())
+            docs.add(termDocs.doc());
+
+        return docs;
+    }
+
+    private static IColumn readColumn(ByteBuffer key, ByteBuffer name) throws IOException
+    {
+        List<Row> rows = CassandraUtils.robustRead(key, new QueryPath(CassandraUtils.docColumnFamily), Arrays
+                .asList(name), CassandraUtils.consistency);
+
+        if (rows.isEmpty() || rows.get(0).cf == null)
+            return null;
+
+        IColumn column = rows.get(0).cf.getColumn(name);
+
+        return column == null || !column.isLive() ? null : column;
+    }
+
+    private static RowMutation write(ByteBuffer key, String column, String value, long timestamp)
+    {
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, key);
+        rm.add(new QueryPath(CassandraUtils.docColumnFamily, null, ByteBufferUtil.bytes(column)), ByteBufferUtil
+                .bytes(value), timestamp);
+
+        return rm;
+    }
+
+    private static ColumnFamily docs(RowMutation rm)
+    {
+        assertEquals(1, rm.getColumnFamilies().size());
+
+        return rm.getColumnFamilies().iterator().next();
+    }
+
+    @Test
+    public void testCoalesce() throws IOException
+    {
+        ByteBuffer a = ByteBufferUtil.bytes("a");
+        ByteBuffer b = ByteBufferUtil.bytes("b");
+
+        RowMutation deleted = new RowMutation(CassandraUtils.keySpace, a);
+        deleted.delete(new QueryPath(CassandraUtils.docColumnFamily, null, ByteBufferUtil.bytes("gone")), 15);
+
+        // newer columns win whatever the queue order, as if sent one by one
+        List<RowMutation> batch = Arrays.asList(write(a, "x", "new", 20), write(b, "x", "other", 10), write(a, "x",
+                "old", 10), write(a, "y", "y", 10), write(a, "gone", "old", 10), deleted);
+
+        List<RowMutation> rows = IndexWriter.coalesce(batch);
+
+        // one row per key, in queue order, a row on its own is sent as is
+        assertEquals(2, rows.size());
+        assertEquals(a, rows.get(0).key());
+        assertSame(batch.get(1), rows.get(1));
+
+        ColumnFamily merged = docs(rows.get(0));
+        assertEquals("new", ByteBufferUtil.string(merged.getColumn(ByteBufferUtil.bytes("x")).value()));
+        assertEquals("y", ByteBufferUtil.string(merged.getColumn(ByteBufferUtil.bytes("y")).value()));
+        assertFalse(merged.getColumn(ByteBufferUtil.bytes("gone")).isLive());
+
+        // the queued mutations are left alone, a failed batch re-sends them
+        assertEquals(1, docs(batch.get(0)).getSortedColumns().size());
+        assertEquals("old", ByteBufferUtil.string(docs(batch.get(2)).getColumn(ByteBufferUtil.bytes("x")).value()));
+    }
+
+    @Test
+    public void testFailedBatchIsWrittenByNextCommit() throws IOException
+    {
+        String indexName = "requeue" + System.nanoTime();
+
+        ByteBuffer key = ByteBufferUtil.bytes(indexName + "/failing");
+        ByteBuffer name = ByteBufferUtil.bytes("value");
+
+        RowMutation failing = new FailingMutation(key, 1);
+        failing.add(new QueryPath(CassandraUtils.docColumnFamily, null, name), ByteBufferUtil.bytes("written"), System
+                .currentTimeMillis());
+
+        // queued first, so the rest of its batch isn't sent either
+        writer.appendMutations(indexName, failing);
+        writer.addDocument(indexName, doc("1", "requeued doc"), new SimpleAnalyzer(), 0, false, null);
+
+        try
+        {
+            writer.commit(indexName, true);
+            fail("a failed write must fail the commit");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+
+        assertNull(readColumn(key, name));
+
+        // the whole batch went back on the queue and goes out with the next commit
+        writer.commit(indexName, true);
+
+        assertEquals("written", ByteBufferUtil.string(readColumn(key, name).value()));
+
+        IndexReader reader = new IndexReader(indexName).reopen();
+        TermDocs termDocs = reader.termDocs(new Term("text", "requeued"));
+        assertTrue(termDocs.next());
+        assertEquals(0, termDocs.doc());
+    }
+
+    @Test
+    public void testDeleteByTermAndQueryInBatches() throws IOException
+    {
+        String indexName = "deletes" + System.nanoTime();
+
+        // more docs per delete than are read in one multiget
+        int numDocs = 600;
+        for (int i = 0; i < numDocs; i++)
+            writer.addDocument(indexName, doc(String.valueOf(i), "all " + (i % 2 == 0 ? "even" : "odd")
+                    + (i % 5 == 0 ? " five" : "")), new SimpleAnalyzer(), i, false, null);
+
+        writer.commit(indexName, true);
+
+        writer.deleteDocuments(indexName, new Term("text", "odd"), true);
+
+        // the odd docs are already gone from the search
+        assertEquals(numDocs / 10, writer.deleteDocuments(indexName, new TermQuery(new Term("text", "five")), true));
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < numDocs; i++)
+        {
+            if (i % 2 == 0 && i % 5 != 0)
+                expected.add(i);
+        }
+
+        assertEquals(expected, termDocs(indexName, new Term("text", "all")));
+        assertTrue(termDocs(indexName, new Term("text", "odd")).isEmpty());
+
+        // and the same once their postings are removed
+        writer.expungeDeletes(indexName);
+
+        assertTrue(DeletedDocs.readMarks(indexName, Integer.MAX_VALUE).isEmpty());
+        assertEquals(expected, termDocs(indexName, new Term("text", "all")));
+        assertTrue(termDocs(indexName, new Term("text", "five")).isEmpty());
+    }
+
+    @Test
+    public void testDiffUpdate() throws IOException
+    {
+        String indexName = "diffupdate" + System.nanoTime();
+        Term id = new Term("id", "0");
+
+        Document doc = doc("0", "fresh fruit");
+        doc.add(new Field("title", "red apple", Field.Store.YES, Field.Index.ANALYZED));
+
+        writer.addDocument(indexName, doc, new SimpleAnalyzer(), 0, false, null);
+        writer.commit(indexName, true);
+
+        // the same content again isn't written
+        long unchanged = IndexWriter.getUpdatesUnchanged();
+        long diffed = IndexWriter.getUpdatesDiffed();
+
+        writer.updateDocument(indexName, id, doc, new SimpleAnalyzer(), 0, true);
+
+        assertEquals(unchanged + 1, IndexWriter.getUpdatesUnchanged());
+        assertEquals(diffed, IndexWriter.getUpdatesDiffed());
+
+        // a changed field is indexed again, the others are left as they are
+        doc = doc("0", "ripe fruit");
+        doc.add(new Field("title", "red apple", Field.Store.YES, Field.Index.ANALYZED));
+
+        writer.updateDocument(indexName, id, doc, new SimpleAnalyzer(), 0, true);
+        writer.commit(indexName, true);
+
+        assertEquals(diffed + 1, IndexWriter.getUpdatesDiffed());
+
+        assertTrue(termDocs(indexName, new Term("text", "fresh")).isEmpty());
+        assertEquals(Arrays.asList(0), termDocs(indexName, new Term("text", "ripe")));
+        assertEquals(Arrays.asList(0), termDocs(indexName, new Term("text", "fruit")));
+        assertEquals(Arrays.asList(0), termDocs(indexName, new Term("title", "apple")));
+
+        Document stored = new IndexReader(indexName).reopen().document(0);
+        assertEquals("ripe fruit", stored.get("text"));
+        assertEquals("red apple", stored.get("title"));
+
+        // a dropped field goes too
+        writer.updateDocument(indexName, id, doc("0", "ripe fruit"), new SimpleAnalyzer(), 0, true);
+        writer.commit(indexName, true);
+
+        assertTrue(termDocs(indexName, new Term("title", "apple")).isEmpty());
+        assertNull(new IndexReader(indexName).reopen().document(0).get("title"));
+
+        // and the doc's term list still covers every posting it has
+        writer.deleteDocuments(indexName, id, true);
+        writer.expungeDeletes(indexName);
+
+        assertTrue(termDocs(indexName, new Term("text", "ripe")).isEmpty());
+        assertTrue(termDocs(indexName, new Term("text", "fruit")).isEmpty());
+        assertTrue(termDocs(indexName, new Term("id", "0")).isEmpty());
+    }
+
+    @Test
+    public void testOptimize() throws IOException
+    {
+        String indexName = "optimize" + System.nanoTime();
+        Term all = new Term("text", "all");
+
+        // several commits, so the term rows hold several columns
+        for (int i = 0; i < 40; i++)
+        {
+            writer.addDocument(indexName, doc(String.valueOf(i), i < 10 ? "all gone" : "all kept"),
+                    new SimpleAnalyzer(), i, false, null);
+
+            if (i % 10 == 9)
+                writer.commit(indexName, true);
+        }
+
+        // purged docs leave tombstones in the term rows
+        writer.deleteDocuments(indexName, new Term("text", "gone"), true);
+        writer.expungeDeletes(indexName);
+
+        // a doc only marked is left out of the rewrite too
+        writer.deleteDocuments(indexName, new Term("id", "20"), true);
+
+        IndexOptimizer optimizer = new IndexOptimizer(indexName).run();
+        assertTrue(optimizer.toString(), optimizer.getBytesReclaimed() > 0);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 10; i < 40; i++)
+        {
+            if (i != 20)
+                expected.add(i);
+        }
+
+        assertEquals(expected, termDocs(indexName, all));
+
+        IndexReader reader = new IndexReader(indexName).reopen();
+        assertEquals(expected.size(), reader.docFreq(all));
+
+        // a term whose docs are all gone is dropped from the term list
+        List<Term> terms = reader.getCache().termCache.listTerms(new Term("text", ""), 16, null);
+        assertTrue(terms.contains(all));
+        assertFalse(terms.contains(new Term("text", "gone")));
+
+        // with its mark cleared the marked doc stays gone, its postings weren't copied
+        SortedMap<Integer, Long> marks = DeletedDocs.readMarks(indexName, Integer.MAX_VALUE);
+        assertEquals(Collections.singleton(20), marks.keySet());
+
+        Map<ByteBuffer, RowMutation> clear = new HashMap<ByteBuffer, RowMutation>();
+        DeletedDocs.clear(clear, indexName, marks);
+        CassandraUtils.robustInsert(CassandraUtils.consistency, clear.values().toArray(new RowMutation[0]));
+
+        assertEquals(expected, termDocs(indexName, all));
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.IColumn;
+import org.junit.Test;
+
+public class LucandraNormBlockTests
+{
+    private static List<LucandraTermInfo> docs(byte norm, int... docIds)
+    {
+        List<LucandraTermInfo> docs = new ArrayList<LucandraTermInfo>();
+        for (int docId : docIds)
+            docs.add(new LucandraTermInfo(docId, 1, norm, null, null));
+
+        return docs;
+    }
+
+    private static IColumn column(long timestamp, byte norm, int... docIds)
+    {
+        return new Column(LucandraTermBlock.createColumnName(LucandraNormBlock.blockStart(docIds[0])),
+                LucandraNormBlock.serialize(docs(norm, docIds)), timestamp);
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        // runs, gaps and single docs
+        int[] docIds = new int[] { 4096, 4097, 4098, 5000, 5002, 5003, 8191 };
+
+        List<LucandraTermInfo> docs = new ArrayList<LucandraTermInfo>();
+        for (int docId : docIds)
+            docs.add(new LucandraTermInfo(docId, 1, (byte) (docId % 100), null, null));
+
+        int maxDoc = 10000;
+        DocNorms norms = new DocNorms(maxDoc);
+
+        LucandraNormBlock.deserialize(LucandraTermBlock.createColumnName(LucandraNormBlock.blockStart(4096)),
+                LucandraNormBlock.serialize(docs), norms, maxDoc);
+
+        for (int docId : docIds)
+            assertEquals(docId % 100, norms.get(docId));
+
+        assertEquals(0, norms.get(4099));
+        assertEquals(0, norms.get(5001));
+        assertEquals(0, norms.get(4095));
+    }
+
+    @Test
+    public void testSkipsDocsPastMaxDoc()
+    {
+        DocNorms norms = new DocNorms(100);
+
+        LucandraNormBlock.apply(new ArrayList<IColumn>(Arrays.asList(column(1, (byte) 7, 98, 99, 100, 101))),
+                norms, 100);
+
+        assertEquals(7, norms.get(99));
+        assertEquals(0, norms.get(100));
+        assertEquals(0, norms.get(101));
+    }
+
+    @Test
+    public void testLatestWriteWins()
+    {
+        int maxDoc = 100;
+
+        // written by two nodes, the later sequence has the older timestamp
+        IColumn newer = column(20, (byte) 2, 3, 4, 5);
+        IColumn older = column(10, (byte) 1, 1, 2, 3, 4);
+
+        DocNorms norms = new DocNorms(maxDoc);
+        LucandraNormBlock.apply(new ArrayList<IColumn>(Arrays.asList(newer, older)), norms, maxDoc);
+
+        assertEquals(1, norms.get(1));
+        assertEquals(1, norms.get(2));
+        assertEquals(2, norms.get(3));
+        assertEquals(2, norms.get(4));
+        assertEquals(2, norms.get(5));
+
+        // the order the columns are read in doesn't matter
+        norms = new DocNorms(maxDoc);
+        LucandraNormBlock.apply(new ArrayList<IColumn>(Arrays.asList(older, newer)), norms, maxDoc);
+
+        assertEquals(2, norms.get(3));
+        assertEquals(1, norms.get(2));
+    }
+
+    @Test
+    public void testSameTimestampFallsBackToSequence()
+    {
+        int maxDoc = 100;
+
+        IColumn first = column(10, (byte) 1, 7);
+        IColumn second = column(10, (byte) 2, 7);
+
+        DocNorms norms = new DocNorms(maxDoc);
+        LucandraNormBlock.apply(new ArrayList<IColumn>(Arrays.asList(second, first)), norms, maxDoc);
+
+        assertEquals(2, norms.get(7));
+    }
+
+    @Test
+    public void testBlocksApplyInDocOrder()
+    {
+        int maxDoc = 10000;
+
+        IColumn low = column(30, (byte) 3, 10);
+        IColumn high = column(10, (byte) 1, 5000);
+
+        DocNorms norms = new DocNorms(maxDoc);
+        LucandraNormBlock.apply(new ArrayList<IColumn>(Arrays.asList(high, low)), norms, maxDoc);
+
+        assertEquals(3, norms.get(10));
+        assertEquals(1, norms.get(5000));
+    }
+}
@@ -0,0 +1,409 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Test;
+
+public class LucandraTermBlockTests
+{
+    private static LucandraTermInfo doc(int docId, int... positions)
+    {
+        int[] offsets = new int[positions.length * 2];
+        for (int i = 0; i < positions.length; i++)
+        {
+            offsets[i * 2] = positions[i] * 10;
+            offsets[i * 2 + 1] = positions[i] * 10 + 5;
+        }
+
+        return new LucandraTermInfo(docId, positions.length, (byte) (docId % 100), positions, offsets);
+    }
+
+    private static LucandraTermBlock block(long timestamp, LucandraTermInfo... docs)
+    {
+        List<LucandraTermInfo> list = Arrays.asList(docs);
+
+        return new LucandraTermBlock(LucandraTermBlock.createColumnName(docs[0].docId), LucandraTermBlock
+                .serialize(list), timestamp);
+    }
+
+    private static List<Integer> docIds(LucandraTermBlock[] blocks)
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (LucandraTermBlock block : blocks)
+        {
+            LucandraPostings postings = block.getPostings();
+            for (int i = 0; i < postings.size(); i++)
+                ids.add(postings.docId(i));
+        }
+
+        return ids;
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        LucandraTermInfo[] docs = new LucandraTermInfo[] { doc(3, 1), doc(7, 2, 9, 40), doc(1000, 5), doc(70000, 1, 2) };
+
+        LucandraTermBlock block = block(1, docs);
+
+        // the header is enough to count and skip
+        assertFalse(block.isDecoded());
+        assertEquals(4, block.size);
+        assertEquals(3, block.firstDoc);
+        assertEquals(70000, block.lastDoc);
+
+        LucandraPostings postings = block.getPostings();
+        assertEquals(docs.length, postings.size());
+
+        for (int i = 0; i < docs.length; i++)
+        {
+            assertEquals(docs[i].docId, postings.docId(i));
+            assertEquals(docs[i].freq, postings.freq(i));
+            assertEquals(docs[i].norm.byteValue(), postings.norm(i));
+            assertArrayEquals(docs[i].positions, postings.getPositions(i));
+            assertArrayEquals(docs[i].offsets, postings.getOffsets(i));
+        }
+    }
+
+    @Test
+    public void testDocsOnlyRoundTrip()
+    {
+        List<LucandraTermInfo> docs = new ArrayList<LucandraTermInfo>();
+        for (int i = 0; i < 300; i += 3)
+            docs.add(new LucandraTermInfo(i, 1, false, null, null, null));
+
+        LucandraPostings postings = new LucandraTermBlock(LucandraTermBlock.createColumnName(0), LucandraTermBlock
+                .serialize(docs), 1).getPostings();
+
+        assertEquals(docs.size(), postings.size());
+        for (int i = 0; i < docs.size(); i++)
+        {
+            assertEquals(docs.get(i).docId, postings.docId(i));
+            assertEquals(1, postings.freq(i));
+            assertEquals(LucandraPostings.defaultNorm, postings.norm(i));
+            assertNull(postings.getPositions(i));
+            assertNull(postings.getOffsets(i));
+        }
+    }
+
+    @Test
+    public void testResolveFiltersNewerDeletes()
+    {
+        LucandraTermBlock block = block(10, doc(1, 1), doc(2, 1), doc(3, 1));
+
+        NavigableMap<Integer, Long> deleted = new TreeMap<Integer, Long>();
+        deleted.put(1, 5L); // before the block was written, doc came back
+        deleted.put(2, 20L); // after
+
+        LucandraTermBlock[] resolved = LucandraTermBlock.resolve(Arrays.asList(block), deleted);
+
+        assertEquals(Arrays.asList(1, 3), docIds(resolved));
+        assertEquals(2, LucandraTermBlock.count(resolved));
+    }
+
+    @Test
+    public void testResolveDropsFullyDeletedBlocks()
+    {
+        LucandraTermBlock block = block(10, doc(1, 1), doc(2, 1));
+
+        NavigableMap<Integer, Long> deleted = new TreeMap<Integer, Long>();
+        deleted.put(1, 20L);
+        deleted.put(2, 20L);
+
+        assertEquals(0, LucandraTermBlock.resolve(Arrays.asList(block), deleted).length);
+    }
+
+    @Test
+    public void testResolveKeepsUntouchedBlocksEncoded()
+    {
+        LucandraTermBlock first = block(10, doc(1, 1), doc(2, 1));
+        LucandraTermBlock second = block(10, doc(5, 1), doc(6, 1));
+
+        NavigableMap<Integer, Long> deleted = new TreeMap<Integer, Long>();
+        deleted.put(6, 20L);
+
+        LucandraTermBlock[] resolved = LucandraTermBlock.resolve(Arrays.asList(second, first), deleted);
+
+        assertEquals(2, resolved.length);
+        assertSame(first, resolved[0]);
+        assertFalse(first.isDecoded());
+        assertEquals(Arrays.asList(1, 2, 5), docIds(resolved));
+    }
+
+    @Test
+    public void testResolveMergesOverlappingBlocks()
+    {
+        // doc 5 was written again later, with other positions
+        LucandraTermBlock older = block(10, doc(1, 1), doc(5, 1), doc(9, 1));
+        LucandraTermBlock newer = block(20, doc(4, 3), doc(5, 7, 8));
+        LucandraTermBlock apart = block(15, doc(20, 1));
+
+        LucandraTermBlock[] resolved = LucandraTermBlock.resolve(Arrays.asList(newer, apart, older), null);
+
+        assertEquals(2, resolved.length);
+        assertEquals(Arrays.asList(1, 4, 5, 9, 20), docIds(resolved));
+        assertEquals(20, resolved[0].timestamp);
+
+        LucandraPostings merged = resolved[0].getPostings();
+        int idx = merged.indexOf(5);
+        assertEquals(2, merged.freq(idx));
+        assertArrayEquals(new int[] { 7, 8 }, merged.getPositions(idx));
+    }
+
+    @Test
+    public void testResolveMergeThenDelete()
+    {
+        LucandraTermBlock older = block(10, doc(1, 1), doc(5, 1));
+        LucandraTermBlock newer = block(30, doc(3, 1), doc(5, 2));
+
+        NavigableMap<Integer, Long> deleted = new TreeMap<Integer, Long>();
+        deleted.put(1, 20L); // hides doc 1 of the older block
+        deleted.put(5, 20L); // but not doc 5 of the newer one
+
+        LucandraTermBlock[] resolved = LucandraTermBlock.resolve(Arrays.asList(older, newer), deleted);
+
+        assertEquals(Arrays.asList(3, 5), docIds(resolved));
+
+        LucandraPostings postings = resolved[0].getPostings();
+        assertArrayEquals(new int[] { 2 }, postings.getPositions(postings.indexOf(5)));
+    }
+
+    @Test
+    public void testAppend()
+    {
+        LucandraTermBlock open = block(10, doc(1, 1), doc(4, 1), doc(6, 1));
+
+        NavigableMap<Integer, Long> deleted = new TreeMap<Integer, Long>();
+        deleted.put(4, 20L);
+
+        List<LucandraTermInfo> merged = LucandraTermBlock.append(open, deleted, Arrays.asList(doc(2, 3), doc(6, 9),
+                doc(8, 1)));
+
+        List<Integer> ids = new ArrayList<Integer>();
+        for (LucandraTermInfo doc : merged)
+            ids.add(doc.docId);
+
+        assertEquals(Arrays.asList(1, 2, 6, 8), ids);
+
+        // the new posting replaced the block's
+        assertArrayEquals(new int[] { 9 }, merged.get(2).positions);
+
+        // and the merged list packs again
+        LucandraPostings postings = new LucandraTermBlock(LucandraTermBlock.createColumnName(1), LucandraTermBlock
+                .serialize(merged), 30).getPostings();
+        assertEquals(4, postings.size());
+        assertArrayEquals(new int[] { 3 }, postings.getPositions(postings.indexOf(2)));
+    }
+
+    @Test
+    public void testEncodedDocPositions()
+    {
+        LucandraPostings postings = new LucandraPostings(2);
+        postings.addDoc(3, doc(3, 1, 4, 6).serialize());
+        postings.addDoc(8, doc(8, 2).serialize());
+
+        // a buffer big enough is reused, whatever is past the count is stale
+        int[] buffer = new int[8];
+        for (int i = 0; i < postings.size(); i++)
+        {
+            int[] positions = postings.getPositions(i);
+            assertEquals(positions.length, postings.positionCount(i));
+
+            assertSame(buffer, postings.readPositions(i, buffer));
+            assertArrayEquals(positions, Arrays.copyOf(buffer, positions.length));
+        }
+
+        // one too small is replaced
+        int[] grown = postings.readPositions(0, new int[1]);
+        assertTrue(grown.length >= 3);
+        assertEquals(6, grown[2]);
+
+        assertArrayEquals(new int[] { 20, 25 }, postings.getOffsets(1));
+
+        // callers get their own copies
+        postings.getPositions(0)[0] = -1;
+        assertEquals(1, postings.getPositions(0)[0]);
+    }
+
+    @Test
+    public void testDecodedDocPositions()
+    {
+        LucandraPostings postings = new LucandraPostings(2);
+        postings.addDoc(3, 2, LucandraPostings.defaultNorm);
+        postings.addPosition(5);
+        postings.addPosition(9);
+        postings.addDoc(4, 1, LucandraPostings.defaultNorm);
+        postings.addPosition(2);
+
+        int[] buffer = postings.readPositions(0, null);
+        assertEquals(2, postings.positionCount(0));
+        assertEquals(5, buffer[0]);
+        assertEquals(9, buffer[1]);
+
+        assertSame(buffer, postings.readPositions(1, buffer));
+        assertEquals(2, buffer[0]);
+    }
+
+    // a serialized posting with these vints after the flags byte
+    private static ByteBuffer posting(int flags, int... vints)
+    {
+        ByteBuffer bytes = ByteBuffer.allocate(1 + vints.length * 5);
+        bytes.put((byte) flags);
+
+        for (int vint : vints)
+            bytes.put(CassandraUtils.writeVInt(vint));
+
+        bytes.flip();
+
+        return bytes;
+    }
+
+    @Test
+    public void testDeltaRoundTrip()
+    {
+        // gaps across vint sizes, and offsets that overlap their neighbours
+        int[] positions = new int[] { 0, 3, 200, 70000 };
+        int[] offsets = new int[] { 0, 4, 2, 9, 1500, 1510, 1500, 1600000 };
+
+        ByteBuffer bytes = new LucandraTermInfo(9, 4, (byte) 3, positions, offsets).serialize();
+        assertEquals(8, bytes.get(0) & 8);
+
+        LucandraTermInfo read = new LucandraTermInfo(9, bytes);
+        assertEquals(4, read.freq);
+        assertEquals(3, read.norm.byteValue());
+        assertArrayEquals(positions, read.positions);
+        assertArrayEquals(offsets, read.offsets);
+
+        int[] buffer = new int[4];
+        assertEquals(4, LucandraTermInfo.readPositions(bytes, buffer));
+        assertArrayEquals(positions, buffer);
+
+        // smaller than the same posting written as absolute values
+        ByteBuffer absolute = posting(7, 4, 3, 0, 3, 200, 70000, 8, 0, 4, 2, 9, 1500, 1510, 1500, 1600000);
+        assertArrayEquals(offsets, new LucandraTermInfo(9, absolute).offsets);
+        assertTrue(bytes.remaining() < absolute.remaining());
+    }
+
+    @Test
+    public void testAbsolutePostingsStillRead()
+    {
+        // written before the delta flag: freq, norm, positions and offsets as
+        // is, a norm under 128 is the same byte as its vint
+        ByteBuffer bytes = posting(7, 2, 6, 5, 9, 4, 50, 55, 90, 95);
+
+        LucandraTermInfo read = new LucandraTermInfo(4, bytes);
+        assertEquals(2, read.freq);
+        assertEquals(6, read.norm.byteValue());
+        assertArrayEquals(new int[] { 5, 9 }, read.positions);
+        assertArrayEquals(new int[] { 50, 55, 90, 95 }, read.offsets);
+
+        int[] buffer = new int[2];
+        assertEquals(2, LucandraTermInfo.readPositions(bytes, buffer));
+        assertArrayEquals(new int[] { 5, 9 }, buffer);
+
+        LucandraPostings postings = new LucandraPostings(1);
+        postings.addDoc(4, bytes);
+        assertEquals(6, postings.norm(0));
+        assertArrayEquals(new int[] { 5, 9 }, postings.getPositions(0));
+        assertArrayEquals(new int[] { 50, 55, 90, 95 }, postings.getOffsets(0));
+
+        // and written again they come back the same
+        LucandraTermInfo rewritten = new LucandraTermInfo(4, read.serialize());
+        assertArrayEquals(read.positions, rewritten.positions);
+        assertArrayEquals(read.offsets, rewritten.offsets);
+    }
+
+    @Test
+    public void testNoFreqPostingRoundTrip()
+    {
+        // omitTermFreqAndPositions, with and without norms
+        ByteBuffer bytes = new LucandraTermInfo(12, 3, false, (byte) 5, null, null).serialize();
+        assertEquals(LucandraTermInfo.noFreqFlag, bytes.get(0) & LucandraTermInfo.noFreqFlag);
+        assertEquals(2, bytes.remaining());
+
+        LucandraTermInfo read = new LucandraTermInfo(12, bytes);
+        assertFalse(read.hasFreq);
+        assertEquals(1, read.freq);
+        assertEquals(5, read.norm.byteValue());
+        assertNull(read.positions);
+        assertNull(read.offsets);
+
+        ByteBuffer noNorm = new LucandraTermInfo(13, 3, false, null, null, null).serialize();
+        assertEquals(1, noNorm.remaining());
+
+        LucandraPostings postings = new LucandraPostings(2);
+        postings.addDoc(12, bytes);
+        postings.addDoc(13, noNorm);
+        assertEquals(1, postings.freq(0));
+        assertEquals(5, postings.norm(0));
+        assertEquals(1, postings.freq(1));
+        assertEquals(LucandraPostings.defaultNorm, postings.norm(1));
+        assertEquals(0, postings.positionCount(1));
+
+        // postings written before the flag keep their freq
+        LucandraTermInfo old = new LucandraTermInfo(14, posting(0, 3));
+        assertTrue(old.hasFreq);
+        assertEquals(3, old.freq);
+    }
+
+    @Test
+    public void testMixedFreqBlockRoundTrip()
+    {
+        // a field that dropped freqs, with docs written before and after
+        List<LucandraTermInfo> docs = Arrays.asList(new LucandraTermInfo(1, 4, true, null, null, null),
+                new LucandraTermInfo(2, 9, false, null, null, null), new LucandraTermInfo(3, 2, true, null, null,
+                        null));
+
+        LucandraPostings postings = new LucandraTermBlock(LucandraTermBlock.createColumnName(1), LucandraTermBlock
+                .serialize(docs), 1).getPostings();
+
+        assertEquals(4, postings.freq(0));
+        assertEquals(1, postings.freq(1));
+        assertEquals(2, postings.freq(2));
+
+        // docs only blocks leave the freqs out
+        List<LucandraTermInfo> docsOnly = Arrays.asList(new LucandraTermInfo(1, 4, false, null, null, null),
+                new LucandraTermInfo(2, 9, false, null, null, null));
+        List<LucandraTermInfo> withFreqs = Arrays.asList(new LucandraTermInfo(1, 1, true, null, null, null),
+                new LucandraTermInfo(2, 1, true, null, null, null));
+
+        assertEquals(LucandraTermBlock.serialize(withFreqs).remaining() - 2, LucandraTermBlock.serialize(docsOnly)
+                .remaining());
+    }
+
+    @Test
+    public void testColumnNamesSortByFirstDoc()
+    {
+        ByteBuffer a = LucandraTermBlock.createColumnName(5);
+        ByteBuffer b = LucandraTermBlock.createColumnName(5);
+        ByteBuffer c = LucandraTermBlock.createColumnName(6);
+
+        // cassandra compares names as unsigned bytes
+        assertTrue(ByteBufferUtil.compareUnsigned(a, b) < 0);
+        assertTrue(ByteBufferUtil.compareUnsigned(b, c) < 0);
+        assertEquals(5, new LucandraTermBlock(b, LucandraTermBlock.serialize(Arrays.asList(doc(5, 1))), 1).firstDoc);
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * skipTo over term blocks small enough that most skips cross one, checked
+ * against the doc ids the postings should hold
+ */
+public class LucandraTermDocsTests
+{
+    private static final int    numDocs   = 100;
+    private static final int    blockSize = 4;
+
+    private static final Term   all       = new Term("text", "all");
+    private static final Term   third     = new Term("text", "third");
+
+    private static final IndexWriter writer = new IndexWriter();
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException
+    {
+        CassandraUtils.startupServer();
+
+        CassandraUtils.useTermBlocks = true;
+        CassandraUtils.termBlockSize = blockSize;
+    }
+
+    // docs 0..numDocs-1 all have "all", every third one also "third"
+    private static String newIndex() throws IOException
+    {
+        String indexName = "skipto" + System.nanoTime();
+
+        for (int i = 0; i < numDocs; i++)
+        {
+            Document doc = new Document();
+            doc.add(new Field("id", String.valueOf(i), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+            doc.add(new Field("text", i % 3 == 0 ? "all third" : "all", Field.Store.NO, Field.Index.ANALYZED));
+
+            writer.addDocument(indexName, doc, new SimpleAnalyzer(), i, false, null);
+
+            // several commits, so blocks are appended to as well
+            if (i % 30 == 29)
+                writer.commit(indexName, true);
+        }
+
+        writer.commit(indexName, true);
+
+        return indexName;
+    }
+
+    private static void delete(String indexName, int... docs) throws IOException
+    {
+        for (int doc : docs)
+            writer.deleteDocuments(indexName, new Term("id", String.valueOf(doc)), false);
+
+        writer.commit(indexName, true);
+    }
+
+    private static SortedSet<Integer> docs(Term term, Set<Integer> deleted)
+    {
+        SortedSet<Integer> docs = new TreeSet<Integer>();
+
+        for (int i = 0; i < numDocs; i++)
+        {
+            if ((term == all || i % 3 == 0) && !deleted.contains(i))
+                docs.add(i);
+        }
+
+        return docs;
+    }
+
+    // each skip lands on the first doc at or past the target, and past the
+    // current doc
+    private static void assertSkips(String indexName, Term term, Set<Integer> deleted, int... targets)
+            throws IOException
+    {
+        IndexReader reader = new IndexReader(indexName).reopen();
+        TermDocs termDocs = reader.termDocs(term);
+
+        SortedSet<Integer> expected = docs(term, deleted);
+        int current = -1;
+
+        for (int target : targets)
+        {
+            SortedSet<Integer> tail = expected.tailSet(Math.max(target, current + 1));
+
+            if (tail.isEmpty())
+            {
+                assertFalse("skipTo(" + target + ")", termDocs.skipTo(target));
+                return;
+            }
+
+            assertTrue("skipTo(" + target + ")", termDocs.skipTo(target));
+            assertEquals("skipTo(" + target + ")", tail.first().intValue(), termDocs.doc());
+
+            current = termDocs.doc();
+        }
+    }
+
+    // next and skipTo mixed, next must carry on where the skip left off
+    private static void assertWalk(String indexName, Term term, Set<Integer> deleted) throws IOException
+    {
+        IndexReader reader = new IndexReader(indexName).reopen();
+        TermDocs termDocs = reader.termDocs(term);
+
+        List<Integer> seen = new ArrayList<Integer>();
+        for (int target = 0; termDocs.skipTo(target);)
+        {
+            seen.add(termDocs.doc());
+
+            if (termDocs.next())
+                seen.add(termDocs.doc());
+            else
+                break;
+
+            target = termDocs.doc() + blockSize + 1;
+
+            // every doc skipped over must be one we expected to skip
+            for (Integer doc : docs(term, deleted).subSet(termDocs.doc() + 1, target))
+                seen.add(doc);
+        }
+
+        assertEquals(new ArrayList<Integer>(docs(term, deleted)), seen);
+    }
+
+    @Test
+    public void testSkipToAcrossBlocks() throws IOException
+    {
+        String indexName = newIndex();
+        Set<Integer> none = Collections.emptySet();
+
+        // within a block, onto a block boundary, far ahead, back, and past the end
+        assertSkips(indexName, all, none, 1, 2, 4, 8, 9, 50, 50, 10, 97, 99, 100);
+        assertSkips(indexName, third, none, 1, 4, 12, 13, 45, 46, 98, 99);
+
+        for (int target = 0; target <= numDocs; target++)
+            assertSkips(indexName, third, none, target);
+
+        assertWalk(indexName, all, none);
+        assertWalk(indexName, third, none);
+    }
+
+    @Test
+    public void testSkipToWithDeletes() throws IOException
+    {
+        String indexName = newIndex();
+
+        // a whole block, a block's last doc and docs either side of a skip
+        int[] ids = new int[] { 4, 5, 6, 7, 11, 12, 48, 51, 99 };
+
+        Set<Integer> deleted = new HashSet<Integer>();
+        for (int id : ids)
+            deleted.add(id);
+
+        delete(indexName, ids);
+
+        // marked but not yet purged
+        assertSkips(indexName, all, deleted, 4, 8, 11, 13, 48, 50, 51, 98, 99);
+        assertSkips(indexName, third, deleted, 3, 4, 12, 45, 48, 51, 99);
+        assertWalk(indexName, all, deleted);
+        assertWalk(indexName, third, deleted);
+
+        // and with their postings gone
+        writer.expungeDeletes(indexName);
+
+        assertSkips(indexName, all, deleted, 4, 8, 11, 13, 48, 50, 51, 98, 99);
+        assertSkips(indexName, third, deleted, 3, 4, 12, 45, 48, 51, 99);
+        assertWalk(indexName, all, deleted);
+        assertWalk(indexName, third, deleted);
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright T Jake Luciani
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.FilteredTermEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermRangeQuery;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LucandraTermRangeQueryTests
+{
+    private static final String[] words     = new String[] { "apple", "banana", "cherry", "date", "fig", "grape" };
+
+    private static String         indexName = "range" + System.nanoTime();
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException
+    {
+        CassandraUtils.startupServer();
+
+        IndexWriter writer = new IndexWriter();
+
+        for (int i = 0; i < words.length; i++)
+        {
+            Document doc = new Document();
+            doc.add(new Field("word", words[i], Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+
+            // a field sorting after word, the enum must stop before it
+            doc.add(new Field("zz", words[i], Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+
+            writer.addDocument(indexName, doc, new SimpleAnalyzer(), i, false, null);
+        }
+
+        writer.commit(indexName, true);
+    }
+
+    private static List<String> terms(LucandraTermRangeQuery query) throws IOException
+    {
+        FilteredTermEnum termEnum = query.getEnum(new IndexReader(indexName).reopen());
+
+        List<String> terms = new ArrayList<String>();
+        for (Term term = termEnum.term(); term != null; term = termEnum.next() ? termEnum.term() : null)
+            terms.add(term.text());
+
+        return terms;
+    }
+
+    @Test
+    public void testBounds() throws IOException
+    {
+        assertEquals(Arrays.asList("banana", "cherry", "date"), terms(new LucandraTermRangeQuery("word", "banana",
+                "date", true, true)));
+        assertEquals(Arrays.asList("cherry"), terms(new LucandraTermRangeQuery("word", "banana", "date", false,
+                false)));
+        assertEquals(Arrays.asList("cherry", "date"), terms(new LucandraTermRangeQuery("word", "c", "dz", true,
+                true)));
+        assertTrue(terms(new LucandraTermRangeQuery("word", "h", "z", true, true)).isEmpty());
+    }
+
+    @Test
+    public void testOpenEnds() throws IOException
+    {
+        assertEquals(Arrays.asList("apple", "banana"), terms(new LucandraTermRangeQuery("word", null, "banana",
+                true, true)));
+        assertEquals(Arrays.asList("fig", "grape"), terms(new LucandraTermRangeQuery("word", "fig", null, true,
+                true)));
+        assertEquals(words.length, terms(new LucandraTermRangeQuery("word", null, null, true, true)).size());
+    }
+
+    @Test
+    public void testSameHitsAsTermRangeQuery() throws IOException
+    {
+        IndexSearcher searcher = new IndexSearcher(new IndexReader(indexName).reopen());
+
+        TermRangeQuery range = new TermRangeQuery("word", "b", "fig", true, false);
+
+        assertEquals(3, searcher.search(range, 10).totalHits);
+        assertEquals(3, searcher.search(new LucandraTermRangeQuery(range), 10).totalHits);
+    }
+
+    @Test
+    public void testTermsListedWithoutPostings() throws IOException
+    {
+        IndexReader reader = new IndexReader(indexName).reopen();
+        TermCache termCache = reader.getCache().termCache;
+
+        // more terms than the first window lists
+        TermEnum termEnum = reader.terms(new Term("zz", ""));
+
+        List<String> terms = new ArrayList<String>();
+        for (Term term = termEnum.term(); term != null && term.field().equals("zz"); term = termEnum.next() ? termEnum
+                .term() : null)
+            terms.add(term.text());
+
+        assertEquals(Arrays.asList(words), terms);
+
+        for (String word : words)
+            assertNull(word, termCache.get(new Term("zz", word)));
+
+        // postings are read once asked for
+        termEnum = reader.terms(new Term("zz", "cherry"));
+        assertEquals(1, termEnum.docFreq());
+        assertEquals(1, LucandraTermBlock.count(((LucandraTermEnum) termEnum).getTermDocFreq()));
+        assertNotNull(termCache.get(new Term("zz", "cherry")));
+    }
+}
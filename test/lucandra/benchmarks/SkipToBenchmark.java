@@ -0,0 +1,138 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.benchmarks;
+
+import java.util.Random;
+
+import lucandra.LucandraPostings;
+
+/**
+ * Intersects a dense and a sparse synthetic posting list the way a two
+ * clause AND query does, comparing skipTo strategies:
+ *
+ *  reset  - restart from the first doc on every skip (the old skipTo)
+ *  linear - walk forward from the current doc
+ *  gallop - LucandraPostings.advance
+ *
+ * Usage: SkipToBenchmark [maxDoc] [denseRatio] [sparseRatio] [loops]
+ */
+public class SkipToBenchmark {
+
+    private interface Skipper {
+        int skipTo(LucandraPostings postings, int from, int target);
+    }
+
+    private static final Skipper reset = new Skipper() {
+        public int skipTo(LucandraPostings postings, int from, int target) {
+            int i = 0;
+            while (i < postings.size() && postings.docId(i) < target)
+                i++;
+
+            // a skip always moves forward
+            return Math.max(i, from);
+        }
+    };
+
+    private static final Skipper linear = new Skipper() {
+        public int skipTo(LucandraPostings postings, int from, int target) {
+            int i = from;
+            while (i < postings.size() && postings.docId(i) < target)
+                i++;
+
+            return i;
+        }
+    };
+
+    private static final Skipper gallop = new Skipper() {
+        public int skipTo(LucandraPostings postings, int from, int target) {
+            return postings.advance(from, target);
+        }
+    };
+
+    private static LucandraPostings generate(Random random, int maxDoc, double ratio) {
+        LucandraPostings postings = new LucandraPostings((int) (maxDoc * ratio));
+
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (random.nextDouble() < ratio)
+                postings.addDoc(doc, 1, LucandraPostings.defaultNorm);
+        }
+
+        return postings;
+    }
+
+    // leapfrog intersection, as done by ConjunctionScorer
+    private static int intersect(LucandraPostings a, LucandraPostings b, Skipper skipper) {
+        int hits = 0;
+        int i = 0, j = 0;
+
+        while (i < a.size() && j < b.size()) {
+            int docA = a.docId(i);
+            int docB = b.docId(j);
+
+            if (docA == docB) {
+                hits++;
+                i++;
+                j++;
+            } else if (docA < docB) {
+                i = skipper.skipTo(a, i, docB);
+            } else {
+                j = skipper.skipTo(b, j, docA);
+            }
+        }
+
+        return hits;
+    }
+
+    private static long time(String name, LucandraPostings a, LucandraPostings b, Skipper skipper, int loops) {
+        int hits = 0;
+        for (int i = 0; i < loops; i++)
+            hits = intersect(a, b, skipper); // warm up
+
+        long start = System.nanoTime();
+        for (int i = 0; i < loops; i++)
+            intersect(a, b, skipper);
+
+        long elapsed = (System.nanoTime() - start) / loops;
+
+        System.out.println(name + ": " + hits + " hits in " + (elapsed / 1000) + "us");
+
+        return elapsed;
+    }
+
+    public static void main(String[] args) {
+        int maxDoc = args.length > 0 ? Integer.parseInt(args[0]) : 1048576;
+        double denseRatio = args.length > 1 ? Double.parseDouble(args[1]) : 0.5;
+        double sparseRatio = args.length > 2 ? Double.parseDouble(args[2]) : 0.001;
+        int loops = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        Random random = new Random(42);
+        LucandraPostings dense = generate(random, maxDoc, denseRatio);
+        LucandraPostings sparse = generate(random, maxDoc, sparseRatio);
+
+        System.out.println("dense: " + dense.size() + " docs, sparse: " + sparse.size() + " docs");
+
+        long resetTime = time("reset", dense, sparse, reset, loops);
+        long linearTime = time("linear", dense, sparse, linear, loops);
+        long gallopTime = time("gallop", dense, sparse, gallop, loops);
+
+        System.out.println(String.format("gallop speedup: %.1fx over reset, %.1fx over linear", (double) resetTime
+                / gallopTime, (double) linearTime / gallopTime));
+    }
+}
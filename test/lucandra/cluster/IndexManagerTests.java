@@ -28,8 +28,10 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import lucandra.CassandraUtils;
+import lucandra.DeletedDocs;
 import lucandra.dht.RandomPartitioner;
 
+import org.apache.cassandra.db.RowMutation;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -402,6 +404,184 @@ public class IndexManagerTests
 
     }
     
+    // many threads share one manager's reserves, across several prefetches
+    @Test
+    public void testConcurrentIdsUnique() throws Exception
+    {
+        final String name = "concurrent" + System.nanoTime();
+        final CassandraIndexManager idx = new CassandraIndexManager(1);
+
+        final int threads = 8;
+        final int perThread = (CassandraIndexManager.reserveSlabSize * 3) / threads;
+
+        ExecutorService svc = Executors.newFixedThreadPool(threads);
+        List<Callable<List<Long>>> callables = new ArrayList<Callable<List<Long>>>();
+
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+
+            callables.add(new Callable<List<Long>>() {
+                public List<Long> call() throws Exception
+                {
+                    List<Long> ids = new ArrayList<Long>(perThread);
+
+                    for (int i = 0; i < perThread; i++)
+                        ids.add(idx.getNextId(name, "c" + thread + "_" + i));
+
+                    return ids;
+                }
+            });
+        }
+
+        Set<Long> all = new HashSet<Long>(threads * perThread);
+
+        for (Future<List<Long>> result : svc.invokeAll(callables))
+        {
+            for (Long id : result.get())
+                assertTrue(id + " handed out twice", all.add(id));
+        }
+
+        svc.shutdown();
+
+        assertEquals(threads * perThread, all.size());
+    }
+
+    // free lists are read again at most every 10 seconds
+    private static final long freeIdsWait = 30000;
+
+    // hands out new ids until all wanted ones came back or the wait is over,
+    // every id may be handed out once
+    private static Set<Long> takeIds(CassandraIndexManager idx, String name, Set<Long> live, Set<Long> wanted,
+            long wait) throws Exception
+    {
+        Set<Long> taken = new HashSet<Long>();
+        long deadline = System.currentTimeMillis() + wait;
+
+        while (System.currentTimeMillis() < deadline && (wanted == null || !taken.containsAll(wanted)))
+        {
+            Long id = idx.getNextId(name, "t" + System.nanoTime());
+
+            assertFalse(id + " is still in use", live.contains(id));
+            assertTrue(id + " handed out twice", taken.add(id));
+
+            Thread.sleep(20);
+        }
+
+        return taken;
+    }
+
+    // ids of the first shard from a fresh index, keyed k0..k(n-1)
+    private static Map<Long, String> newIds(CassandraIndexManager idx, String name, int n) throws IOException
+    {
+        Map<Long, String> ids = new LinkedHashMap<Long, String>();
+
+        for (int i = 0; i < n; i++)
+        {
+            Long id = idx.getNextId(name, "k" + i);
+            assertNull(ids.put(id, "k" + i));
+        }
+
+        return ids;
+    }
+
+    private static List<Integer> sharded(Collection<Long> ids)
+    {
+        List<Integer> sharded = new ArrayList<Integer>();
+        for (Long id : ids)
+            sharded.add(CassandraIndexManager.getShardedDocId(id));
+
+        return sharded;
+    }
+
+    // released ids are handed out again and their keys are unlinked
+    @Test
+    public void testReleasedIdsReused() throws Exception
+    {
+        String name = "release" + System.nanoTime();
+        CassandraIndexManager idx = new CassandraIndexManager(1);
+
+        Map<Long, String> ids = newIds(idx, name, 10);
+        Set<Long> live = new HashSet<Long>(ids.keySet());
+
+        Set<Long> released = new HashSet<Long>(new ArrayList<Long>(live).subList(0, 3));
+        live.removeAll(released);
+
+        int shard = CassandraIndexManager.getShardFromDocId(released.iterator().next());
+        idx.releaseIds(name, shard, sharded(released));
+
+        for (Long id : released)
+            assertNull(idx.getId(name, ids.get(id)));
+
+        for (Long id : live)
+            assertEquals(id, idx.getId(name, ids.get(id)));
+
+        assertTrue(takeIds(idx, name, live, released, freeIdsWait).containsAll(released));
+    }
+
+    // an id freed by a delete by id and again by the purge comes back once
+    @Test
+    public void testNoDoubleHandout() throws Exception
+    {
+        String name = "double" + System.nanoTime();
+        CassandraIndexManager idx = new CassandraIndexManager(1);
+
+        Set<Long> live = new HashSet<Long>(newIds(idx, name, 10).keySet());
+
+        Long id = live.iterator().next();
+        live.remove(id);
+
+        int shard = CassandraIndexManager.getShardFromDocId(id);
+
+        idx.deleteId(name, id);
+        idx.releaseIds(name, shard, sharded(Arrays.asList(id)));
+        idx.releaseIds(name, shard, sharded(Arrays.asList(id)));
+
+        // long enough for the free list to be read several times
+        Set<Long> taken = takeIds(idx, name, live, null, freeIdsWait);
+
+        assertTrue(taken.contains(id));
+    }
+
+    // ids of docs still marked as deleted wait for the purge
+    @Test
+    public void testOnlyPurgedIdsReused() throws Exception
+    {
+        String name = "purged" + System.nanoTime();
+        CassandraIndexManager idx = new CassandraIndexManager(1);
+
+        Set<Long> live = new HashSet<Long>(newIds(idx, name, 10).keySet());
+
+        Set<Long> marked = new HashSet<Long>(new ArrayList<Long>(live).subList(0, 3));
+        live.removeAll(marked);
+
+        int shard = CassandraIndexManager.getShardFromDocId(marked.iterator().next());
+        String subIndex = name + "~" + shard;
+
+        Map<ByteBuffer, RowMutation> marks = new HashMap<ByteBuffer, RowMutation>();
+        for (Integer docNumber : sharded(marked))
+            DeletedDocs.mark(marks, subIndex, docNumber);
+
+        CassandraUtils.robustInsert(CassandraUtils.consistency, marks.values().toArray(new RowMutation[0]));
+
+        idx.releaseIds(name, shard, sharded(marked));
+
+        Set<Long> taken = takeIds(idx, name, live, null, freeIdsWait);
+        for (Long id : marked)
+            assertFalse(id + " was reused before it was purged", taken.contains(id));
+
+        // the purge clears the marks
+        SortedMap<Integer, Long> read = DeletedDocs.readMarks(subIndex, Integer.MAX_VALUE);
+        assertEquals(marked.size(), read.size());
+
+        Map<ByteBuffer, RowMutation> clear = new HashMap<ByteBuffer, RowMutation>();
+        DeletedDocs.clear(clear, subIndex, read);
+        CassandraUtils.robustInsert(CassandraUtils.consistency, clear.values().toArray(new RowMutation[0]));
+
+        live.addAll(taken);
+        assertTrue(takeIds(idx, name, live, marked, freeIdsWait).containsAll(marked));
+    }
+
    // @Test
     public void testCustomRandomPartitioner()
     {